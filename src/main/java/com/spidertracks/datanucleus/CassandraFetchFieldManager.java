@@ -17,23 +17,25 @@ Contributors : Pedro Gomes and Universidade do Minho.
  ***********************************************************************/
 package com.spidertracks.datanucleus;
 
-import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
-
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.cassandra.thrift.Column;
 import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.FetchPlan;
 import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
-import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
@@ -42,9 +44,15 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.collection.CassEntry;
+import com.spidertracks.datanucleus.collection.ColumnSlicePager;
+import com.spidertracks.datanucleus.collection.LazyList;
+import com.spidertracks.datanucleus.collection.LazyMap;
+import com.spidertracks.datanucleus.collection.LazySet;
+import com.spidertracks.datanucleus.collection.PageLoader;
 import com.spidertracks.datanucleus.collection.ReadCollection;
 import com.spidertracks.datanucleus.collection.ReadMap;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.utils.MappingPlan;
 
 /**
  * @author Todd Nine
@@ -52,7 +60,20 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  */
 public class CassandraFetchFieldManager extends AbstractFieldManager {
 
-    private Map<Bytes, Bytes> columns;
+    /**
+     * Field extension to read a relationship's columns last to first, for
+     * instance to access the latest N elements.
+     */
+    public static final String REVERSED_EXTENSION = "cassandra.reversed";
+
+    /**
+     * The page size used for relationships if the fetch plan doesn't specify
+     * one
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private ByteBuffer[] values;
+    private MappingPlan plan;
     private AbstractClassMetaData metaData;
     private ObjectProvider objectProvider;
     private ByteConverterContext byteContext;
@@ -74,21 +95,18 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
         this.metaData = op.getClassMetaData();
         this.context = op.getExecutionContext();
         this.clr = this.context.getClassLoaderResolver();
-        this.byteContext = ((CassandraStoreManager) context.getStoreManager())
-                .getByteConverterContext();
+        CassandraStoreManager storeManager = (CassandraStoreManager) context
+                .getStoreManager();
+
+        this.byteContext = storeManager.getByteConverterContext();
+        this.plan = storeManager.getMappingPlan(metaData, clr);
         this.columnFamily = columnFamily;
         this.rowKey = rowKey;
         this.selector = selector;
 
-        // rather than iterate over every field call for O(n) it's faster to
-        // take our O(n) hit up front then perform an O(1) lookup. Sorting and
-        // searching is O(n log (n)) sort plus log n search
-        this.columns = new HashMap<Bytes, Bytes>();
-
-        for (Column column : columns) {
-            this.columns.put(Bytes.fromBytes(column.getName()),
-                    Bytes.fromBytes(column.getValue()));
-        }
+        // match each column to its field once, every fetch is then an array
+        // lookup
+        this.values = plan.getValues(columns);
 
     }
 
@@ -97,10 +115,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes value = this.columns.get(columnName);
-
-            return (Boolean) byteContext.getBoolean(value);
+            return byteContext.readBoolean(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -111,8 +126,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public byte fetchByteField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes value = this.columns.get(columnName);
+            Bytes value = getValue(fieldNumber);
 
             return value.toByte();
 
@@ -125,10 +139,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public char fetchCharField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes value = this.columns.get(columnName);
-
-            return (Character) byteContext.getCharacter(value);
+            return byteContext.readChar(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -139,10 +150,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public double fetchDoubleField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes value = this.columns.get(columnName);
-
-            return (Double) byteContext.getDouble(value);
+            return byteContext.readDouble(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -153,10 +161,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public float fetchFloatField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes value = this.columns.get(columnName);
-
-            return (Float) byteContext.getFloat(value);
+            return byteContext.readFloat(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -167,10 +172,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public int fetchIntField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes column = this.columns.get(columnName);
-
-            return (Integer) byteContext.getInteger(column);
+            return byteContext.readInt(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -181,10 +183,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public long fetchLongField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes column = this.columns.get(columnName);
-
-            return (Long) byteContext.getLong(column);
+            return byteContext.readLong(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -196,17 +195,14 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public Object fetchObjectField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes column = columns.get(columnName);
+            Bytes columnName = plan.getColumnName(fieldNumber);
+            Bytes column = getValue(fieldNumber);
 
-            AbstractMemberMetaData fieldMetaData = this.metaData
-                    .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+            AbstractMemberMetaData fieldMetaData = plan.getMember(fieldNumber);
 
-            int relationType = fieldMetaData.getRelationType(clr);
+            int relation = plan.getRelation(fieldNumber);
 
-            if (relationType == Relation.ONE_TO_ONE_BI
-                    || relationType == Relation.ONE_TO_ONE_UNI
-                    || relationType == Relation.MANY_TO_ONE_BI) {
+            if (relation == MappingPlan.SINGLE) {
 
                 // Persistable object
                 if (fieldMetaData.isEmbedded()) {
@@ -235,70 +231,79 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                     // tombstone time
                 }
 
-            } else if (relationType == Relation.MANY_TO_MANY_BI
-                    || relationType == Relation.ONE_TO_MANY_BI
-                    || relationType == Relation.ONE_TO_MANY_UNI) {
+            } else if (relation == MappingPlan.MULTIPLE) {
 
-                if (Collection.class.isAssignableFrom(fieldMetaData.getType())) {
+                int fetchSize = context.getFetchPlan().getFetchSize();
 
-                    Collection<Object> coll;
-                    Class<?> elementClass = clr.classForName(fieldMetaData
-                            .getCollection().getElementType());
+                // a greedy fetch plan loads everything up front
+                boolean lazy = fetchSize != FetchPlan.FETCH_SIZE_GREEDY;
 
-                    try {
-                        Class<?> instanceType = SCOUtils
-                                .getContainerInstanceType(
-                                        fieldMetaData.getType(),
-                                        fieldMetaData.getOrderMetaData() != null);
-                        coll = (Collection<Object>) instanceType.newInstance();
-                    } catch (Exception e) {
-                        throw new NucleusDataStoreException(e.getMessage(), e);
-                    }
+                int pageSize = fetchSize > 0 ? fetchSize : DEFAULT_PAGE_SIZE;
+
+                boolean reversed = Boolean.valueOf(fieldMetaData
+                        .getValueForExtension(REVERSED_EXTENSION));
+
+                ExecutorService prefetch = ((CassandraStoreManager) context
+                        .getStoreManager()).getPrefetchExecutor();
 
-                    // loop through the super columns
+                Class<?> type = fieldMetaData.getType();
 
-                    // get our list of Strings
+                if (Collection.class.isAssignableFrom(type)) {
 
-                    ReadCollection columnFetcher = new ReadCollection(selector, 
+                    Class<?> elementClass = clr.classForName(fieldMetaData
+                            .getCollection().getElementType());
+
+                    ReadCollection reader = new ReadCollection(selector,
                             byteContext, columnFamily, rowKey, columnName,
                             context, elementClass);
 
-                    // TODO use context.getFetchPlan().getFetchSize()
-                    columnFetcher.fetchColumns(100, null);
+                    ColumnSlicePager pager = reader.newPager(pageSize,
+                            reversed, prefetch);
 
-                    for (Object key : columnFetcher) {
+                    PageLoader loader = new ElementLoader(reader,
+                            elementClass);
 
-                        try {
-                            Object element = context.findObject(key, false,
-                                    true, fieldMetaData.getTypeName());
+                    List<Column> firstPage = pager.nextPage();
 
-                            coll.add(element);
-                        } catch (NucleusObjectNotFoundException nonfe) {
-                            // swallow. TODO remove the lazy reference if record
-                            // is over tombstone time
-                        }
+                    if (firstPage.size() == 0) {
+                        return null;
                     }
 
-                    if (coll.size() == 0) {
-                        return null;
+                    if (lazy && (type == List.class || type == Collection.class)) {
+                        return new LazyList(pager, loader, firstPage,
+                                objectProvider, fieldNumber);
                     }
 
-                    return objectProvider.wrapSCOField(fieldNumber, coll,
-                            false, false, true);
-                } else if (Map.class.isAssignableFrom(fieldMetaData.getType())) {
+                    if (lazy && type == Set.class) {
+                        return new LazySet(pager, loader, firstPage,
+                                objectProvider, fieldNumber);
+                    }
 
-                    Map<Object, Object> map;
+                    Collection<Object> coll;
 
                     try {
                         Class<?> instanceType = SCOUtils
-                                .getContainerInstanceType(
-                                        fieldMetaData.getType(),
+                                .getContainerInstanceType(type,
                                         fieldMetaData.getOrderMetaData() != null);
-                        map = (Map<Object, Object>) instanceType.newInstance();
+                        coll = (Collection<Object>) instanceType.newInstance();
                     } catch (Exception e) {
                         throw new NucleusDataStoreException(e.getMessage(), e);
                     }
 
+                    coll.addAll(loader.load(firstPage));
+
+                    while (pager.hasMore()) {
+                        coll.addAll(loader.load(pager.nextPage()));
+                    }
+
+                    if (coll.size() == 0) {
+                        return null;
+                    }
+
+                    return objectProvider.wrapSCOField(fieldNumber, coll,
+                            false, false, true);
+                } else if (Map.class.isAssignableFrom(type)) {
+
                     ApiAdapter adapter = objectProvider.getExecutionContext()
                             .getApiAdapter();
 
@@ -327,47 +332,42 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                                         clr, context.getMetaDataManager()));
                     }
 
-                    // TODO use context.getFetchPlan().getFetchSize()
-                    ReadMap mapReader = new ReadMap(selector, byteContext, columnFamily,
+                    ReadMap reader = new ReadMap(selector, byteContext, columnFamily,
                             rowKey, columnName, storedKeyClass,
                             storedValueClass);
-                    mapReader.fetchColumns(100, null);
 
-                    for (CassEntry entry : mapReader) {
+                    ColumnSlicePager pager = reader.newPager(pageSize,
+                            reversed, prefetch);
 
-                        try {
-                            Object key = null;
+                    PageLoader loader = new EntryLoader(reader, keyClass,
+                            pcKey, valueClass, pcValue);
 
-                            if (pcKey) {
+                    List<Column> firstPage = pager.nextPage();
 
-                                key = context.findObject(
-                                        context.newObjectId(keyClass,
-                                                entry.getKey()), false, true,
-
-                                        fieldMetaData.getTypeName());
-                            } else {
-                                key = entry.getKey();
-                            }
+                    if (firstPage.size() == 0) {
+                        return null;
+                    }
 
-                            Object value = null;
+                    if (lazy && type == Map.class) {
+                        return new LazyMap(pager, loader, firstPage,
+                                objectProvider, fieldNumber);
+                    }
 
-                            if (pcValue) {
-                                value = context.findObject(
-                                        context.newObjectId(valueClass,
-                                                entry.getValue()), false, true,
+                    Map<Object, Object> map;
 
-                                        fieldMetaData.getTypeName());
-                            } else {
-                                value = entry.getValue();
-                            }
+                    try {
+                        Class<?> instanceType = SCOUtils
+                                .getContainerInstanceType(type,
+                                        fieldMetaData.getOrderMetaData() != null);
+                        map = (Map<Object, Object>) instanceType.newInstance();
+                    } catch (Exception e) {
+                        throw new NucleusDataStoreException(e.getMessage(), e);
+                    }
 
-                            map.put(key, value);
-                        } catch (NucleusObjectNotFoundException nonfe) {
-                            // swallow. TODO remove the lazy reference if record
-                            // is over
-                            // tombstone time
-                        }
+                    putAll(map, loader.load(firstPage));
 
+                    while (pager.hasMore()) {
+                        putAll(map, loader.load(pager.nextPage()));
                     }
 
                     if (map.size() == 0) {
@@ -377,32 +377,42 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                     return objectProvider.wrapSCOField(fieldNumber, map, false,
                             false, true);
 
-                } else if (fieldMetaData.getType().isArray()) {
+                } else if (type.isArray()) {
 
-                    ReadMap mapReader = new ReadMap(selector, byteContext, columnFamily,
+                    ReadMap reader = new ReadMap(selector, byteContext, columnFamily,
                             rowKey, columnName, Integer.class,
                             byteContext.getKeyClass(context, metaData));
-                    mapReader.fetchColumns(100, null);
 
-                    int columns = mapReader.getColumnCount();
+                    // arrays are always loaded completely
+                    ColumnSlicePager pager = reader.newPager(pageSize, false,
+                            prefetch);
+
+                    List<CassEntry> entries = new ArrayList<CassEntry>();
+
+                    while (pager.hasMore()) {
+                        for (Column current : pager.nextPage()) {
+                            entries.add(reader.getEntry(current));
+                        }
+                    }
 
-                    // TODO make this size more
-                    Object array = Array.newInstance(fieldMetaData.getType()
-                            .getComponentType(), columns);
+                    Object array = Array.newInstance(type.getComponentType(),
+                            entries.size());
 
                     Class<?> elementClass = clr.classForName(fieldMetaData
                             .getArray().getElementType());
 
-                    for (int i = 0; mapReader.hasNext(); i++) {
+                    List<Bytes> keys = new ArrayList<Bytes>(entries.size());
 
-                        CassEntry entry = mapReader.next();
-
-                        Object id = context.newObjectId(elementClass,
-                                entry.getValue());
+                    for (CassEntry entry : entries) {
+                        keys.add(byteContext.getRowKeyForId(context
+                                .newObjectId(elementClass, entry.getValue())));
+                    }
 
-                        Object element = context.findObject(id, false, true, fieldMetaData.getTypeName());
+                    Map<Bytes, Object> elements = loadObjects(elementClass, keys);
 
-                        Array.set(array, (Integer) entry.getKey(), element);
+                    for (int i = 0; i < entries.size(); i++) {
+                        Array.set(array, (Integer) entries.get(i).getKey(),
+                                elements.get(keys.get(i)));
                     }
 
                     return objectProvider.wrapSCOField(fieldNumber, array,
@@ -416,7 +426,8 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
                 return null;
             }
 
-            return byteContext.getObject(column, this.metaData, fieldNumber);
+            return byteContext.getObject(plan.getConverter(fieldNumber),
+                    column.getBytes());
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -427,10 +438,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public short fetchShortField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes column = this.columns.get(columnName);
-
-            return (Short) byteContext.getShort(column);
+            return byteContext.readShort(values[fieldNumber]);
 
         } catch (Exception e) {
             throw new NucleusException(e.getMessage(), e);
@@ -441,8 +449,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
     public String fetchStringField(int fieldNumber) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
-            Bytes column = this.columns.get(columnName);
+            Bytes column = getValue(fieldNumber);
 
             return (String) byteContext.getString(column);
 
@@ -451,4 +458,202 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
         }
     }
 
+    /**
+     * Get the value of the field's column, or null if the row doesn't have it.
+     * The returned bytes can be consumed without affecting later reads
+     * 
+     * @param fieldNumber
+     * @return
+     */
+    private Bytes getValue(int fieldNumber) {
+        ByteBuffer value = values[fieldNumber];
+
+        if (value == null) {
+            return null;
+        }
+
+        return Bytes.fromByteBuffer(value.duplicate());
+    }
+
+    private void putAll(Map<Object, Object> map, List<?> entries) {
+        for (Object entry : entries) {
+            CassEntry current = (CassEntry) entry;
+            map.put(current.getKey(), current.getValue());
+        }
+    }
+
+    /**
+     * Load the persistent objects stored in the given rows in a single
+     * multiget
+     * 
+     * @param elementClass
+     * @param keys
+     * @return
+     */
+    private Map<Bytes, Object> loadObjects(Class<?> elementClass, List<Bytes> keys) {
+        AbstractClassMetaData elementMetaData = context.getMetaDataManager()
+                .getMetaDataForClass(elementClass, clr);
+
+        return ((CassandraStoreManager) context.getStoreManager())
+                .getCassandraPersistenceHandler().loadObjects(context,
+                        elementMetaData, keys, selector);
+    }
+
+    /**
+     * Loads the elements referenced by a page of collection columns
+     */
+    private class ElementLoader implements PageLoader {
+
+        private ReadCollection reader;
+        private Class<?> elementClass;
+
+        private ElementLoader(ReadCollection reader, Class<?> elementClass) {
+            this.reader = reader;
+            this.elementClass = elementClass;
+        }
+
+        @Override
+        public List<?> load(List<Column> columns) {
+            List<Bytes> keys = new ArrayList<Bytes>(columns.size());
+
+            for (Column column : columns) {
+                keys.add(reader.getElementKey(column));
+            }
+
+            return new ArrayList<Object>(loadObjects(elementClass, keys)
+                    .values());
+        }
+
+        @Override
+        public boolean contains(Object element) {
+            Object id = context.getApiAdapter().getIdForObject(element);
+
+            // never persisted, so never stored
+            if (id == null) {
+                return false;
+            }
+
+            return reader.hasElement(byteContext.getRowKeyForId(id));
+        }
+
+        @Override
+        public Object find(Object element) {
+            return contains(element) ? element : null;
+        }
+    }
+
+    /**
+     * Loads the keys and values referenced by a page of map columns
+     */
+    private class EntryLoader implements PageLoader {
+
+        private ReadMap reader;
+        private Class<?> keyClass;
+        private boolean pcKey;
+        private Class<?> valueClass;
+        private boolean pcValue;
+
+        private EntryLoader(ReadMap reader, Class<?> keyClass, boolean pcKey,
+                Class<?> valueClass, boolean pcValue) {
+            this.reader = reader;
+            this.keyClass = keyClass;
+            this.pcKey = pcKey;
+            this.valueClass = valueClass;
+            this.pcValue = pcValue;
+        }
+
+        @Override
+        public List<?> load(List<Column> columns) {
+            Map<Bytes, Object> keyObjects = null;
+            Map<Bytes, Object> valueObjects = null;
+
+            if (pcKey) {
+                List<Bytes> keys = new ArrayList<Bytes>(columns.size());
+
+                for (Column column : columns) {
+                    keys.add(reader.getKeyBytes(column));
+                }
+
+                keyObjects = loadObjects(keyClass, keys);
+            }
+
+            if (pcValue) {
+                List<Bytes> keys = new ArrayList<Bytes>(columns.size());
+
+                for (Column column : columns) {
+                    keys.add(reader.getValueBytes(column));
+                }
+
+                valueObjects = loadObjects(valueClass, keys);
+            }
+
+            List<CassEntry> entries = new ArrayList<CassEntry>(columns.size());
+
+            for (Column column : columns) {
+                Object key;
+                Object value;
+
+                if (pcKey) {
+                    key = keyObjects.get(reader.getKeyBytes(column));
+                } else {
+                    key = reader.getEntry(column).getKey();
+                }
+
+                if (pcValue) {
+                    value = valueObjects.get(reader.getValueBytes(column));
+                } else {
+                    value = reader.getEntry(column).getValue();
+                }
+
+                // the referenced object no longer exists
+                if ((pcKey && key == null) || (pcValue && value == null)) {
+                    continue;
+                }
+
+                entries.add(new CassEntry(key, value));
+            }
+
+            return entries;
+        }
+
+        @Override
+        public boolean contains(Object element) {
+            Object key = ((Map.Entry<?, ?>) element).getKey();
+
+            if (pcKey) {
+                key = context.getApiAdapter().getIdForObject(key);
+            }
+
+            if (key == null) {
+                return false;
+            }
+
+            return reader.hasElement(byteContext.getRowKeyForId(key));
+        }
+
+        @Override
+        public Object find(Object element) {
+            Object key = ((Map.Entry<?, ?>) element).getKey();
+
+            if (pcKey) {
+                key = context.getApiAdapter().getIdForObject(key);
+            }
+
+            if (key == null) {
+                return null;
+            }
+
+            Column column = reader.getElementColumn(byteContext
+                    .getRowKeyForId(key));
+
+            if (column == null) {
+                return null;
+            }
+
+            List<?> entries = load(Collections.singletonList(column));
+
+            return entries.isEmpty() ? null : entries.get(0);
+        }
+    }
+
 }
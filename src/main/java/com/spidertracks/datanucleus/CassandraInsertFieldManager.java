@@ -17,30 +17,33 @@ Contributors : Pedro Gomes and Universidade do Minho.
  ***********************************************************************/
 package com.spidertracks.datanucleus;
 
-import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
-
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.datanucleus.ClassLoaderResolver;
-import org.datanucleus.StateManager;
 import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
-import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.collection.ChangeTracking;
+import com.spidertracks.datanucleus.collection.LazyList;
+import com.spidertracks.datanucleus.collection.LazyMap;
+import com.spidertracks.datanucleus.collection.LazySet;
 import com.spidertracks.datanucleus.collection.WriteCollection;
 import com.spidertracks.datanucleus.collection.WriteMap;
+import com.spidertracks.datanucleus.convert.ByteConverter;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.CassandraMutator;
+import com.spidertracks.datanucleus.utils.MappingPlan;
 
 /**
  * @author Todd Nine
@@ -50,19 +53,28 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
     private ExecutionContext context;
     private Selector selector;
-    private Mutator mutator;
+    private CassandraMutator mutator;
     private AbstractClassMetaData metaData;
+    private MappingPlan plan;
     private ObjectProvider objectProvider;
     private String columnFamily;
     private ByteConverterContext byteContext;
     private Bytes key;
+    private boolean insert;
 
     /**
-     * @param columns
-     * @param metaData
+     * @param selector
+     * @param mutator
+     * @param op
+     * @param columnFamily
+     * @param key
+     * @param insert
+     *            True if the row is new. Nothing is read or removed for new
+     *            rows since nothing can be stored yet
      */
-    public CassandraInsertFieldManager(Selector selector, Mutator mutator,
-            ObjectProvider op, String columnFamily, Bytes key) {
+    public CassandraInsertFieldManager(Selector selector,
+            CassandraMutator mutator, ObjectProvider op, String columnFamily,
+            Bytes key, boolean insert) {
         super();
 
         this.selector = selector;
@@ -70,10 +82,16 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
         this.objectProvider = op;
         this.metaData = op.getClassMetaData();
         this.context = op.getExecutionContext();
-        this.byteContext = ((CassandraStoreManager) context.getStoreManager())
-                .getByteConverterContext();
+
+        CassandraStoreManager storeManager = (CassandraStoreManager) context
+                .getStoreManager();
+
+        this.byteContext = storeManager.getByteConverterContext();
+        this.plan = storeManager.getMappingPlan(metaData,
+                context.getClassLoaderResolver());
         this.columnFamily = columnFamily;
         this.key = key;
+        this.insert = insert;
 
     }
 
@@ -82,7 +100,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
 
         } catch (Exception e) {
@@ -96,7 +114,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
         try {
 
             mutator.writeColumn(columnFamily, key,
-                    mutator.newColumn(getColumnName(metaData, fieldNumber),
+                    mutator.newColumn(plan.getColumnName(fieldNumber),
                             Bytes.fromByte(value)));
 
         } catch (Exception e) {
@@ -109,7 +127,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
 
         } catch (Exception e) {
@@ -122,7 +140,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
 
         } catch (Exception e) {
@@ -135,7 +153,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
         } catch (Exception e) {
             throw new NucleusDataStoreException(e.getMessage(), e);
@@ -147,7 +165,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
 
         } catch (Exception e) {
@@ -160,7 +178,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
 
         } catch (Exception e) {
@@ -172,7 +190,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
     public void storeShortField(int fieldNumber, short value) {
         try {
             mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
+                    plan.getColumnName(fieldNumber),
                     byteContext.getBytes(value)));
 
         } catch (Exception e) {
@@ -184,19 +202,15 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
     public void storeObjectField(int fieldNumber, Object value) {
         try {
 
-            Bytes columnName = getColumnName(metaData, fieldNumber);
+            Bytes columnName = plan.getColumnName(fieldNumber);
 
-            ClassLoaderResolver clr = context.getClassLoaderResolver();
-            AbstractMemberMetaData fieldMetaData = metaData
-                    .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+            AbstractMemberMetaData fieldMetaData = plan.getMember(fieldNumber);
 
-            int relationType = fieldMetaData.getRelationType(clr);
+            int relation = plan.getRelation(fieldNumber);
 
             // check if this is a relationship
 
-            if (relationType == Relation.ONE_TO_ONE_BI
-                    || relationType == Relation.ONE_TO_ONE_UNI
-                    || relationType == Relation.MANY_TO_ONE_BI) {
+            if (relation == MappingPlan.SINGLE) {
                 // Persistable object - persist the related object and store the
                 // identity in the cell
 
@@ -228,181 +242,350 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
                 return;
             }
 
-            if (relationType == Relation.MANY_TO_MANY_BI
-                    || relationType == Relation.ONE_TO_MANY_BI
-                    || relationType == Relation.ONE_TO_MANY_UNI) {
+            if (relation == MappingPlan.MULTIPLE) {
                 // Collection/Map/Array
 
                 if (fieldMetaData.hasCollection()) {
+                    storeCollection(fieldNumber, fieldMetaData, columnName,
+                            value);
+                } else if (fieldMetaData.hasMap()) {
+                    storeMap(fieldNumber, fieldMetaData, columnName, value);
+                } else if (fieldMetaData.hasArray()) {
+                    storeArray(fieldNumber, columnName, value);
+                }
 
-                    WriteCollection collectionWriter = new WriteCollection(
-                            selector, byteContext, columnFamily, key,
-                            columnName);
+                return;
+            }
 
-                    if (value == null) {
-                        collectionWriter.removeAllColumns(mutator);
-                        return;
-                    }
+            if (value == null) {
+                this.mutator.deleteColumn(columnFamily, key, columnName);
+                return;
+            }
 
-                    Object persisted = null;
-                    Object objectPk = null;
+            ByteConverter converter = plan.getConverter(fieldNumber);
 
-                    for (Object element : (Collection<?>) value) {
-                        // persist the object
-                        persisted = context.persistObjectInternal(element,
-                                objectProvider, fieldNumber, 0);
+            Bytes data;
 
-                        objectPk = context.getApiAdapter().getIdForObject(
-                                persisted);
+            // the declared type's converter can only be used if the value
+            // isn't a subclass of it
+            if (converter != null
+                    && value.getClass() == fieldMetaData.getType()) {
+                data = byteContext.getBytes(converter, value);
+            } else {
+                data = byteContext.getBytes(value);
+            }
 
-                        collectionWriter.writeRelationship(mutator, objectPk);
-                    }
+            mutator.writeColumn(columnFamily, key,
+                    mutator.newColumn(columnName, data));
 
-                    // TODO remove this when SCO is working
-                    collectionWriter.removeRemaining(mutator);
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
 
-                    objectProvider.wrapSCOField(fieldNumber, value, true, true,
-                            true);
+    @Override
+    public void storeStringField(int fieldNumber, String value) {
+        try {
 
-                    return;
+            if (value == null) {
+                mutator.deleteColumn(columnFamily, key,
+                        plan.getColumnName(fieldNumber));
+                return;
+            }
 
-                } else if (fieldMetaData.hasMap()) {
+            mutator.writeColumn(columnFamily, key, mutator.newColumn(
+                    plan.getColumnName(fieldNumber),
+                    byteContext.getBytes(value)));
 
-                    WriteMap mapWriter = new WriteMap(selector, byteContext,
-                            columnFamily, key, columnName);
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
 
-                    if (value == null) {
-                        mapWriter.removeAllColumns(mutator);
-                        return;
-                    }
+    /**
+     * Write the relationship columns of a collection. If the collection has
+     * tracked its changes since it was last written only the added and removed
+     * elements are written, otherwise every element is.
+     * 
+     * @param fieldNumber
+     * @param fieldMetaData
+     * @param columnName
+     * @param value
+     */
+    private void storeCollection(int fieldNumber,
+            AbstractMemberMetaData fieldMetaData, Bytes columnName,
+            Object value) {
 
-                    ApiAdapter adapter = context.getApiAdapter();
+        WriteCollection collectionWriter = new WriteCollection(selector,
+                byteContext, columnFamily, key, columnName);
 
-                    Map<?, ?> map = ((Map<?, ?>) value);
+        if (value == null) {
+            // a new row has nothing to remove
+            if (!insert) {
+                collectionWriter.removeAllColumns(mutator);
+            }
 
-                    // serialized values to store per item
-                    Object serializedKey = null;
-                    Object serializedValue = null;
+            return;
+        }
 
-                    // value set by the user in the map
-                    Object mapValue = null;
+        ChangeTracking changes = getChanges(value, fieldNumber);
 
-                    // pointer to what we persisted
-                    Object persisted = null;
+        if (changes != null) {
 
-                    // get each element and persist it.
-                    for (Object mapKey : map.keySet()) {
+            for (Object element : changes.getAdded()) {
+                collectionWriter.writeRelationship(mutator,
+                        persist(element, fieldNumber));
+            }
 
-                        mapValue = map.get(mapKey);
+            for (Object element : changes.getRemoved()) {
+                Object objectPk = context.getApiAdapter().getIdForObject(
+                        element);
 
-                        // handle the case if our key is a persistent class
-                        // itself
-                        if (adapter.isPersistable(mapKey)) {
+                // never persisted, so never written
+                if (objectPk != null) {
+                    collectionWriter.removeRelationship(mutator, objectPk);
+                }
+            }
 
-                            persisted = context.persistObjectInternal(mapKey,
-                                    objectProvider, fieldNumber,
-                                    0);
+            changes.changesWritten();
 
-                            serializedKey = context.getApiAdapter()
-                                    .getIdForObject(persisted);
-                        } else {
-                            serializedKey = mapKey;
-                        }
+            return;
+        }
 
-                        // persist the value if it can be persisted
-                        if (adapter.isPersistable(mapValue)) {
+        // replace anything stored previously. The tombstones are older than
+        // the columns written below, so they aren't affected by them
+        if (!insert) {
+            collectionWriter.removeAllColumns(mutator);
+        }
 
-                            persisted = context.persistObjectInternal(mapValue,
-                                    objectProvider, fieldNumber,
-                                    0);
+        for (Object element : (Collection<?>) value) {
+            collectionWriter.writeRelationship(mutator,
+                    persist(element, fieldNumber));
+        }
 
-                            serializedValue = context.getApiAdapter()
-                                    .getIdForObject(persisted);
+        track(fieldNumber, fieldMetaData, value);
+    }
 
-                        } else {
-                            serializedValue = mapValue;
-                        }
+    /**
+     * Write the relationship columns of a map. As with collections, only the
+     * changed entries are written when the map has tracked them
+     * 
+     * @param fieldNumber
+     * @param fieldMetaData
+     * @param columnName
+     * @param value
+     */
+    private void storeMap(int fieldNumber,
+            AbstractMemberMetaData fieldMetaData, Bytes columnName,
+            Object value) {
 
-                        mapWriter.writeRelationship(mutator, serializedKey,
-                                serializedValue);
+        WriteMap mapWriter = new WriteMap(selector, byteContext, columnFamily,
+                key, columnName);
 
-                        // TODO remove this when SCO is working
-                        mapWriter.removeRemaining(mutator);
+        if (value == null) {
+            if (!insert) {
+                mapWriter.removeAllColumns(mutator);
+            }
 
-                    }
+            return;
+        }
 
-                    objectProvider.wrapSCOField(fieldNumber, value, true, true,
-                            true);
+        ChangeTracking changes = getChanges(value, fieldNumber);
 
-                    return;
+        if (changes != null) {
 
-                } else if (fieldMetaData.hasArray()) {
+            for (Object entry : changes.getAdded()) {
+                Map.Entry<?, ?> added = (Map.Entry<?, ?>) entry;
 
-                    Object persisted = null;
-                    Object objectPk = null;
+                writeEntry(mapWriter, fieldNumber, added.getKey(),
+                        added.getValue());
+            }
 
-                    WriteMap mapWriter = new WriteMap(selector, byteContext,
-                            columnFamily, key, columnName);
+            ApiAdapter adapter = context.getApiAdapter();
 
-                    if (value == null) {
-                        mapWriter.removeAllColumns(mutator);
-                        return;
-                    }
+            for (Object entry : changes.getRemoved()) {
+                Object mapKey = ((Map.Entry<?, ?>) entry).getKey();
 
-                    for (int i = 0; i < Array.getLength(value); i++) {
+                Object serializedKey = adapter.isPersistable(mapKey) ? adapter
+                        .getIdForObject(mapKey) : mapKey;
 
-                        // persist the object
-                        persisted = context.persistObjectInternal(
-                                Array.get(value, i), objectProvider,
-                                fieldNumber, 0);
+                if (serializedKey != null) {
+                    mapWriter.removeRelationship(mutator, serializedKey);
+                }
+            }
 
-                        objectPk = context.getApiAdapter().getIdForObject(
-                                persisted);
+            changes.changesWritten();
 
-                        mapWriter.writeRelationship(mutator, i, objectPk);
-                    }
+            return;
+        }
 
-                    // TODO remove this when SCO is working
-                    mapWriter.removeRemaining(mutator);
-                }
+        // replace anything stored previously. The tombstones are older than
+        // the columns written below, so they aren't affected by them
+        if (!insert) {
+            mapWriter.removeAllColumns(mutator);
+        }
 
-                objectProvider.wrapSCOField(fieldNumber, value, true, true,
-                        true);
+        Map<?, ?> map = ((Map<?, ?>) value);
 
-                return;
-            }
+        // get each element and persist it.
+        for (Object mapKey : map.keySet()) {
+            writeEntry(mapWriter, fieldNumber, mapKey, map.get(mapKey));
+        }
 
-            if (value == null) {
-                this.mutator.deleteColumn(columnFamily, key, columnName);
-                return;
-            }
+        track(fieldNumber, fieldMetaData, value);
+    }
 
-            Bytes data = byteContext.getBytes(value);
+    /**
+     * Persist the key and value of a map entry if required and write the
+     * entry's column
+     * 
+     * @param mapWriter
+     * @param fieldNumber
+     * @param mapKey
+     * @param mapValue
+     */
+    private void writeEntry(WriteMap mapWriter, int fieldNumber,
+            Object mapKey, Object mapValue) {
 
-            mutator.writeColumn(columnFamily, key,
-                    mutator.newColumn(columnName, data));
+        ApiAdapter adapter = context.getApiAdapter();
 
-        } catch (Exception e) {
-            throw new NucleusDataStoreException(e.getMessage(), e);
+        // serialized values to store per item
+        Object serializedKey = null;
+        Object serializedValue = null;
+
+        // handle the case if our key is a persistent class
+        // itself
+        if (adapter.isPersistable(mapKey)) {
+            serializedKey = persist(mapKey, fieldNumber);
+        } else {
+            serializedKey = mapKey;
         }
+
+        // persist the value if it can be persisted
+        if (adapter.isPersistable(mapValue)) {
+            serializedValue = persist(mapValue, fieldNumber);
+        } else {
+            serializedValue = mapValue;
+        }
+
+        mapWriter.writeRelationship(mutator, serializedKey, serializedValue);
     }
 
-    @Override
-    public void storeStringField(int fieldNumber, String value) {
-        try {
+    /**
+     * Write the relationship columns of an array. Arrays can't track their
+     * changes, so every element is always written
+     * 
+     * @param fieldNumber
+     * @param columnName
+     * @param value
+     */
+    private void storeArray(int fieldNumber, Bytes columnName, Object value) {
 
-            if (value == null) {
-                mutator.deleteColumn(columnFamily, key,
-                        getColumnName(metaData, fieldNumber));
-                return;
+        WriteMap mapWriter = new WriteMap(selector, byteContext, columnFamily,
+                key, columnName);
+
+        if (value == null) {
+            if (!insert) {
+                mapWriter.removeAllColumns(mutator);
             }
 
-            mutator.writeColumn(columnFamily, key, mutator.newColumn(
-                    getColumnName(metaData, fieldNumber),
-                    byteContext.getBytes(value)));
+            return;
+        }
 
-        } catch (Exception e) {
-            throw new NucleusDataStoreException(e.getMessage(), e);
+        // replace anything stored previously. The tombstones are older than
+        // the columns written below, so they aren't affected by them
+        if (!insert) {
+            mapWriter.removeAllColumns(mutator);
         }
+
+        for (int i = 0; i < Array.getLength(value); i++) {
+            mapWriter.writeRelationship(mutator, i,
+                    persist(Array.get(value, i), fieldNumber));
+        }
+
+        objectProvider.wrapSCOField(fieldNumber, value, true, true, true);
+    }
+
+    /**
+     * Persist the related object
+     * 
+     * @param element
+     * @param fieldNumber
+     * @return The identity of the persisted object
+     */
+    private Object persist(Object element, int fieldNumber) {
+        Object persisted = context.persistObjectInternal(element,
+                objectProvider, fieldNumber, 0);
+
+        return context.getApiAdapter().getIdForObject(persisted);
+    }
+
+    /**
+     * Get the changes recorded for the field since it was last written
+     * 
+     * @param value
+     * @param fieldNumber
+     * @return The changes or null if the whole value has to be written
+     */
+    private ChangeTracking getChanges(Object value, int fieldNumber) {
+        if (!(value instanceof ChangeTracking)) {
+            return null;
+        }
+
+        ChangeTracking changes = (ChangeTracking) value;
+
+        if (!changes.isTracking(objectProvider, fieldNumber)
+                || changes.isCleared()) {
+            return null;
+        }
+
+        return changes;
+    }
+
+    /**
+     * Once a relationship has been written in full, replace it with a
+     * collection that tracks its changes so later updates only write the
+     * difference. Fields of a concrete type are wrapped by DataNucleus
+     * instead.
+     * 
+     * @param fieldNumber
+     * @param fieldMetaData
+     * @param value
+     */
+    private void track(int fieldNumber, AbstractMemberMetaData fieldMetaData,
+            Object value) {
+
+        if (value instanceof ChangeTracking
+                && ((ChangeTracking) value).isTracking(objectProvider,
+                        fieldNumber)) {
+            ((ChangeTracking) value).changesWritten();
+            return;
+        }
+
+        Class<?> type = fieldMetaData.getType();
+
+        Object tracked = null;
+
+        if (type == List.class || type == Collection.class) {
+            tracked = new LazyList((Collection<?>) value, objectProvider,
+                    fieldNumber);
+        } else if (type == Set.class) {
+            tracked = new LazySet((Collection<?>) value, objectProvider,
+                    fieldNumber);
+        } else if (type == Map.class) {
+            tracked = new LazyMap((Map<?, ?>) value, objectProvider,
+                    fieldNumber);
+        }
+
+        if (tracked == null) {
+            objectProvider.wrapSCOField(fieldNumber, value, true, true, true);
+            return;
+        }
+
+        // everything was written, kept until the transaction ends in case it
+        // has to be written again
+        ((ChangeTracking) tracked).changesWritten();
+
+        objectProvider.replaceField(fieldNumber, tracked);
     }
 }
@@ -18,30 +18,32 @@ Contributors : Pedro Gomes and Universidade do Minho.
 package com.spidertracks.datanucleus;
 
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDefaultFetchColumns;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
-import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchColumnList;
 
-import java.lang.reflect.Array;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import javax.jdo.identity.SingleFieldIdentity;
 
 import org.apache.cassandra.thrift.Column;
 import org.datanucleus.ClassLoaderResolver;
-import org.datanucleus.api.ApiAdapter;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.datanucleus.metadata.AbstractClassMetaData;
-import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.DiscriminatorMetaData;
 import org.datanucleus.metadata.DiscriminatorStrategy;
-import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.AbstractPersistenceHandler;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 import org.slf4j.Logger;
@@ -50,7 +52,10 @@ import org.slf4j.LoggerFactory;
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 import com.spidertracks.datanucleus.mutate.BatchMutationManager;
+import com.spidertracks.datanucleus.mutate.CascadeDelete;
+import com.spidertracks.datanucleus.mutate.CassandraMutator;
 import com.spidertracks.datanucleus.mutate.ExecutionContextDelete;
+import com.spidertracks.datanucleus.utils.MappingPlan;
 
 /**
  * Persistence handler for our DN plugin
@@ -66,6 +71,13 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
     private BatchMutationManager batchManager;
     private ByteConverterContext byteContext;
 
+    /**
+     * The objects whose rows were just read by findObjects on this thread.
+     * DataNucleus validates them straight after, which doesn't need to read
+     * the rows again
+     */
+    private ThreadLocal<Set<ObjectProvider>> located = new ThreadLocal<Set<ObjectProvider>>();
+
     public CassandraPersistenceHandler(CassandraStoreManager manager) {
         this.manager = manager;
         this.batchManager = new BatchMutationManager(manager);
@@ -88,137 +100,268 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
 
         ExecutionContextDelete delete = this.batchManager.beginDelete(ec, op);
 
-        // we've already visited this object, do nothing
-        if (!delete.addDeletion(op, key, columnFamily)) {
-            return;
+        try {
+            // we've already visited this row, only end our delete
+            if (delete.addDeletion(key, columnFamily)) {
+                AbstractClassMetaData metaData = op.getClassMetaData();
+
+                manager.getDiscriminatorCache().remove(ec, metaData, key);
+
+                // delete our dependent objects as well. Only their keys are
+                // read, the objects themselves are never loaded
+                CascadeDelete cascade = new CascadeDelete(manager, ec, delete,
+                        Pelops.createSelector(manager.getPoolName()));
+
+                cascade.deleteDependents(metaData, key);
+
+                // dependents linked in memory which aren't stored yet
+                cascade.deleteLoadedDependents(op);
+            }
+
+            this.batchManager.endDelete(ec);
+
+        } catch (NucleusException ne) {
+            this.batchManager.abortDelete(ec);
+            throw ne;
+        } catch (Exception e) {
+            this.batchManager.abortDelete(ec);
+            throw new NucleusDataStoreException(e.getMessage(), e);
         }
+    }
+
+    @Override
+    public void fetchObject(ObjectProvider op, int[] fieldNumbers) {
+        // reading anything else ends the objects found together
+        located.remove();
 
-        // delete our dependent objects as well.
         AbstractClassMetaData metaData = op.getClassMetaData();
 
-        int[] fields = metaData.getAllMemberPositions();
+        Bytes key = byteContext.getRowKey(op);
+        String columnFamily = getColumnFamily(metaData);
 
-        for (int current : fields) {
-            AbstractMemberMetaData fieldMetaData = metaData
-                    .getMetaDataForManagedMemberAtAbsolutePosition(current);
+        Selector selector = Pelops.createSelector(manager.getPoolName());
 
-            // if we're a collection, delete each element
-            // recurse to delete this object if it's marked as dependent
-            if (fieldMetaData.isDependent()
-                    || (fieldMetaData.getCollection() != null && fieldMetaData
-                            .getCollection().isDependentElement())) {
+        MappingPlan plan = manager.getMappingPlan(metaData, op
+                .getExecutionContext().getClassLoaderResolver());
 
-                // here we have the field value
-                Object value = op.provideField(current);
+        List<Column> columns = selector.getColumnsFromRow(columnFamily, key,
+                plan.getPredicate(fieldNumbers), Consistency.get());
 
-                if (value == null) {
-                    continue;
-                }
+        // nothing to do
+        if (columns == null || columns.size() == 0) {
+            // check if the pk field was requested. If so, throw an
+            // exception b/c the object doesn't exist
+            pksearched(metaData, fieldNumbers);
 
-                ClassLoaderResolver clr = ec.getClassLoaderResolver();
 
-                int relationType = fieldMetaData.getRelationType(clr);
+        }
 
-                // check if this is a relationship
+        CassandraFetchFieldManager fieldManager = new CassandraFetchFieldManager(
+                columns, op, columnFamily, key, selector);
 
-                if (relationType == Relation.ONE_TO_ONE_BI
-                        || relationType == Relation.ONE_TO_ONE_UNI || relationType == Relation.MANY_TO_ONE_BI) {
-                    // Persistable object - persist the related object and
-                    // store the
-                    // identity in the cell
+        op.replaceFields(fieldNumbers, fieldManager);
 
-                    ec.deleteObjectInternal(value);
-                }
+    }
 
-                else if (relationType == Relation.MANY_TO_MANY_BI
-                        || relationType == Relation.ONE_TO_MANY_BI || relationType == Relation.ONE_TO_MANY_UNI) {
-                    // Collection/Map/Array
+    /**
+     * Load the objects for identities which aren't cached, as asked for by
+     * getObjectsById. The identities are grouped by the class they name and
+     * the rows of each class are read with one multiget, see
+     * {@link #loadObjects(ExecutionContext, AbstractClassMetaData, List, Selector)}.
+     * Identities which aren't found are returned as null, DataNucleus then
+     * looks them up one at a time.
+     * 
+     * The objects are remembered until the thread reads anything else, so
+     * validating them doesn't read their rows again.
+     * 
+     * @param ec
+     * @param ids
+     * @return The objects in the order of the identities
+     */
+    @Override
+    public Object[] findObjects(ExecutionContext ec, Object[] ids) {
+        located.remove();
 
-                    if (fieldMetaData.hasCollection()) {
+        Object[] objects = new Object[ids.length];
 
-                        for (Object element : (Collection<?>) value) {
-                            // delete the object
-                            ec.deleteObjectInternal(element);
-                        }
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
 
-                    } else if (fieldMetaData.hasMap()) {
-                        ApiAdapter adapter = ec.getApiAdapter();
+        // the positions of the identities of each class
+        Map<String, List<Integer>> classes = new LinkedHashMap<String, List<Integer>>();
 
-                        Map<?, ?> map = ((Map<?, ?>) value);
-                        Object mapValue;
+        for (int i = 0; i < ids.length; i++) {
+            // only single field identities are stored
+            if (!(ids[i] instanceof SingleFieldIdentity)) {
+                continue;
+            }
+
+            String className = ((SingleFieldIdentity) ids[i])
+                    .getTargetClassName();
+
+            List<Integer> positions = classes.get(className);
+
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                classes.put(className, positions);
+            }
 
-                        // get each element and persist it.
-                        for (Object mapKey : map.keySet()) {
+            positions.add(i);
+        }
 
-                            mapValue = map.get(mapKey);
+        Selector selector = Pelops.createSelector(manager.getPoolName());
 
-                            // handle the case if our key is a persistent
-                            // class
-                            // itself
-                            if (adapter.isPersistable(mapKey)) {
-                                ec.deleteObjectInternal(mapKey);
+        Set<ObjectProvider> found = Collections
+                .newSetFromMap(new IdentityHashMap<ObjectProvider, Boolean>());
 
-                            }
-                            // persist the value if it can be persisted
-                            if (adapter.isPersistable(mapValue)) {
-                                ec.deleteObjectInternal(mapValue);
-                            }
+        for (Map.Entry<String, List<Integer>> entry : classes.entrySet()) {
+            AbstractClassMetaData metaData = ec.getMetaDataManager()
+                    .getMetaDataForClass(entry.getKey(), clr);
 
-                        }
+            if (metaData == null) {
+                continue;
+            }
 
-                    } else if (fieldMetaData.hasArray()
-                            && fieldMetaData.isDependent()) {
-                        Object persisted = null;
+            List<Integer> positions = entry.getValue();
 
-                        for (int i = 0; i < Array.getLength(value); i++) {
-                            // persist the object
-                            persisted = Array.get(value, i);
-                            ec.deleteObjectInternal(persisted);
-                        }
-                    }
+            List<Bytes> keys = new ArrayList<Bytes>(positions.size());
 
+            for (int position : positions) {
+                keys.add(byteContext.getRowKeyForId(ids[position]));
+            }
+
+            Map<Bytes, Object> loaded = loadObjects(ec, metaData, keys,
+                    selector);
+
+            for (int i = 0; i < positions.size(); i++) {
+                Object object = loaded.get(keys.get(i));
+
+                if (object == null) {
+                    continue;
                 }
 
+                objects[positions.get(i)] = object;
+                found.add(ec.findObjectProvider(object));
             }
+        }
 
+        if (!found.isEmpty()) {
+            located.set(found);
         }
 
-        try {
-            this.batchManager.endDelete(ec);
+        return objects;
+    }
 
-        } catch (NucleusException ne) {
-            throw ne;
+    /**
+     * Materialize the objects stored in the given rows of the class's column
+     * family. All rows are read with one multiget which includes the
+     * discriminator and the default fetch group, so each object is created as
+     * the correct subclass and populated without any further reads. Rows which
+     * aren't found in the column family are looked up individually, since they
+     * may belong to a subclass stored in its own column family. Objects which
+     * can't be found at all are left out of the result.
+     * 
+     * @param ec
+     * @param metaData
+     *            The metadata of the class the rows are expected to hold
+     * @param keys
+     *            The row keys
+     * @param selector
+     * @return The objects found, keyed by row key, in the order of the keys
+     */
+    public Map<Bytes, Object> loadObjects(ExecutionContext ec,
+            AbstractClassMetaData metaData, List<Bytes> keys, Selector selector) {
+
+        Map<Bytes, Object> objects = new LinkedHashMap<Bytes, Object>(keys.size());
+
+        if (keys.size() == 0) {
+            return objects;
+        }
+
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+
+        String columnFamily = getColumnFamily(metaData);
+
+        Bytes[] columns = getDefaultFetchColumns(metaData, true, clr, ec);
+
+        Map<Bytes, List<Column>> rows;
+
+        try {
+            rows = selector.getColumnsFromRows(columnFamily, keys,
+                    Selector.newColumnsPredicate(columns), Consistency.get());
         } catch (Exception e) {
             throw new NucleusDataStoreException(e.getMessage(), e);
         }
-    }
 
-    @Override
-    public void fetchObject(ObjectProvider op, int[] fieldNumbers) {
-        AbstractClassMetaData metaData = op.getClassMetaData();
+        Bytes discriminatorColumn = getDiscriminatorColumnName(metaData);
 
-        Bytes key = byteContext.getRowKey(op);
-        String columnFamily = getColumnFamily(metaData);
+        Class<?> baseClass = clr.classForName(metaData.getFullClassName());
 
-        Selector selector = Pelops.createSelector(manager.getPoolName());
+        for (Bytes key : keys) {
+            List<Column> row = rows.get(key);
 
-        List<Column> columns = selector.getColumnsFromRow(columnFamily, key,
-                getFetchColumnList(metaData, fieldNumbers), Consistency.get());
+            if (row == null || row.size() == 0) {
+                try {
+                    Object id = byteContext.getObjectIdentity(ec, baseClass, key);
+                    objects.put(key, ec.findObject(id, false, true,
+                            metaData.getFullClassName()));
+                } catch (NucleusObjectNotFoundException nonfe) {
+                    // swallow. TODO remove the lazy reference if record
+                    // is over tombstone time
+                }
 
-        // nothing to do
-        if (columns == null || columns.size() == 0) {
-            // check if the pk field was requested. If so, throw an
-            // exception b/c the object doesn't exist
-            pksearched(metaData, fieldNumbers);
+                continue;
+            }
+
+            Class<?> targetClass = baseClass;
 
+            if (discriminatorColumn != null) {
+                String className = getClassName(ec, metaData,
+                        discriminatorColumn, row);
 
+                if (className != null) {
+                    targetClass = clr.classForName(className);
+
+                    manager.getDiscriminatorCache().put(metaData, key,
+                            className);
+                }
+            }
+
+            Object id = byteContext.getObjectIdentity(ec, targetClass, key);
+
+            objects.put(key, ec.findObject(id, new ColumnFieldValues(row,
+                    columnFamily, key, selector), targetClass, false));
         }
 
-        CassandraFetchFieldManager manager = new CassandraFetchFieldManager(
-                columns, op, columnFamily, key, selector);
+        return objects;
+    }
+
+    /**
+     * Get the class name stored in the discriminator column of the row
+     * 
+     * @param ec
+     * @param metaData
+     * @param discriminatorColumn
+     * @param row
+     * @return The class name or null if the row has no discriminator
+     */
+    private String getClassName(ExecutionContext ec,
+            AbstractClassMetaData metaData, Bytes discriminatorColumn,
+            List<Column> row) {
+
+        ByteBuffer name = discriminatorColumn.getBytes();
 
-        op.replaceFields(fieldNumbers, manager);
+        for (Column column : row) {
+            if (name.equals(column.name)) {
+                String value = byteContext.getString(Bytes
+                        .fromByteBuffer(column.value.duplicate()));
 
+                return org.datanucleus.metadata.MetaDataUtils
+                        .getClassNameFromDiscriminatorValue(value,
+                                metaData.getDiscriminatorMetaData(), ec);
+            }
+        }
+
+        return null;
     }
 
     /**
@@ -252,19 +395,45 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
 
     @Override
     public void insertObject(ObjectProvider op) {
-        // just delegate to update. They both perform the same logic
-        updateObject(op, op.getClassMetaData().getAllMemberPositions());
-
+        writeObject(op, op.getClassMetaData().getAllMemberPositions(), true);
     }
 
     @Override
     public void locateObject(ObjectProvider op) {
+        Set<ObjectProvider> found = located.get();
+
+        // its row was just read by findObjects, so it exists
+        if (found != null && found.remove(op)) {
+            if (found.isEmpty()) {
+                located.remove();
+            }
+
+            return;
+        }
+
         fetchObject(op, op.getClassMetaData().getAllMemberPositions());
 
     }
 
     @Override
     public void updateObject(ObjectProvider op, int[] fieldNumbers) {
+        // only the dirty fields are passed, the row and its discriminator
+        // already exist
+        writeObject(op, fieldNumbers, false);
+    }
+
+    /**
+     * Write the given fields of the object. The discriminator is only written
+     * when the row is inserted since it can't change afterwards
+     * 
+     * @param op
+     * @param fieldNumbers
+     *            The fields to write
+     * @param insert
+     *            True if the object is being inserted
+     */
+    private void writeObject(ObjectProvider op, int[] fieldNumbers,
+            boolean insert) {
         this.manager.assertReadOnlyForUpdateOfObject(op);
 
         AbstractClassMetaData metaData = op.getClassMetaData();
@@ -272,47 +441,54 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler
         ExecutionContext ec = op.getExecutionContext();
 
         // signal a write is about to start
-        Mutator mutator = this.batchManager.beginWrite(ec).getMutator();
-        Selector selector = Pelops.createSelector(manager.getPoolName());
+        CassandraMutator mutator = this.batchManager.beginWrite(ec).getMutator();
 
+        try {
+            Selector selector = Pelops.createSelector(manager.getPoolName());
 
-        Bytes key = byteContext.getRowKey(op);
-        String columnFamily = getColumnFamily(metaData);
 
-        // Write our all our primary object data
-        CassandraInsertFieldManager manager = new CassandraInsertFieldManager(
-                selector, mutator, op, columnFamily, key);
+            Bytes key = byteContext.getRowKey(op);
+            String columnFamily = getColumnFamily(metaData);
 
-        op.provideFields(metaData.getAllMemberPositions(), manager);
+            // Write our all our primary object data
+            CassandraInsertFieldManager fieldManager = new CassandraInsertFieldManager(
+                    selector, mutator, op, columnFamily, key, insert);
 
-        // if we have a discriminator, write the value
-        if (metaData.hasDiscriminatorStrategy()) {
-            final DiscriminatorMetaData discriminator = metaData.getDiscriminatorMetaData();
+            op.provideFields(fieldNumbers, fieldManager);
 
-            Bytes colName = getDiscriminatorColumnName(discriminator);
+            // if we have a discriminator, write the value
+            if (insert && metaData.hasDiscriminatorStrategy()) {
+                final DiscriminatorMetaData discriminator = metaData.getDiscriminatorMetaData();
 
-            // DN doesn't provide discrminator value if the strategy is CLASS_NAME.
-            final String value = (discriminator.getStrategy() == DiscriminatorStrategy.CLASS_NAME)
-                ? metaData.getFullClassName()
-                : discriminator.getValue();
+                Bytes colName = getDiscriminatorColumnName(discriminator);
 
-            LOGGER.debug("Object [{}] has a discriminator, it is [{}].", key.toUTF8(), value);
-            
-            Bytes byteValue = byteContext.getBytes(value);
-            
-            mutator.writeColumn(columnFamily, key, mutator.newColumn(colName, byteValue));
-        } else {
-            LOGGER.debug("Object [{}] has no discriminator.", key.toUTF8());
-        }
+                // DN doesn't provide discrminator value if the strategy is CLASS_NAME.
+                final String value = (discriminator.getStrategy() == DiscriminatorStrategy.CLASS_NAME)
+                    ? metaData.getFullClassName()
+                    : discriminator.getValue();
 
-        try {
+                LOGGER.debug("Object [{}] has a discriminator, it is [{}].", key.toUTF8(), value);
+
+                Bytes byteValue = byteContext.getBytes(value);
+
+                mutator.writeColumn(columnFamily, key, mutator.newColumn(colName, byteValue));
+            } else if (insert) {
+                LOGGER.debug("Object [{}] has no discriminator.", key.toUTF8());
+            }
 
             this.batchManager.endWrite(ec);
 
+            // only known to be stored once the write is sent and committed
+            if (insert && metaData.hasDiscriminatorStrategy()) {
+                manager.getDiscriminatorCache().putOnCommit(ec, metaData,
+                        key, metaData.getFullClassName());
+            }
+
         } catch (NucleusException ne) {
+            this.batchManager.abortWrite(ec);
             throw ne;
         } catch (Exception e) {
-
+            this.batchManager.abortWrite(ec);
             throw new NucleusDataStoreException(e.getMessage(), e);
         }
 
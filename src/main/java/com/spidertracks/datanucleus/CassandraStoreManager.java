@@ -21,12 +21,21 @@ package com.spidertracks.datanucleus;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDescriminatorColumn;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.OMFContext;
@@ -43,8 +52,18 @@ import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.GroupCommitter;
+import com.spidertracks.datanucleus.mutate.MutationDispatcher;
+import com.spidertracks.datanucleus.mutate.MutationStatistics;
+import com.spidertracks.datanucleus.mutate.WriteBehindQueue;
+import com.spidertracks.datanucleus.query.runtime.IndexStatistics;
+import com.spidertracks.datanucleus.query.runtime.QueryPlanCache;
+import com.spidertracks.datanucleus.query.runtime.RangeScanner;
 import com.spidertracks.datanucleus.serialization.JavaSerializer;
 import com.spidertracks.datanucleus.serialization.Serializer;
+import com.spidertracks.datanucleus.utils.DiscriminatorCache;
+import com.spidertracks.datanucleus.utils.MappingPlan;
+import com.spidertracks.datanucleus.utils.NamedThreadFactory;
 
 public class CassandraStoreManager extends AbstractStoreManager {
 
@@ -58,6 +77,35 @@ public class CassandraStoreManager extends AbstractStoreManager {
     private static final String SERIALIZER = "com.spidertracks.cassandra.serializer";
     private static final String BYTEMAPPER = "com.spidertracks.cassandra.bytemapper";
     private static final String CHECKSLEEPTIME = "com.spidertracks.cassandra.checksleep";
+    private static final String PREFETCHTHREADS = "com.spidertracks.cassandra.prefetchThreads";
+    private static final String DISCRIMINATORCACHESIZE = "com.spidertracks.cassandra.discriminatorCacheSize";
+    private static final String BATCHSIZE = "com.spidertracks.cassandra.batchSize";
+    private static final String BATCHBYTES = "com.spidertracks.cassandra.batchBytes";
+    private static final String MUTATIONTHREADS = "com.spidertracks.cassandra.mutationThreads";
+    private static final String COALESCEWRITES = "com.spidertracks.cassandra.coalesceWrites";
+    private static final String GROUPCOMMITWINDOW = "com.spidertracks.cassandra.groupCommitWindow";
+    private static final String GROUPCOMMITSIZE = "com.spidertracks.cassandra.groupCommitSize";
+    private static final String WRITEBEHIND = "com.spidertracks.cassandra.writeBehind";
+    private static final String WRITEBEHINDQUEUESIZE = "com.spidertracks.cassandra.writeBehindQueueSize";
+    private static final String WRITEBEHINDTHREADS = "com.spidertracks.cassandra.writeBehindThreads";
+    private static final String SCANTHREADS = "com.spidertracks.cassandra.scanThreads";
+    private static final String SCANSPLITSIZE = "com.spidertracks.cassandra.scanSplitSize";
+    private static final String QUERYTHREADS = "com.spidertracks.cassandra.queryThreads";
+    private static final String SELECTIVITYRATIO = "com.spidertracks.cassandra.selectivityRatio";
+    private static final String QUERYPLANCACHESIZE = "com.spidertracks.cassandra.queryPlanCacheSize";
+
+    private static final int DEFAULT_PREFETCH_THREADS = 4;
+    private static final int DEFAULT_DISCRIMINATOR_CACHE_SIZE = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_MUTATION_THREADS = 4;
+    private static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_WRITE_BEHIND_THREADS = 2;
+    private static final int DEFAULT_SCAN_THREADS = 4;
+    private static final int DEFAULT_SCAN_SPLIT_SIZE = 64 * 1024;
+    private static final int DEFAULT_QUERY_THREADS = 8;
+    private static final int DEFAULT_SELECTIVITY_RATIO = 4;
+    private static final int DEFAULT_QUERY_PLAN_CACHE_SIZE = 1000;
     
     
     private boolean autoCreateSchema = false;
@@ -67,11 +115,36 @@ public class CassandraStoreManager extends AbstractStoreManager {
     private int poolTimeBetweenEvictionRunsMillis;
     private int poolMinEvictableIdleTimeMillis;
     private long checkSleepTime;
+    private boolean coalesceWrites;
 
     private ConnectionFactoryImpl connectionFactory;
 
     private ByteConverterContext byteConverterContext;
 
+    private ExecutorService prefetchExecutor;
+
+    private ExecutorService mutationExecutor;
+
+    private ExecutorService scanExecutor;
+
+    private RangeScanner rangeScanner;
+
+    private ExecutorService queryExecutor;
+
+    private IndexStatistics indexStatistics;
+
+    private QueryPlanCache queryPlanCache;
+
+    private MutationDispatcher mutationDispatcher;
+
+    private GroupCommitter groupCommitter;
+
+    private WriteBehindQueue writeBehindQueue;
+
+    private DiscriminatorCache discriminatorCache;
+
+    private ConcurrentMap<AbstractClassMetaData, MappingPlan> mappingPlans = new ConcurrentHashMap<AbstractClassMetaData, MappingPlan>();
+
     /**
      * Constructor.
      * 
@@ -142,8 +215,134 @@ public class CassandraStoreManager extends AbstractStoreManager {
             poolMinEvictableIdleTimeMillis = 30 * 1000; // default, 30 secs
         }
 
+        int prefetchThreads = conf.getIntProperty(PREFETCHTHREADS);
+
+        if (prefetchThreads == 0) {
+            prefetchThreads = DEFAULT_PREFETCH_THREADS;
+        }
+
+        prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads,
+                new NamedThreadFactory("cassandra-prefetch"));
+
+        int discriminatorCacheSize = conf.getIntProperty(DISCRIMINATORCACHESIZE);
+
+        if (discriminatorCacheSize == 0) {
+            discriminatorCacheSize = DEFAULT_DISCRIMINATOR_CACHE_SIZE;
+        }
+
+        discriminatorCache = new DiscriminatorCache(discriminatorCacheSize);
+
+        // hold the writes of a transaction until it's flushed or committed
+        coalesceWrites = conf.getBooleanProperty(COALESCEWRITES);
+
         connectionFactory.keyspaceComplete(autoCreateSchema);
 
+        // the maximum number of mutations and estimated bytes sent in a single
+        // batch_mutate
+        int batchSize = conf.getIntProperty(BATCHSIZE);
+
+        if (batchSize == 0) {
+            batchSize = DEFAULT_BATCH_SIZE;
+        }
+
+        int batchBytes = conf.getIntProperty(BATCHBYTES);
+
+        if (batchBytes == 0) {
+            batchBytes = DEFAULT_BATCH_BYTES;
+        }
+
+        int mutationThreads = conf.getIntProperty(MUTATIONTHREADS);
+
+        if (mutationThreads == 0) {
+            mutationThreads = DEFAULT_MUTATION_THREADS;
+        }
+
+        mutationExecutor = Executors.newFixedThreadPool(mutationThreads,
+                new NamedThreadFactory("cassandra-mutation"));
+
+        mutationDispatcher = new MutationDispatcher(getPoolName(), batchSize,
+                batchBytes, mutationExecutor);
+
+        // group the small batches of concurrent writers, off unless a window
+        // is given
+        int groupCommitWindow = conf.getIntProperty(GROUPCOMMITWINDOW);
+
+        if (groupCommitWindow > 0) {
+            int groupCommitSize = conf.getIntProperty(GROUPCOMMITSIZE);
+
+            if (groupCommitSize == 0) {
+                groupCommitSize = batchSize;
+            }
+
+            groupCommitter = new GroupCommitter(mutationDispatcher,
+                    groupCommitWindow, groupCommitSize);
+
+            mutationDispatcher.setGroupCommitter(groupCommitter);
+        }
+
+        // send writes from background threads instead of the writer's
+        if (conf.getBooleanProperty(WRITEBEHIND)) {
+            int queueSize = conf.getIntProperty(WRITEBEHINDQUEUESIZE);
+
+            if (queueSize == 0) {
+                queueSize = DEFAULT_WRITE_BEHIND_QUEUE_SIZE;
+            }
+
+            int writeBehindThreads = conf.getIntProperty(WRITEBEHINDTHREADS);
+
+            if (writeBehindThreads == 0) {
+                writeBehindThreads = DEFAULT_WRITE_BEHIND_THREADS;
+            }
+
+            writeBehindQueue = new WriteBehindQueue(queueSize,
+                    writeBehindThreads);
+        }
+
+        // the threads scanning the token ranges of unindexed queries
+        int scanThreads = conf.getIntProperty(SCANTHREADS);
+
+        if (scanThreads == 0) {
+            scanThreads = DEFAULT_SCAN_THREADS;
+        }
+
+        int scanSplitSize = conf.getIntProperty(SCANSPLITSIZE);
+
+        if (scanSplitSize == 0) {
+            scanSplitSize = DEFAULT_SCAN_SPLIT_SIZE;
+        }
+
+        scanExecutor = Executors.newFixedThreadPool(scanThreads,
+                new NamedThreadFactory("cassandra-scan"));
+
+        rangeScanner = new RangeScanner(getPoolName(), getKeyspace(),
+                scanExecutor, scanThreads, scanSplitSize);
+
+        // the threads running the index queries of AND and OR queries
+        int queryThreads = conf.getIntProperty(QUERYTHREADS);
+
+        if (queryThreads == 0) {
+            queryThreads = DEFAULT_QUERY_THREADS;
+        }
+
+        queryExecutor = Executors.newFixedThreadPool(queryThreads,
+                new NamedThreadFactory("cassandra-query"));
+
+        int selectivityRatio = conf.getIntProperty(SELECTIVITYRATIO);
+
+        if (selectivityRatio == 0) {
+            selectivityRatio = DEFAULT_SELECTIVITY_RATIO;
+        }
+
+        indexStatistics = new IndexStatistics(selectivityRatio);
+
+        int queryPlanCacheSize = conf.getIntProperty(QUERYPLANCACHESIZE);
+
+        if (queryPlanCacheSize == 0) {
+            queryPlanCacheSize = DEFAULT_QUERY_PLAN_CACHE_SIZE;
+        }
+
+        queryPlanCache = new QueryPlanCache(queryPlanCacheSize);
+
         if (autoCreateTables || autoCreateColumns) {
             connectionFactory.cfComplete(autoCreateTables, autoCreateColumns);
         }
@@ -169,6 +368,20 @@ public class CassandraStoreManager extends AbstractStoreManager {
      */
     public void close() {
         // omfContext.getMetaDataManager().deregisterListener(metadataListener);
+        prefetchExecutor.shutdownNow();
+        scanExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+
+        // queued and grouped writes still need the mutation executor
+        if (writeBehindQueue != null) {
+            writeBehindQueue.close();
+        }
+
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+
+        mutationExecutor.shutdown();
         super.close();
     }
 
@@ -227,6 +440,37 @@ public class CassandraStoreManager extends AbstractStoreManager {
         return checkSleepTime;
     }
 
+    /**
+     * @return the dispatcher all mutations are sent with
+     */
+    public MutationDispatcher getMutationDispatcher() {
+        return mutationDispatcher;
+    }
+
+    /**
+     * @return the queue writes are sent from in the background, or null if
+     *         writes are sent by the writing thread
+     */
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    /**
+     * @return the counters of the mutations sent to Cassandra, for tuning the
+     *         batch size limits
+     */
+    public MutationStatistics getMutationStatistics() {
+        return mutationDispatcher.getStatistics();
+    }
+
+    /**
+     * @return True if the writes of a transaction are sent in one batch when
+     *         it's flushed or committed
+     */
+    public boolean isCoalesceWrites() {
+        return coalesceWrites;
+    }
+
 
 
     /**
@@ -249,6 +493,72 @@ public class CassandraStoreManager extends AbstractStoreManager {
         return byteConverterContext;
     }
     
+    /**
+     * Get the mapping plan for the class, building it on first use
+     *
+     * @param metaData
+     * @param clr
+     * @return
+     */
+    public MappingPlan getMappingPlan(AbstractClassMetaData metaData,
+            ClassLoaderResolver clr) {
+        MappingPlan plan = mappingPlans.get(metaData);
+
+        if (plan != null) {
+            return plan;
+        }
+
+        plan = new MappingPlan(metaData, clr, byteConverterContext);
+
+        MappingPlan existing = mappingPlans.putIfAbsent(metaData, plan);
+
+        return existing != null ? existing : plan;
+    }
+
+    /**
+     * @return the scanner for queries which read every row of a column family
+     */
+    public RangeScanner getRangeScanner() {
+        return rangeScanner;
+    }
+
+    /**
+     * @return the executor the index queries of a query tree run on
+     */
+    public ExecutorService getQueryExecutor() {
+        return queryExecutor;
+    }
+
+    /**
+     * @return the statistics the index queries are planned with
+     */
+    public IndexStatistics getIndexStatistics() {
+        return indexStatistics;
+    }
+
+    /**
+     * @return the compiled queries, keyed by their filter
+     */
+    public QueryPlanCache getQueryPlanCache() {
+        return queryPlanCache;
+    }
+
+    /**
+     * @return the executor used to read the next page of relationship columns
+     *         in the background
+     */
+    public ExecutorService getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * @return the persistence handler, for batched relationship lookups with
+     *         {@link CassandraPersistenceHandler#loadObjects(ExecutionContext, AbstractClassMetaData, List, Selector)}
+     */
+    public CassandraPersistenceHandler getCassandraPersistenceHandler() {
+        return (CassandraPersistenceHandler) persistenceHandler2;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -276,82 +586,199 @@ public class CassandraStoreManager extends AbstractStoreManager {
 
         Bytes key = byteConverterContext.getRowKeyForId(id);
 
-        return findObject(key, metaData, clr, ec, id);
+        String cached = discriminatorCache.get(metaData, key);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        String className = findObject(key, metaData, clr, ec);
+
+        if (className != null) {
+            discriminatorCache.put(metaData, key, className);
+        }
+
+        return className;
+
+    }
 
+    /**
+     * @return the cache of class names stored in each row
+     */
+    public DiscriminatorCache getDiscriminatorCache() {
+        return discriminatorCache;
     }
 
+    /**
+     * Find the class stored in the row. The column family of the class and the
+     * column families of all it's decendents with their own table are probed
+     * at the same time, the first one in inheritance order with a
+     * discriminator wins.
+     */
     private String findObject(Bytes key, AbstractClassMetaData metaData,
-            ClassLoaderResolver clr, ExecutionContext ec, Object id) {
+            ClassLoaderResolver clr, ExecutionContext ec) {
 
-        Selector selector = Pelops.createSelector(getPoolName());
+        List<AbstractClassMetaData> candidates = new ArrayList<AbstractClassMetaData>();
+        candidates.add(metaData);
 
-        // if we have a discriminator, fetch the discriminator column only
-        // and see if it's equal
-        // to the class provided by the op
+        Set<String> columnFamilies = new HashSet<String>();
+        columnFamilies.add(getColumnFamily(metaData));
 
-        List<Column> columns = null;
+        addDecendents(metaData, clr, ec, candidates, columnFamilies);
 
-        try {
+        ConsistencyLevel consistency = Consistency.get();
 
-            columns = selector.getColumnsFromRow(getColumnFamily(metaData),
-                    key, getDescriminatorColumn(metaData), Consistency.get());
+        if (candidates.size() == 1) {
+            return getClassName(
+                    getStoredDiscriminator(key, metaData, consistency),
+                    metaData, ec);
+        }
 
-        } catch (Exception e) {
+        List<Future<String>> probes = new ArrayList<Future<String>>(candidates.size());
+
+        // the probes only read, the execution context stays on this thread
+        for (AbstractClassMetaData candidate : candidates) {
+            probes.add(prefetchExecutor.submit(new DiscriminatorProbe(key,
+                    candidate, consistency)));
+        }
+
+        try {
+            for (int i = 0; i < probes.size(); i++) {
+                String value = probes.get(i).get();
+
+                if (value != null) {
+                    return getClassName(value, candidates.get(i), ec);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new NucleusDataStoreException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new NucleusDataStoreException(e.getCause().getMessage(),
+                    e.getCause());
+        } finally {
+            for (Future<String> probe : probes) {
+                probe.cancel(false);
+            }
         }
 
-        // what do we do if no descriminator is found and one should be
-        // present?
-        if (columns == null || columns.size() != 1) {
+        // nothing found in this class or it's children return null
+        return null;
+    }
 
-            // now check if we have subclasses from the given metaData, if we do
-            // recurse to a child class and search for the object
-            String[] decendents = ec.getMetaDataManager()
-                    .getSubclassesForClass(metaData.getFullClassName(), true);
+    /**
+     * Add the decendents of the class which can hold the row in their own
+     * column family, in inheritance order. Decendents with a new table are
+     * added, and both they and decendents with a subclass table are recursed
+     * into since one of their children may have a table of it's own.
+     * 
+     * @param metaData
+     * @param clr
+     * @param ec
+     * @param candidates
+     *            The classes to probe
+     * @param columnFamilies
+     *            The column families already probed
+     */
+    private void addDecendents(AbstractClassMetaData metaData,
+            ClassLoaderResolver clr, ExecutionContext ec,
+            List<AbstractClassMetaData> candidates, Set<String> columnFamilies) {
 
-            // it has decendents, only recurse to them if their inheritance
-            // strategy is a new table
-            if (decendents == null || decendents.length == 0) {
-                return null;
-            }
+        String[] decendents = ec.getMetaDataManager().getSubclassesForClass(
+                metaData.getFullClassName(), false);
 
-            AbstractClassMetaData decendentMetaData = null;
+        if (decendents == null) {
+            return;
+        }
 
-            for (String decendent : decendents) {
-                decendentMetaData = ec.getMetaDataManager()
-                        .getMetaDataForClass(decendent, clr);
+        for (String decendent : decendents) {
+            AbstractClassMetaData decendentMetaData = ec.getMetaDataManager()
+                    .getMetaDataForClass(decendent, clr);
 
-                InheritanceStrategy strategy = decendentMetaData
-                        .getInheritanceMetaData().getStrategy();
+            InheritanceStrategy strategy = decendentMetaData
+                    .getInheritanceMetaData().getStrategy();
 
-                // either the subclass has it's own table, or one if it's
-                // children may, recurse to find the object
-                if (InheritanceStrategy.NEW_TABLE.equals(strategy)
-                        || InheritanceStrategy.SUBCLASS_TABLE.equals(strategy)) {
-                    String result = findObject(key, decendentMetaData, clr, ec,
-                            id);
+            if (InheritanceStrategy.NEW_TABLE.equals(strategy)) {
+                String columnFamily = getColumnFamily(decendentMetaData);
 
-                    // we found a subclass with the descriminator stored, return
-                    // it
-                    if (result != null) {
-                        return result;
-                    }
+                if (columnFamily != null
+                        && getDescriminatorColumn(decendentMetaData) != null
+                        && columnFamilies.add(columnFamily)) {
+                    candidates.add(decendentMetaData);
                 }
+            } else if (!InheritanceStrategy.SUBCLASS_TABLE.equals(strategy)) {
+                continue;
             }
 
-            // nothing found in this class or it's children return null
-            return null;
+            addDecendents(decendentMetaData, clr, ec, candidates,
+                    columnFamilies);
+        }
+    }
+
+    /**
+     * Read the discriminator column of the row in the class's column family.
+     * Only the store is used, so this is safe to call from any thread
+     * 
+     * @return The discriminator value or null if the row has none
+     */
+    private String getStoredDiscriminator(Bytes key,
+            AbstractClassMetaData metaData, ConsistencyLevel consistency) {
+
+        Selector selector = Pelops.createSelector(getPoolName());
+
+        List<Column> columns = null;
+
+        try {
+
+            columns = selector.getColumnsFromRow(getColumnFamily(metaData),
+                    key, getDescriminatorColumn(metaData), consistency);
+
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
 
+        if (columns == null || columns.size() != 1) {
+            return null;
         }
 
-        String descriminatorValue = byteConverterContext.getString(Bytes.fromByteArray(columns.get(0).getValue()));
+        return byteConverterContext.getString(Bytes.fromByteArray(columns.get(0).getValue()));
+    }
+
+    /**
+     * Resolve the class for a stored discriminator value
+     * 
+     * @return The class name or null if there is no value
+     */
+    private String getClassName(String descriminatorValue,
+            AbstractClassMetaData metaData, ExecutionContext ec) {
+        if (descriminatorValue == null) {
+            return null;
+        }
 
-        String className = org.datanucleus.metadata.MetaDataUtils
+        return org.datanucleus.metadata.MetaDataUtils
                 .getClassNameFromDiscriminatorValue(descriminatorValue,
                         metaData.getDiscriminatorMetaData(), ec);
+    }
+
+    /**
+     * Reads the discriminator value of a row in the background
+     */
+    private class DiscriminatorProbe implements Callable<String> {
 
-        // now recursively load the search for our class
+        private Bytes key;
+        private AbstractClassMetaData metaData;
+        private ConsistencyLevel consistency;
 
-        return className;
+        private DiscriminatorProbe(Bytes key, AbstractClassMetaData metaData,
+                ConsistencyLevel consistency) {
+            this.key = key;
+            this.metaData = metaData;
+            this.consistency = consistency;
+        }
+
+        @Override
+        public String call() throws Exception {
+            return getStoredDiscriminator(key, metaData, consistency);
+        }
     }
 }
@@ -0,0 +1,88 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus;
+
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.FetchPlan;
+import org.datanucleus.store.FieldValues2;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+/**
+ * Populates an object provider from columns that have already been read from
+ * Cassandra, such as the rows returned by an index scan. This allows objects
+ * to be materialized without issuing another get_slice per row.
+ *
+ * Only the default fetch group of the object's class is populated, anything
+ * else is loaded lazily by the persistence handler.
+ *
+ * @author Todd Nine
+ *
+ */
+public class ColumnFieldValues implements FieldValues2 {
+
+    private List<Column> columns;
+    private String columnFamily;
+    private Bytes rowKey;
+    private Selector selector;
+
+    /**
+     *
+     * @param columns
+     *            The columns read for the row
+     * @param columnFamily
+     *            The column family the row was read from
+     * @param rowKey
+     *            The key of the row
+     * @param selector
+     *            The selector to use when reading relationship columns
+     */
+    public ColumnFieldValues(List<Column> columns, String columnFamily,
+            Bytes rowKey, Selector selector) {
+        this.columns = columns;
+        this.columnFamily = columnFamily;
+        this.rowKey = rowKey;
+        this.selector = selector;
+    }
+
+    @Override
+    public void fetchFields(ObjectProvider op) {
+        op.replaceFields(op.getClassMetaData().getDFGMemberPositions(),
+                createFieldManager(op));
+    }
+
+    @Override
+    public void fetchNonLoadedFields(ObjectProvider op) {
+        op.replaceNonLoadedFields(op.getClassMetaData()
+                .getDFGMemberPositions(), createFieldManager(op));
+    }
+
+    @Override
+    public FetchPlan getFetchPlanForLoading() {
+        return null;
+    }
+
+    private CassandraFetchFieldManager createFieldManager(ObjectProvider op) {
+        return new CassandraFetchFieldManager(columns, op, columnFamily,
+                rowKey, selector);
+    }
+
+}
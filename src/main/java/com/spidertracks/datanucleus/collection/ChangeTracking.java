@@ -0,0 +1,83 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.List;
+
+import org.datanucleus.store.ObjectProvider;
+
+/**
+ * A relationship which records what was added and removed since it was last
+ * written, so only the difference needs to be persisted. For maps the added
+ * and removed elements are {@link java.util.Map.Entry} instances.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface ChangeTracking {
+
+    /**
+     * @param owner
+     * @param fieldNumber
+     * @return True if the changes recorded apply to the given field. A tracked
+     *         relationship assigned to another field or object has to be
+     *         written in full
+     */
+    public boolean isTracking(ObjectProvider owner, int fieldNumber);
+
+    /**
+     * @return True if the relationship was cleared, in which case everything
+     *         stored has to be replaced
+     */
+    public boolean isCleared();
+
+    /**
+     * @return The elements added since the last write
+     */
+    public List<Object> getAdded();
+
+    /**
+     * @return The elements removed since the last write
+     */
+    public List<Object> getRemoved();
+
+    /**
+     * @return The elements which may not be stored yet. Once all elements are
+     *         loaded this is every element, otherwise it's the elements added
+     *         since the last commit. Never reads from Cassandra
+     */
+    public List<Object> getUnstored();
+
+    /**
+     * The recorded changes have been written. Changes made in a transaction
+     * are kept until it ends, so they can be recorded again if it rolls back
+     */
+    public void changesWritten();
+
+    /**
+     * Forget the written changes once they have been committed
+     */
+    public void resetChanges();
+
+    /**
+     * The written changes have been rolled back, record them again so they
+     * are written with the next update
+     */
+    public void restoreChanges();
+
+}
@@ -0,0 +1,258 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * Pages through the relationship columns of an owner column. Each call to
+ * {@link #nextPage()} returns the next slice of at most pageSize columns. When
+ * an executor is given, {@link #prefetch()} starts reading the next page in
+ * the background. Callers invoke it once they reach the end of the current
+ * page, so pages are only read for iterations which actually get there.
+ *
+ * The consistency level of the thread creating the pager is used for all
+ * reads, including the ones performed in the background.
+ *
+ * @author Todd Nine
+ *
+ */
+public class ColumnSlicePager extends ExternalEntity {
+
+    private int pageSize;
+
+    private boolean reversed;
+
+    private ExecutorService executor;
+
+    private ConsistencyLevel consistency;
+
+    private ByteBuffer lastColumn;
+
+    private boolean exhausted;
+
+    private Future<Page> prefetched;
+
+    /**
+     *
+     * @param selector
+     * @param context
+     * @param ownerColumnFamily
+     * @param rowKey
+     * @param ownerColumn
+     * @param pageSize
+     *            The maximum number of columns to return per page
+     * @param reversed
+     *            True if the columns should be returned last to first
+     * @param executor
+     *            The executor to prefetch pages with, may be null
+     */
+    public ColumnSlicePager(Selector selector, ByteConverterContext context,
+            String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn,
+            int pageSize, boolean reversed, ExecutorService executor) {
+        super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
+        this.pageSize = pageSize;
+        this.reversed = reversed;
+        this.executor = executor;
+        this.consistency = Consistency.get();
+    }
+
+    /**
+     * @return True if there may be more columns to read
+     */
+    public boolean hasMore() {
+        return !exhausted;
+    }
+
+    /**
+     * Stop paging. Any outstanding prefetch is abandoned
+     */
+    public void discard() {
+        exhausted = true;
+
+        if (prefetched != null) {
+            prefetched.cancel(false);
+            prefetched = null;
+        }
+    }
+
+    /**
+     * Get the next page of columns. Returns an empty list once all columns
+     * have been read
+     *
+     * @return
+     */
+    public List<Column> nextPage() {
+        if (exhausted) {
+            return Collections.emptyList();
+        }
+
+        Page page;
+
+        if (prefetched != null) {
+            page = waitFor(prefetched);
+            prefetched = null;
+        } else {
+            page = readPage(lastColumn);
+        }
+
+        exhausted = page.last;
+
+        if (page.columns.size() > 0) {
+            lastColumn = page.columns.get(page.columns.size() - 1).name;
+        }
+
+        return page.columns;
+    }
+
+    /**
+     * Start reading the next page in the background, if there is one and an
+     * executor was given. The following call to {@link #nextPage()} returns
+     * it
+     */
+    public void prefetch() {
+        if (exhausted || executor == null || prefetched != null) {
+            return;
+        }
+
+        final ByteBuffer start = lastColumn;
+
+        prefetched = executor.submit(new Callable<Page>() {
+
+            @Override
+            public Page call() throws Exception {
+                return readPage(start);
+            }
+        });
+    }
+
+    /**
+     * Count all the relationship columns with get_count. The columns
+     * themselves are not read
+     *
+     * @return
+     */
+    public int count() {
+        try {
+            return selector.getColumnCount(ownerColumnFamily, rowKey,
+                    createPredicate(null, Integer.MAX_VALUE), consistency);
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the page of columns after the given column name. If start is null,
+     * the page is read from the beginning of the range
+     *
+     * @param start
+     * @return
+     */
+    private Page readPage(ByteBuffer start) {
+
+        // slice starts are inclusive, read one more and skip the column we've
+        // already returned
+        int count = start == null ? pageSize : pageSize + 1;
+
+        List<Column> columns;
+
+        try {
+            columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
+                    createPredicate(start, count), consistency);
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+
+        boolean last = columns.size() < count;
+
+        if (start != null && columns.size() > 0
+                && start.equals(columns.get(0).name)) {
+            columns = columns.subList(1, columns.size());
+        }
+
+        return new Page(columns, last);
+    }
+
+    private SlicePredicate createPredicate(ByteBuffer start, int count) {
+        SliceRange range = new SliceRange();
+
+        if (reversed) {
+            range.setStart(start == null ? createBoundary(DELIM_MAX) : start);
+            range.setFinish(createBoundary(DELIM_MIN));
+        } else {
+            range.setStart(start == null ? createBoundary(DELIM_MIN) : start);
+            range.setFinish(createBoundary(DELIM_MAX));
+        }
+
+        range.setReversed(reversed);
+        range.setCount(count);
+
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.setSlice_range(range);
+
+        return predicate;
+    }
+
+    private Page waitFor(Future<Page> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof NucleusDataStoreException) {
+                throw (NucleusDataStoreException) cause;
+            }
+
+            throw new NucleusDataStoreException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A single page read from Cassandra
+     */
+    private static class Page {
+        private List<Column> columns;
+        private boolean last;
+
+        private Page(List<Column> columns, boolean last) {
+            this.columns = columns;
+            this.last = last;
+        }
+    }
+
+}
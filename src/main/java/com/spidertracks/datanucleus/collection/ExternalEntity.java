@@ -19,10 +19,10 @@ package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
+import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
@@ -73,6 +73,95 @@ public class ExternalEntity {
         this.rowKey = rowKey;
     }
 
-    
+    /**
+     * Create a pager over all relationship columns of the owner column
+     * 
+     * @param pageSize
+     *            The number of columns to read per page
+     * @param reversed
+     *            True if the columns should be read from last to first
+     * @param executor
+     *            The executor to prefetch pages with. If null no prefetching
+     *            is performed
+     * @return
+     */
+    public ColumnSlicePager newPager(int pageSize, boolean reversed,
+            ExecutorService executor) {
+        return new ColumnSlicePager(selector, context, ownerColumnFamily,
+                rowKey, ownerColumn, pageSize, reversed, executor);
+    }
+
+    /**
+     * Check if the relationship column of the given element exists, with a
+     * slice of just that column
+     * 
+     * @param elementName
+     *            The part of the column name after the owner column and
+     *            delimiter
+     * @return
+     */
+    public boolean hasElement(Bytes elementName) {
+        return getElementColumn(elementName) != null;
+    }
+
+    /**
+     * Read the relationship column of the given element, with a slice of just
+     * that column
+     * 
+     * @param elementName
+     *            The part of the column name after the owner column and
+     *            delimiter
+     * @return The column or null if it doesn't exist
+     */
+    public Column getElementColumn(Bytes elementName) {
+        ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 1
+                + elementName.length());
+        buffer.put(ownerColumn.getBytes().duplicate());
+        buffer.put(DELIM_MIN);
+        buffer.put(elementName.getBytes().duplicate());
+        buffer.flip();
+
+        List<Column> columns;
+
+        try {
+            columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
+                    Selector.newColumnsPredicate(Bytes.fromByteBuffer(buffer)),
+                    Consistency.get());
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+
+        return columns.size() > 0 ? columns.get(0) : null;
+    }
+
+    /**
+     * Create the column name which bounds all relationship columns of the
+     * owner column. DELIM_MIN is the start of the range and DELIM_MAX the end
+     * 
+     * @param delimByte
+     * @return
+     */
+    protected ByteBuffer createBoundary(byte delimByte) {
+        ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 1);
+        buffer.mark();
+        buffer.put(ownerColumn.getBytes().duplicate());
+        buffer.put(delimByte);
+        buffer.reset();
+
+        return buffer;
+    }
+
+    /**
+     * Get the part of a relationship column's name after the owner column and
+     * delimiter. The column itself is left untouched.
+     * 
+     * @param column
+     * @return
+     */
+    protected ByteBuffer getElementName(Column column) {
+        ByteBuffer buffer = column.name.duplicate();
+        buffer.position(buffer.position() + ownerColumn.length() + 1);
+        return buffer;
+    }
 
 }
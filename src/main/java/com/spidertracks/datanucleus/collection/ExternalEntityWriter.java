@@ -18,19 +18,17 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
-import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.convert.BufferPool;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.convert.ConverterUtils;
+import com.spidertracks.datanucleus.mutate.CassandraMutator;
 
 /**
  * Class that allows us to perform basic I/O ops on external entities
@@ -40,114 +38,71 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  */
 public class ExternalEntityWriter extends ExternalEntity {
 
-    private static final int ITERATION_SIZE = 100;
-
-    private Set<Bytes> savedColumns;
+    private static final int DELETE_PAGE_SIZE = 1000;
 
     public ExternalEntityWriter(Selector selector,
             ByteConverterContext context, String ownerColumnFamily,
             Bytes rowKey, Bytes ownerColumn) {
         super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
-        savedColumns = new HashSet<Bytes>();
-    }
-
-    /**
-     * Add the stored column to our internal queue
-     * 
-     * @param column
-     */
-    protected void addStoredColumn(ByteBuffer column) {
-        savedColumns.add(Bytes.fromByteBuffer(column));
     }
 
     /**
      * Remove all columns from the collection/map. Useful for if a collection is
-     * set to null
+     * set to null, or replaced by a new one. The stored column names are read
+     * a page at a time and each column is deleted with a tombstone which is
+     * older than any column written by the same mutator.
      */
-    public void removeAllColumns(Mutator mutator) {
-
-        byte[] columnBytes = ownerColumn.toByteArray();
-
-        SliceRange range = new SliceRange();
-        range.setCount(ITERATION_SIZE);
-        range.setFinish(createBuffer(columnBytes, DELIM_MAX));
-
-        SlicePredicate predicate = new SlicePredicate();
-        predicate.setSlice_range(range);
+    public void removeAllColumns(CassandraMutator mutator) {
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>();
 
-        List<Column> results = null;
+        ColumnSlicePager pager = newPager(DELETE_PAGE_SIZE, false, null);
 
-        do {
-
-            range.setStart(createBuffer(columnBytes, DELIM_MIN));
-
-            results = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                    predicate, Consistency.get());
-
-            // remove all columns that are presisted
-            for (Column col : results) {
-                mutator.deleteColumn(ownerColumnFamily, rowKey,
-                        Bytes.fromByteArray(col.getName()));
-            }
-
-            // advance our start key if required
-            if (results.size() == ITERATION_SIZE) {
-                columnBytes = results.get(ITERATION_SIZE - 1).getName();
+        while (pager.hasMore()) {
+            for (Column column : pager.nextPage()) {
+                names.add(column.name);
             }
+        }
 
-        } while (results != null && results.size() == ITERATION_SIZE);
-
+        mutator.deleteColumnRange(ownerColumnFamily, rowKey,
+                createBoundary(DELIM_MIN), createBoundary(DELIM_MAX), names);
     }
 
     /**
-     * Removes all columns that have not been marked as persisted.
+     * Create the name of the relationship column for the given key
+     * 
+     * @param key
+     * @return
      */
-    public void removeRemaining(Mutator mutator) {
-        byte[] columnBytes = ownerColumn.toByteArray();
-
-        SliceRange range = new SliceRange();
-        range.setCount(ITERATION_SIZE);
-        range.setFinish(createBuffer(columnBytes, DELIM_MAX));
-
-        SlicePredicate predicate = new SlicePredicate();
-        predicate.setSlice_range(range);
-
-        List<Column> results = null;
-
-        do {
-
-            range.setStart(createBuffer(columnBytes, DELIM_MIN));
-
-            results = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                    predicate, Consistency.get());
-
-            // remove all columns that are presisted
-            for (Column col : results) {
-
-                //not in our already saved columns, remove it
-                if (!savedColumns.contains(Bytes.fromByteBuffer(col.name))) {
-                    mutator.deleteColumn(ownerColumnFamily, rowKey,
-                            Bytes.fromByteArray(col.getName()));
-                }
-            }
-
-            // advance our start key if required
-            if (results.size() == ITERATION_SIZE) {
-                columnBytes = results.get(ITERATION_SIZE - 1).getName();
-            }
-
-        } while (results.size() == ITERATION_SIZE);
-
+    protected ByteBuffer createColumnName(Object key) {
+        // the size of the key isn't known, write to a pooled buffer and copy
+        // the name to one of exactly the right size
+        ByteBuffer buffer = BufferPool.acquire();
+
+        try {
+            buffer = ConverterUtils.check(buffer, ownerColumn.length() + 1);
+            buffer.put(ownerColumn.getBytes().duplicate());
+            buffer.put(DELIM_MIN);
+            buffer = context.getRowKeyForId(key, buffer);
+
+            ByteBuffer name = BufferPool.copy(buffer);
+            name.limit(name.position());
+            name.reset();
+
+            return name;
+        } finally {
+            BufferPool.release(buffer);
+        }
     }
 
-    protected ByteBuffer createBuffer(byte[] columnBytes, byte delimByte) {
-        ByteBuffer buffer = ByteBuffer.allocate(columnBytes.length + 1);
-        buffer.mark();
-        buffer.put(columnBytes);
-        buffer.put(delimByte);
-        buffer.reset();
-
-        return buffer;
+    /**
+     * Delete the relationship column for the given key
+     * 
+     * @param mutator
+     * @param key
+     */
+    protected void deleteColumn(CassandraMutator mutator, Object key) {
+        mutator.deleteColumn(ownerColumnFamily, rowKey,
+                Bytes.fromByteBuffer(createColumnName(key)));
     }
 
 }
@@ -0,0 +1,268 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.state.FetchPlanState;
+import org.datanucleus.store.ObjectProvider;
+import org.datanucleus.store.types.sco.SCO;
+import org.datanucleus.store.types.sco.SCOUtils;
+
+/**
+ * A list relationship which loads its elements from Cassandra a page at a
+ * time as they are accessed. Appending, and modifying or removing elements up
+ * to a loaded index, leave the remaining pages unread. Every modification is
+ * recorded, so only the changes are written. If serialized, the list is
+ * written as a plain ArrayList.
+ * 
+ * The list is a second class object of its owner. Detaching it, or unsetting
+ * its owner, loads every remaining element so the list stays usable once the
+ * persistence manager is closed.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazyList extends AbstractList<Object> implements Serializable,
+        ChangeTracking, SCO {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient PagedElements elements;
+
+    public LazyList(ColumnSlicePager pager, PageLoader loader,
+            List<Column> firstPage, ObjectProvider owner, int fieldNumber) {
+        elements = new PagedElements(pager, loader, firstPage, owner,
+                fieldNumber);
+    }
+
+    /**
+     * Track the changes to a list that is already loaded
+     * 
+     * @param contents
+     * @param owner
+     * @param fieldNumber
+     */
+    public LazyList(Collection<?> contents, ObjectProvider owner,
+            int fieldNumber) {
+        elements = new PagedElements(contents, owner, fieldNumber);
+    }
+
+    @Override
+    public Object get(int index) {
+        checkIndex(index);
+        return elements.getLoaded().get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return elements.iterator();
+    }
+
+    @Override
+    public ListIterator<Object> listIterator(int index) {
+        elements.loadAll();
+        return super.listIterator(index);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return elements.contains(o);
+    }
+
+    @Override
+    public boolean add(Object e) {
+        elements.append(e);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, Object element) {
+        if (index == size()) {
+            add(element);
+            return;
+        }
+
+        checkIndex(index);
+        elements.insert(index, element);
+        modCount++;
+    }
+
+    @Override
+    public Object set(int index, Object element) {
+        checkIndex(index);
+        return elements.set(index, element);
+    }
+
+    @Override
+    public Object remove(int index) {
+        checkIndex(index);
+        modCount++;
+        return elements.remove(index);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!elements.remove(o)) {
+            return false;
+        }
+
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+        modCount++;
+    }
+
+    @Override
+    public boolean isTracking(ObjectProvider owner, int fieldNumber) {
+        return elements.isTracking(owner, fieldNumber);
+    }
+
+    @Override
+    public boolean isCleared() {
+        return elements.isCleared();
+    }
+
+    @Override
+    public List<Object> getAdded() {
+        return elements.getAdded();
+    }
+
+    @Override
+    public List<Object> getRemoved() {
+        return elements.getRemoved();
+    }
+
+    @Override
+    public List<Object> getUnstored() {
+        return elements.getUnstored();
+    }
+
+    @Override
+    public void changesWritten() {
+        elements.changesWritten();
+    }
+
+    @Override
+    public void resetChanges() {
+        elements.resetChanges();
+    }
+
+    @Override
+    public void restoreChanges() {
+        elements.restoreChanges();
+    }
+
+    @Override
+    public void initialise() {
+        // elements are loaded as they are accessed
+    }
+
+    @Override
+    public void initialise(Object value, boolean forInsert, boolean forUpdate) {
+        clear();
+        addAll((Collection<?>) value);
+    }
+
+    @Override
+    public Object getOwner() {
+        ObjectProvider owner = elements.getOwner();
+
+        return owner == null ? null : owner.getObject();
+    }
+
+    @Override
+    public String getFieldName() {
+        AbstractMemberMetaData fieldMetaData = elements.getMemberMetaData();
+
+        return fieldMetaData == null ? null : fieldMetaData.getName();
+    }
+
+    @Override
+    public Object getValue() {
+        return new ArrayList<Object>(this);
+    }
+
+    @Override
+    public void unsetOwner() {
+        elements.unsetOwner();
+    }
+
+    @Override
+    public Object clone() {
+        return new ArrayList<Object>(this);
+    }
+
+    @Override
+    public Object detachCopy(FetchPlanState state) {
+        ArrayList<Object> detached = new ArrayList<Object>();
+
+        SCOUtils.detachCopyForCollection(elements.getOwner(), toArray(),
+                state, detached);
+
+        return detached;
+    }
+
+    @Override
+    public void attachCopy(Object value) {
+        Collection<?> detached = (Collection<?>) value;
+
+        List<Object> attached = new ArrayList<Object>(detached.size());
+
+        SCOUtils.attachCopyForCollection(elements.getOwner(), detached
+                .toArray(), attached, SCOUtils
+                .collectionHasElementsWithoutIdentity(elements
+                        .getMemberMetaData()));
+
+        SCOUtils.updateListWithListElements(this, attached);
+    }
+
+    /**
+     * Load pages until the index is loaded
+     * 
+     * @param index
+     */
+    private void checkIndex(int index) {
+        if (index < 0 || !elements.ensureLoaded(index)) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+    }
+
+    private Object writeReplace() {
+        return new ArrayList<Object>(this);
+    }
+
+}
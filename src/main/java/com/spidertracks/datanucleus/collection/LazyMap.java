@@ -0,0 +1,415 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.state.FetchPlanState;
+import org.datanucleus.store.ObjectProvider;
+import org.datanucleus.store.types.sco.SCO;
+import org.datanucleus.store.types.sco.SCOUtils;
+
+/**
+ * A map relationship which loads its entries from Cassandra a page at a time
+ * as they are iterated. Looking up, putting and removing a key that isn't
+ * loaded reads only that key's column. Modifications are recorded by key, so
+ * only the changed entries are written. If serialized, the map is written as
+ * a plain LinkedHashMap.
+ * 
+ * The page loader must return {@link Map.Entry} instances. Like
+ * {@link LazyList}, the map loads every remaining entry when it is detached
+ * or its owner is unset.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazyMap extends AbstractMap<Object, Object> implements
+        Serializable, ChangeTracking, SCO {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient PagedElements elements;
+
+    private transient Map<Object, Object> delegate;
+
+    private transient Set<Map.Entry<Object, Object>> entrySet;
+
+    public LazyMap(ColumnSlicePager pager, PageLoader loader,
+            List<Column> firstPage, ObjectProvider owner, int fieldNumber) {
+        elements = new PagedElements(pager, loader, firstPage, owner,
+                fieldNumber);
+        elements.keyByEntry();
+    }
+
+    /**
+     * Track the changes to a map that is already loaded
+     * 
+     * @param contents
+     * @param owner
+     * @param fieldNumber
+     */
+    public LazyMap(Map<?, ?> contents, ObjectProvider owner, int fieldNumber) {
+        List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(
+                contents.size());
+
+        for (Map.Entry<?, ?> entry : contents.entrySet()) {
+            entries.add(new CassEntry(entry.getKey(), entry.getValue()));
+        }
+
+        elements = new PagedElements(entries, owner, fieldNumber);
+        elements.keyByEntry();
+        delegate = new LinkedHashMap<Object, Object>(contents);
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+
+        return entrySet;
+    }
+
+    @Override
+    public int size() {
+        if (delegate != null) {
+            return delegate.size();
+        }
+
+        return elements.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (delegate != null) {
+            return delegate.containsKey(key);
+        }
+
+        return elements.getEntry(key) != null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (delegate != null) {
+            return delegate.get(key);
+        }
+
+        Map.Entry<?, ?> entry = elements.getEntry(key);
+
+        return entry == null ? null : entry.getValue();
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        CassEntry entry = new CassEntry(key, value);
+
+        Object previous;
+
+        if (delegate != null) {
+            previous = delegate.put(key, value);
+        } else {
+            Map.Entry<?, ?> existing = elements.getEntry(key);
+            elements.putEntry(entry, existing != null);
+            previous = existing == null ? null : existing.getValue();
+        }
+
+        // the column for the key is overwritten, any earlier change to it is
+        // obsolete
+        dropChanges(key);
+        elements.getAdded().add(entry);
+        elements.changed();
+
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object previous;
+
+        if (delegate != null) {
+            if (!delegate.containsKey(key)) {
+                return null;
+            }
+
+            previous = delegate.remove(key);
+        } else {
+            Map.Entry<?, ?> existing = elements.getEntry(key);
+
+            if (existing == null) {
+                return null;
+            }
+
+            elements.removeEntry(key);
+            previous = existing.getValue();
+        }
+
+        removed(key, previous);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+        delegate = new LinkedHashMap<Object, Object>();
+    }
+
+    /**
+     * Load all entries and switch to a map for lookups
+     * 
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> getDelegate() {
+        if (delegate == null) {
+            elements.loadAll();
+
+            delegate = new LinkedHashMap<Object, Object>();
+
+            for (Object entry : elements.getLoaded()) {
+                Map.Entry<Object, Object> current = (Map.Entry<Object, Object>) entry;
+                delegate.put(current.getKey(), current.getValue());
+            }
+        }
+
+        return delegate;
+    }
+
+    @Override
+    public boolean isTracking(ObjectProvider owner, int fieldNumber) {
+        return elements.isTracking(owner, fieldNumber);
+    }
+
+    @Override
+    public boolean isCleared() {
+        return elements.isCleared();
+    }
+
+    @Override
+    public List<Object> getAdded() {
+        return elements.getAdded();
+    }
+
+    @Override
+    public List<Object> getRemoved() {
+        return elements.getRemoved();
+    }
+
+    @Override
+    public List<Object> getUnstored() {
+        if (delegate != null) {
+            return new ArrayList<Object>(delegate.entrySet());
+        }
+
+        return elements.getUnstored();
+    }
+
+    @Override
+    public void changesWritten() {
+        elements.changesWritten();
+    }
+
+    @Override
+    public void resetChanges() {
+        elements.resetChanges();
+    }
+
+    @Override
+    public void restoreChanges() {
+        elements.restoreChanges();
+    }
+
+    @Override
+    public void initialise() {
+        // entries are loaded as they are accessed
+    }
+
+    @Override
+    public void initialise(Object value, boolean forInsert, boolean forUpdate) {
+        clear();
+        putAll((Map<?, ?>) value);
+    }
+
+    @Override
+    public Object getOwner() {
+        ObjectProvider owner = elements.getOwner();
+
+        return owner == null ? null : owner.getObject();
+    }
+
+    @Override
+    public String getFieldName() {
+        AbstractMemberMetaData fieldMetaData = elements.getMemberMetaData();
+
+        return fieldMetaData == null ? null : fieldMetaData.getName();
+    }
+
+    @Override
+    public Object getValue() {
+        return new LinkedHashMap<Object, Object>(getDelegate());
+    }
+
+    @Override
+    public void unsetOwner() {
+        // build the map before the owner goes, modifications only live in it
+        getDelegate();
+        elements.unsetOwner();
+    }
+
+    @Override
+    public Object clone() {
+        return new LinkedHashMap<Object, Object>(getDelegate());
+    }
+
+    @Override
+    public Object detachCopy(FetchPlanState state) {
+        LinkedHashMap<Object, Object> detached = new LinkedHashMap<Object, Object>();
+
+        SCOUtils.detachCopyForMap(elements.getOwner(), getDelegate()
+                .entrySet(), state, detached);
+
+        return detached;
+    }
+
+    @Override
+    public void attachCopy(Object value) {
+        Map<?, ?> detached = (Map<?, ?>) value;
+
+        Map<Object, Object> attached = new LinkedHashMap<Object, Object>(
+                detached.size());
+
+        AbstractMemberMetaData fieldMetaData = elements.getMemberMetaData();
+
+        SCOUtils.attachCopyForMap(elements.getOwner(), detached.entrySet(),
+                attached, SCOUtils.mapHasKeysWithoutIdentity(fieldMetaData),
+                SCOUtils.mapHasValuesWithoutIdentity(fieldMetaData));
+
+        SCOUtils.updateMapWithMapKeysValues(elements.getOwner()
+                .getExecutionContext().getApiAdapter(), this, attached);
+    }
+
+    /**
+     * Record the removal of the key's entry
+     * 
+     * @param key
+     * @param value
+     */
+    private void removed(Object key, Object value) {
+        dropChanges(key);
+        elements.getRemoved().add(new CassEntry(key, value));
+        elements.changed();
+    }
+
+    /**
+     * Forget any recorded change to the given key
+     * 
+     * @param key
+     */
+    private void dropChanges(Object key) {
+        dropChanges(key, elements.getAdded());
+        dropChanges(key, elements.getRemoved());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dropChanges(Object key, List<Object> changes) {
+        for (Iterator<Object> it = changes.iterator(); it.hasNext();) {
+            Object current = ((Map.Entry<Object, Object>) it.next()).getKey();
+
+            if (key == null ? current == null : key.equals(current)) {
+                it.remove();
+            }
+        }
+    }
+
+    private Object writeReplace() {
+        return new LinkedHashMap<Object, Object>(this);
+    }
+
+    /**
+     * Iterates the paged entries until the map has been loaded completely,
+     * after that the loaded map is used
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<Object, Object>> {
+
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+            if (delegate != null) {
+                return new DirtyingIterator(delegate.entrySet().iterator());
+            }
+
+            return new DirtyingIterator(elements.iterator());
+        }
+
+        @Override
+        public int size() {
+            return LazyMap.this.size();
+        }
+
+    }
+
+    /**
+     * Marks the field dirty when entries are removed through the iterator
+     */
+    private class DirtyingIterator implements Iterator<Map.Entry<Object, Object>> {
+
+        private Iterator<?> iterator;
+
+        private Map.Entry<Object, Object> last;
+
+        private DirtyingIterator(Iterator<?> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map.Entry<Object, Object> next() {
+            last = (Map.Entry<Object, Object>) iterator.next();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            // read the entry first, the loaded map's entry is invalid once
+            // removed
+            Object key = last.getKey();
+            Object value = last.getValue();
+
+            iterator.remove();
+
+            // the paged iterator records the removal itself
+            if (delegate != null) {
+                removed(key, value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.state.FetchPlanState;
+import org.datanucleus.store.ObjectProvider;
+import org.datanucleus.store.types.sco.SCO;
+import org.datanucleus.store.types.sco.SCOUtils;
+
+/**
+ * A set relationship which loads its elements from Cassandra a page at a time
+ * as they are accessed. Adding, removing and looking up an element that isn't
+ * loaded reads only that element's column. Every modification is recorded,
+ * so only the changes are written. If serialized, the set is written as a
+ * plain HashSet.
+ * 
+ * Like {@link LazyList}, the set loads every remaining element when it is
+ * detached or its owner is unset.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazySet extends AbstractSet<Object> implements Serializable,
+        ChangeTracking, SCO {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient PagedElements elements;
+
+    public LazySet(ColumnSlicePager pager, PageLoader loader,
+            List<Column> firstPage, ObjectProvider owner, int fieldNumber) {
+        elements = new PagedElements(pager, loader, firstPage, owner,
+                fieldNumber);
+    }
+
+    /**
+     * Track the changes to a set that is already loaded
+     * 
+     * @param contents
+     * @param owner
+     * @param fieldNumber
+     */
+    public LazySet(Collection<?> contents, ObjectProvider owner,
+            int fieldNumber) {
+        elements = new PagedElements(contents, owner, fieldNumber);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return elements.iterator();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return elements.contains(o);
+    }
+
+    @Override
+    public boolean add(Object e) {
+        if (elements.contains(e)) {
+            return false;
+        }
+
+        elements.append(e);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return elements.remove(o);
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+    }
+
+    @Override
+    public boolean isTracking(ObjectProvider owner, int fieldNumber) {
+        return elements.isTracking(owner, fieldNumber);
+    }
+
+    @Override
+    public boolean isCleared() {
+        return elements.isCleared();
+    }
+
+    @Override
+    public List<Object> getAdded() {
+        return elements.getAdded();
+    }
+
+    @Override
+    public List<Object> getRemoved() {
+        return elements.getRemoved();
+    }
+
+    @Override
+    public List<Object> getUnstored() {
+        return elements.getUnstored();
+    }
+
+    @Override
+    public void changesWritten() {
+        elements.changesWritten();
+    }
+
+    @Override
+    public void resetChanges() {
+        elements.resetChanges();
+    }
+
+    @Override
+    public void restoreChanges() {
+        elements.restoreChanges();
+    }
+
+    @Override
+    public void initialise() {
+        // elements are loaded as they are accessed
+    }
+
+    @Override
+    public void initialise(Object value, boolean forInsert, boolean forUpdate) {
+        clear();
+        addAll((Collection<?>) value);
+    }
+
+    @Override
+    public Object getOwner() {
+        ObjectProvider owner = elements.getOwner();
+
+        return owner == null ? null : owner.getObject();
+    }
+
+    @Override
+    public String getFieldName() {
+        AbstractMemberMetaData fieldMetaData = elements.getMemberMetaData();
+
+        return fieldMetaData == null ? null : fieldMetaData.getName();
+    }
+
+    @Override
+    public Object getValue() {
+        return new HashSet<Object>(this);
+    }
+
+    @Override
+    public void unsetOwner() {
+        elements.unsetOwner();
+    }
+
+    @Override
+    public Object clone() {
+        return new HashSet<Object>(this);
+    }
+
+    @Override
+    public Object detachCopy(FetchPlanState state) {
+        HashSet<Object> detached = new HashSet<Object>();
+
+        SCOUtils.detachCopyForCollection(elements.getOwner(), toArray(),
+                state, detached);
+
+        return detached;
+    }
+
+    @Override
+    public void attachCopy(Object value) {
+        Collection<?> detached = (Collection<?>) value;
+
+        List<Object> attached = new ArrayList<Object>(detached.size());
+
+        SCOUtils.attachCopyForCollection(elements.getOwner(), detached
+                .toArray(), attached, SCOUtils
+                .collectionHasElementsWithoutIdentity(elements
+                        .getMemberMetaData()));
+
+        SCOUtils.updateCollectionWithCollectionElements(this, attached);
+    }
+
+    private Object writeReplace() {
+        return new HashSet<Object>(this);
+    }
+
+}
@@ -0,0 +1,57 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+
+/**
+ * Turns a page of relationship columns into the elements they reference.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface PageLoader {
+
+    /**
+     * Load the elements for the given columns. Elements which no longer exist
+     * are not returned, so the result may be smaller than the page
+     * 
+     * @param columns
+     * @return
+     */
+    public List<?> load(List<Column> columns);
+
+    /**
+     * Check if the element is stored, reading only its own column
+     * 
+     * @param element
+     * @return
+     */
+    public boolean contains(Object element);
+
+    /**
+     * Load the stored element matching the given one, reading only its own
+     * column. Map entries match the stored entry with the same key
+     * 
+     * @param element
+     * @return The stored element, or null if it isn't stored
+     */
+    public Object find(Object element);
+}
@@ -0,0 +1,848 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.Transaction;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.store.ObjectProvider;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+
+/**
+ * The elements of a lazily loaded relationship. Elements are loaded a page at
+ * a time as they are accessed and kept once loaded. The owning field is
+ * marked dirty whenever the elements are modified, and the elements added and
+ * removed are recorded so only the changes need to be written.
+ * 
+ * Elements can be appended, removed and checked for without loading the
+ * pages not read yet. Appended elements are kept apart until every page has
+ * been loaded, elements removed before their page is loaded are skipped when
+ * it is. Modifications only adjust a pending size change, the columns are
+ * counted in Cassandra the first time the size is asked for and the count is
+ * kept up to date after that.
+ * 
+ * Keyed elements can also be looked up, replaced and removed by key. A key
+ * that isn't loaded is read from its own column, and stored entries are
+ * skipped when their page is loaded if their key has been changed since.
+ * 
+ * Changes which have been written are kept until the transaction ends. They
+ * are forgotten on commit and recorded again on rollback, so they are
+ * written with the next update.
+ * 
+ * Once the owner is unset, on detach or when the field is replaced, all
+ * remaining elements are loaded and the elements no longer refer to
+ * Cassandra or the owner.
+ * 
+ * @author Todd Nine
+ * 
+ */
+class PagedElements {
+
+    private ColumnSlicePager pager;
+
+    private PageLoader loader;
+
+    private ObjectProvider owner;
+
+    private int fieldNumber;
+
+    private List<Object> loaded;
+
+    private List<Object> appended = new ArrayList<Object>();
+
+    private int count = -1;
+
+    private int delta;
+
+    private int writtenDelta;
+
+    private List<Object> added = new ArrayList<Object>();
+
+    private List<Object> removed = new ArrayList<Object>();
+
+    private boolean cleared;
+
+    private List<Object> writtenAdded = new ArrayList<Object>();
+
+    private List<Object> writtenRemoved = new ArrayList<Object>();
+
+    private boolean writtenCleared;
+
+    private boolean listening;
+
+    private boolean keyed;
+
+    /**
+     * 
+     * @param pager
+     *            The pager over the relationship columns
+     * @param loader
+     *            The loader to turn columns into elements
+     * @param firstPage
+     *            The first page, already read from the pager
+     * @param owner
+     *            The owner of the field
+     * @param fieldNumber
+     *            The field holding the elements
+     */
+    PagedElements(ColumnSlicePager pager, PageLoader loader,
+            List<Column> firstPage, ObjectProvider owner, int fieldNumber) {
+        this.pager = pager;
+        this.loader = loader;
+        this.owner = owner;
+        this.fieldNumber = fieldNumber;
+        this.loaded = new ArrayList<Object>(firstPage.size());
+        this.loaded.addAll(loader.load(firstPage));
+    }
+
+    /**
+     * Track elements which are already loaded completely, such as the
+     * contents of a field that has just been written. Until
+     * {@link #changesWritten()} is called the elements are considered to
+     * replace everything stored
+     * 
+     * @param elements
+     * @param owner
+     * @param fieldNumber
+     */
+    PagedElements(Collection<?> elements, ObjectProvider owner,
+            int fieldNumber) {
+        this.owner = owner;
+        this.fieldNumber = fieldNumber;
+        this.loaded = new ArrayList<Object>(elements);
+        this.cleared = true;
+    }
+
+    /**
+     * The elements are {@link Map.Entry} instances and a change replaces any
+     * earlier change to the same key
+     */
+    void keyByEntry() {
+        keyed = true;
+    }
+
+    /**
+     * @return True if all elements have been loaded
+     */
+    boolean isComplete() {
+        return pager == null || !pager.hasMore();
+    }
+
+    /**
+     * Load everything which has not been loaded yet
+     */
+    void loadAll() {
+        while (loadNextPage()) {
+            // keep loading
+        }
+    }
+
+    /**
+     * Load pages until the element at index is loaded
+     * 
+     * @param index
+     * @return True if an element exists at the given index
+     */
+    boolean ensureLoaded(int index) {
+        while (loaded.size() <= index && loadNextPage()) {
+            // keep loading
+        }
+
+        return loaded.size() > index;
+    }
+
+    /**
+     * The number of elements. If not all elements have been loaded, the
+     * columns are counted in Cassandra the first time and the count is kept
+     * up to date with every modification after that. Modifications made
+     * before are added to the count
+     * 
+     * @return
+     */
+    int size() {
+        if (isComplete()) {
+            return loaded.size();
+        }
+
+        return getCount();
+    }
+
+    /**
+     * Get the elements loaded so far. Modifying the returned list should be
+     * followed by a call to {@link #changed()}
+     * 
+     * @return
+     */
+    List<Object> getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Check if the element is part of the relationship. If it isn't loaded,
+     * the element's column is read on its own
+     * 
+     * @param element
+     * @return
+     */
+    boolean contains(Object element) {
+        if (loaded.contains(element) || appended.contains(element)) {
+            return true;
+        }
+
+        if (isComplete() || isReplaced(element)) {
+            return false;
+        }
+
+        return loader.contains(element);
+    }
+
+    /**
+     * Get the entry with the given key. If it isn't loaded, only the key's
+     * own column is read
+     * 
+     * @param key
+     * @return The entry or null if there is none with the key
+     */
+    Map.Entry<?, ?> getEntry(Object key) {
+        int index = indexOfKey(loaded, key);
+
+        if (index >= 0) {
+            return (Map.Entry<?, ?>) loaded.get(index);
+        }
+
+        index = indexOfKey(appended, key);
+
+        if (index >= 0) {
+            return (Map.Entry<?, ?>) appended.get(index);
+        }
+
+        CassEntry probe = new CassEntry(key, null);
+
+        if (isComplete() || isReplaced(probe)) {
+            return null;
+        }
+
+        return (Map.Entry<?, ?>) loader.find(probe);
+    }
+
+    /**
+     * Put the entry in place of the loaded entry with the same key. If there
+     * is none the entry is appended, and counted unless its key is already
+     * stored
+     * 
+     * @param entry
+     * @param existed
+     *            True if an entry with the same key exists, loaded or not
+     */
+    void putEntry(Map.Entry<?, ?> entry, boolean existed) {
+        if (replaceKey(loaded, entry) || replaceKey(appended, entry)) {
+            return;
+        }
+
+        if (isComplete()) {
+            loaded.add(entry);
+        } else {
+            appended.add(entry);
+        }
+
+        if (!existed) {
+            count(1);
+        }
+    }
+
+    /**
+     * Remove the entry with the given key, which must exist. An entry which
+     * isn't loaded is skipped when its page is, once the removal is recorded
+     * 
+     * @param key
+     */
+    void removeEntry(Object key) {
+        int index = indexOfKey(loaded, key);
+
+        if (index >= 0) {
+            loaded.remove(index);
+        } else {
+            index = indexOfKey(appended, key);
+
+            if (index >= 0) {
+                appended.remove(index);
+            }
+        }
+
+        count(-1);
+    }
+
+    /**
+     * Add the element to the end. Pages not loaded yet are left alone, the
+     * element follows them once they are
+     * 
+     * @param element
+     */
+    void append(Object element) {
+        if (isComplete()) {
+            loaded.add(element);
+        } else {
+            appended.add(element);
+            count(1);
+        }
+
+        added(element);
+    }
+
+    /**
+     * Insert the element at the given index, which must be loaded
+     * 
+     * @param index
+     * @param element
+     */
+    void insert(int index, Object element) {
+        loaded.add(index, element);
+        count(1);
+        added(element);
+    }
+
+    /**
+     * Replace the element at the given index, which must be loaded
+     * 
+     * @param index
+     * @param element
+     * @return The element replaced
+     */
+    Object set(int index, Object element) {
+        Object previous = loaded.set(index, element);
+        removed(previous);
+        added(element);
+        return previous;
+    }
+
+    /**
+     * Remove the element at the given index, which must be loaded
+     * 
+     * @param index
+     * @return The element removed
+     */
+    Object remove(int index) {
+        Object element = loaded.remove(index);
+        count(-1);
+        removed(element);
+        return element;
+    }
+
+    /**
+     * Remove the element. If it isn't loaded, its column is read on its own to
+     * check it is stored, and it is skipped when its page is loaded
+     * 
+     * @param element
+     * @return True if the element was part of the relationship
+     */
+    boolean remove(Object element) {
+        if (!loaded.remove(element) && !appended.remove(element)
+                && (isComplete() || isReplaced(element) || !loader
+                        .contains(element))) {
+            return false;
+        }
+
+        count(-1);
+        removed(element);
+        return true;
+    }
+
+    /**
+     * Drop all elements, including the ones not loaded yet
+     */
+    void clear() {
+        if (pager != null) {
+            pager.discard();
+        }
+
+        loaded.clear();
+        appended.clear();
+        added.clear();
+        removed.clear();
+        cleared = true;
+        changed();
+    }
+
+    /**
+     * Record an element added to the relationship and mark the field dirty
+     * 
+     * @param element
+     */
+    void added(Object element) {
+        // the entry's column is overwritten whatever happened to the key
+        // before
+        if (keyed) {
+            dropKey(added, element);
+            dropKey(removed, element);
+            added.add(element);
+        } else if (!removed.remove(element)) {
+            // removed and added again, the stored column is still valid
+            added.add(element);
+        }
+
+        changed();
+    }
+
+    /**
+     * Record an element removed from the relationship and mark the field
+     * dirty
+     * 
+     * @param element
+     */
+    void removed(Object element) {
+        // the key's column may be stored, whatever was put since
+        if (keyed) {
+            dropKey(added, element);
+            dropKey(removed, element);
+            removed.add(element);
+        } else if (!added.remove(element)) {
+            // never written, nothing to delete
+            removed.add(element);
+        }
+
+        changed();
+    }
+
+    boolean isTracking(ObjectProvider owner, int fieldNumber) {
+        return this.owner != null && this.owner == owner
+                && this.fieldNumber == fieldNumber;
+    }
+
+    /**
+     * @return The owner of the field, null once unset
+     */
+    ObjectProvider getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return The meta data of the owning field, null once the owner is unset
+     */
+    AbstractMemberMetaData getMemberMetaData() {
+        if (owner == null) {
+            return null;
+        }
+
+        return owner.getClassMetaData()
+                .getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
+    }
+
+    /**
+     * Load everything not loaded yet and disconnect from the owner. Must be
+     * called while the owner's execution context is still open, since the
+     * remaining elements are resolved through it
+     */
+    void unsetOwner() {
+        if (owner == null) {
+            return;
+        }
+
+        loadAll();
+
+        pager = null;
+        loader = null;
+        owner = null;
+        count = -1;
+        delta = 0;
+
+        resetChanges();
+        added.clear();
+        removed.clear();
+        cleared = false;
+    }
+
+    boolean isCleared() {
+        return cleared;
+    }
+
+    List<Object> getAdded() {
+        return added;
+    }
+
+    List<Object> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return Every element once all are loaded, otherwise the elements
+     *         added since the last commit
+     */
+    List<Object> getUnstored() {
+        if (isComplete()) {
+            return new ArrayList<Object>(loaded);
+        }
+
+        List<Object> unstored = new ArrayList<Object>(writtenAdded);
+        unstored.addAll(added);
+
+        return unstored;
+    }
+
+    /**
+     * The recorded changes have been written. They are held until the
+     * owner's transaction ends, outside a transaction they are forgotten
+     * straight away
+     */
+    void changesWritten() {
+        if (cleared) {
+            writtenCleared = true;
+            writtenAdded.clear();
+            writtenRemoved.clear();
+        } else {
+            merge(writtenAdded, writtenRemoved, added, removed);
+        }
+
+        added = new ArrayList<Object>();
+        removed = new ArrayList<Object>();
+        cleared = false;
+
+        Transaction transaction = owner == null ? null : owner
+                .getExecutionContext().getTransaction();
+
+        // the written changes are part of the stored columns now, unless
+        // they are held until the transaction flushes or commits
+        if (count < 0) {
+            if (transaction != null && transaction.isActive() && isHeld()) {
+                writtenDelta += delta;
+            }
+
+            delta = 0;
+        }
+
+        if (transaction == null || !transaction.isActive()) {
+            resetChanges();
+            return;
+        }
+
+        if (!listening) {
+            listening = true;
+            transaction.addTransactionEventListener(new TransactionEnd());
+        }
+    }
+
+    /**
+     * Forget the written changes once they are committed
+     */
+    void resetChanges() {
+        writtenAdded.clear();
+        writtenRemoved.clear();
+        writtenCleared = false;
+        writtenDelta = 0;
+    }
+
+    /**
+     * The written changes were rolled back. Record them again in front of
+     * anything changed since, so they are written with the next update
+     */
+    void restoreChanges() {
+        // held writes were dropped, they're not stored
+        delta += writtenDelta;
+        writtenDelta = 0;
+
+        if (writtenCleared) {
+            cleared = true;
+            added.clear();
+            removed.clear();
+        } else if (!cleared) {
+            merge(writtenAdded, writtenRemoved, added, removed);
+
+            added = writtenAdded;
+            removed = writtenRemoved;
+
+            writtenAdded = new ArrayList<Object>();
+            writtenRemoved = new ArrayList<Object>();
+        }
+
+        resetChanges();
+    }
+
+    /**
+     * Apply later changes on top of earlier ones
+     * 
+     * @param earlierAdded
+     * @param earlierRemoved
+     * @param laterAdded
+     * @param laterRemoved
+     */
+    private void merge(List<Object> earlierAdded, List<Object> earlierRemoved,
+            List<Object> laterAdded, List<Object> laterRemoved) {
+        if (keyed) {
+            for (Object entry : laterRemoved) {
+                dropKey(earlierAdded, entry);
+                dropKey(earlierRemoved, entry);
+                earlierRemoved.add(entry);
+            }
+
+            for (Object entry : laterAdded) {
+                dropKey(earlierAdded, entry);
+                dropKey(earlierRemoved, entry);
+                earlierAdded.add(entry);
+            }
+
+            return;
+        }
+
+        for (Object element : laterRemoved) {
+            if (!earlierAdded.remove(element)) {
+                earlierRemoved.add(element);
+            }
+        }
+
+        for (Object element : laterAdded) {
+            if (!earlierRemoved.remove(element)) {
+                earlierAdded.add(element);
+            }
+        }
+    }
+
+    /**
+     * Remove the entries with the same key as the given entry
+     */
+    private void dropKey(List<Object> entries, Object entry) {
+        Object key = ((Map.Entry<?, ?>) entry).getKey();
+
+        for (Iterator<Object> it = entries.iterator(); it.hasNext();) {
+            Object current = ((Map.Entry<?, ?>) it.next()).getKey();
+
+            if (key == null ? current == null : key.equals(current)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Replace the entry with the same key as the given entry
+     * 
+     * @return True if there was one
+     */
+    private boolean replaceKey(List<Object> entries, Map.Entry<?, ?> entry) {
+        int index = indexOfKey(entries, entry.getKey());
+
+        if (index < 0) {
+            return false;
+        }
+
+        entries.set(index, entry);
+        return true;
+    }
+
+    private int indexOfKey(List<Object> entries, Object key) {
+        for (int i = 0; i < entries.size(); i++) {
+            Object current = ((Map.Entry<?, ?>) entries.get(i)).getKey();
+
+            if (key == null ? current == null : key.equals(current)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Check if a stored element was changed before its page was loaded, in
+     * which case the stored one is obsolete. Elements are obsolete once
+     * appended, since the appended one follows the loaded pages, or once
+     * removed, even if the removal is written but still held. Entries are
+     * obsolete once their key has been put or removed
+     * 
+     * @param element
+     * @return
+     */
+    private boolean isReplaced(Object element) {
+        if (!keyed) {
+            return appended.contains(element) || removed.contains(element)
+                    || writtenRemoved.contains(element);
+        }
+
+        Object key = ((Map.Entry<?, ?>) element).getKey();
+
+        return indexOfKey(appended, key) >= 0
+                || indexOfKey(removed, key) >= 0
+                || indexOfKey(writtenRemoved, key) >= 0;
+    }
+
+    /**
+     * @return True if written changes are held until the owner's transaction
+     *         flushes or commits, rather than sent straight away
+     */
+    private boolean isHeld() {
+        CassandraStoreManager manager = (CassandraStoreManager) owner
+                .getExecutionContext().getStoreManager();
+
+        return manager.isCoalesceWrites()
+                || manager.getWriteBehindQueue() != null;
+    }
+
+    /**
+     * Signal the elements have been modified
+     */
+    void changed() {
+        if (owner != null) {
+            owner.makeDirty(fieldNumber);
+        }
+    }
+
+    /**
+     * Iterate all elements, loading pages as they are needed
+     * 
+     * @return
+     */
+    Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+
+            private int cursor = 0;
+
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+                return ensureLoaded(cursor);
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                last = cursor++;
+
+                // reached the end of what's loaded, start reading the next
+                // page while the caller works on this element
+                if (cursor == loaded.size() && !isComplete()) {
+                    pager.prefetch();
+                }
+
+                return loaded.get(last);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+
+                PagedElements.this.remove(last);
+
+                cursor = last;
+                last = -1;
+            }
+        };
+    }
+
+    /**
+     * Adjust the number of elements while not all are loaded. Until the
+     * columns have been counted the change is only added up, so modifying
+     * the elements never reads from Cassandra
+     * 
+     * @param change
+     */
+    private void count(int change) {
+        if (isComplete()) {
+            return;
+        }
+
+        if (count < 0) {
+            delta += change;
+        } else {
+            count += change;
+        }
+    }
+
+    private int getCount() {
+        if (count < 0) {
+            count = pager.count() + writtenDelta + delta;
+            delta = 0;
+            writtenDelta = 0;
+        }
+
+        return count;
+    }
+
+    private boolean loadNextPage() {
+        if (isComplete()) {
+            return false;
+        }
+
+        for (Object element : loader.load(pager.nextPage())) {
+            // changed before its page was read
+            if (!isReplaced(element)) {
+                loaded.add(element);
+            }
+        }
+
+        // the appended elements follow everything stored
+        if (isComplete()) {
+            loaded.addAll(appended);
+            appended.clear();
+        }
+
+        return true;
+    }
+
+    /**
+     * Resolves the recorded changes when the owner's transaction ends
+     */
+    private class TransactionEnd implements TransactionEventListener {
+
+        @Override
+        public void transactionStarted() {
+        }
+
+        @Override
+        public void transactionFlushed() {
+            // held writes have been sent
+            writtenDelta = 0;
+        }
+
+        @Override
+        public void transactionPreCommit() {
+        }
+
+        @Override
+        public void transactionCommitted() {
+            listening = false;
+            resetChanges();
+        }
+
+        @Override
+        public void transactionPreRollBack() {
+        }
+
+        @Override
+        public void transactionRolledBack() {
+            listening = false;
+            restoreChanges();
+        }
+
+        @Override
+        public void transactionEnded() {
+            listening = false;
+        }
+    }
+
+}
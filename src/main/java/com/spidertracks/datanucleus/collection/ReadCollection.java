@@ -17,37 +17,26 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.collection;
 
-import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
-
 import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.SlicePredicate;
-import org.apache.cassandra.thrift.SliceRange;
 import org.datanucleus.store.ExecutionContext;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
-import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 
 /**
- * Object for writing collection columns
+ * Object for reading collection columns. Columns are read in pages through
+ * {@link #newPager(int, boolean, java.util.concurrent.ExecutorService)} and
+ * each column is turned into the identity of the element it references.
  * 
  * @author Todd Nine
  * 
  */
-public class ReadCollection extends ExternalEntity implements
-        Iterable<Object>, Iterator<Object> {
+public class ReadCollection extends ExternalEntity {
     
 
     private Class<?> targetClass;
 
-    private int index = -1;
-
-    private List<Column> columns;
-    
     private ExecutionContext ec;
 
     public ReadCollection(Selector selector, ByteConverterContext context,
@@ -58,85 +47,24 @@ public class ReadCollection extends ExternalEntity implements
     }
 
     /**
-     * Get the slice predicate for selecting all the columns from the given
-     * start key (inclusive). If the key is null, the range reads from the
-     * beginning. Reads up to the max for the given column from start using
-     * count.
+     * Returns the row key of the element the column references
      * 
-     * @param count
-     * @param startKey
+     * @param column
      * @return
      */
-    public void fetchColumns(int count, Bytes startKey) {
-
-        SliceRange range = new SliceRange();
-
-        int length = ownerColumn.length() + 1;
-
-        if (startKey != null) {
-            length += startKey.length();
-        }
-
-        ByteBuffer startBuff = ByteBuffer.allocate(length);
-        startBuff.mark();
-        startBuff.put(ownerColumn.toByteArray());
-        startBuff.put(DELIM_MIN);
-
-        if (startKey != null) {
-            startBuff.put(startKey.toByteArray());
-        }
-
-        startBuff.reset();
-
-        range.setStart(startBuff);
-
-        ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
-        endBuff.mark();
-        endBuff.put(ownerColumn.toByteArray());
-        endBuff.put(DELIM_MAX);
-        endBuff.reset();
-
-        range.setFinish(endBuff);
-        range.setCount(count);
-
-        SlicePredicate predicate = new SlicePredicate();
-
-        predicate.setSlice_range(range);
-
-        columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
-                predicate, Consistency.get());
-
-    }
-
-    @Override
-    public Iterator<Object> iterator() {
-        return this;
-    }
-
-    @Override
-    public boolean hasNext() {
-        return columns != null && index + 1 < columns.size();
+    public Bytes getElementKey(Column column) {
+        return Bytes.fromByteBuffer(getElementName(column));
     }
 
     /**
-     * Returns the bytes as an object identity
+     * Returns the column as an object identity
+     * 
+     * @param column
+     * @return
      */
-    @Override
-    public Object next() {
-        if (++index > columns.size()) {
-            throw new NoSuchElementException("No elements left");
-        }
-        
-        ByteBuffer buffer = columns.get(index).name;
-        buffer.position(buffer.position()+ownerColumn.length()+1);
-
+    public Object getIdentity(Column column) {
         return context.getObjectIdentity(ec, targetClass,
-                Bytes.fromByteBuffer(buffer));
-
+                Bytes.fromByteBuffer(getElementName(column)));
     }
 
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException("remove isn't supported");
-    }
 }
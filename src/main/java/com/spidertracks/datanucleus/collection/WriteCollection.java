@@ -21,10 +21,10 @@ import java.nio.ByteBuffer;
 
 import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.CassandraMutator;
 
 /**
  * Object for writing collection columns
@@ -47,19 +47,8 @@ public class WriteCollection extends ExternalEntityWriter {
      * Write the relationship column
      * @param mutator
      */
-    public void writeRelationship(Mutator mutator, Object entityKey) {
-        // a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
-        ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
-
-        buffer.mark();
-        buffer.put(ownerColumn.toByteArray());
-        buffer.put(DELIM_MIN);
-        buffer = this.context.getRowKeyForId(entityKey, buffer);
-        buffer.limit(buffer.position());
-
-        buffer.reset();
-        
-        super.addStoredColumn(buffer);
+    public void writeRelationship(CassandraMutator mutator, Object entityKey) {
+        ByteBuffer buffer = createColumnName(entityKey);
 
         Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
                 PLACEHOLDER);
@@ -67,4 +56,15 @@ public class WriteCollection extends ExternalEntityWriter {
         mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
 
     }
+
+    /**
+     * Delete the relationship column of an element removed from the
+     * collection
+     * 
+     * @param mutator
+     * @param entityKey
+     */
+    public void removeRelationship(CassandraMutator mutator, Object entityKey) {
+        deleteColumn(mutator, entityKey);
+    }
 }
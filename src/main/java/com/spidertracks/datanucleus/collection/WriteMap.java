@@ -21,10 +21,10 @@ import java.nio.ByteBuffer;
 
 import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.CassandraMutator;
 
 /**
  * Object for writing collection columns
@@ -45,26 +45,23 @@ public class WriteMap extends ExternalEntityWriter {
      * Write the relationship column
      * @param mutator
      */
-    public void writeRelationship(Mutator mutator, Object key, Object entityKey) {
-        // a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
-        ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
-
-        buffer.mark();
-        buffer.put(ownerColumn.toByteArray());
-        buffer.put(DELIM_MIN);
-        buffer = context.getRowKeyForId(key, buffer);
-        buffer.limit(buffer.position());
-        buffer.reset();
-        
-        super.addStoredColumn(buffer);
+    public void writeRelationship(CassandraMutator mutator, Object key, Object entityKey) {
+        ByteBuffer buffer = createColumnName(key);
         
-        ByteBuffer value = context.getRowKeyForId(entityKey, null);
-        value.reset();
-
         Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-                Bytes.fromByteBuffer(value));
+                context.getRowKeyForId(entityKey));
 
         mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
 
     }
+
+    /**
+     * Delete the relationship column of a key removed from the map
+     * 
+     * @param mutator
+     * @param key
+     */
+    public void removeRelationship(CassandraMutator mutator, Object key) {
+        deleteColumn(mutator, key);
+    }
 }
@@ -38,7 +38,7 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @version $Id$
  * @since 1.1.1-0.7.0
  */
-public class ArrayConverter implements ByteConverter
+public class ArrayConverter implements SizedByteConverter
 {
     /** The converter for the type of object which this converter handles an array of. */
     private final ByteConverter innerConverter;
@@ -134,26 +134,48 @@ public class ArrayConverter implements ByteConverter
             return ConverterUtils.check(buffer, 1).put((byte) 0xFF);
         }
 
-        ByteBuffer tmpBuff = ByteBuffer.allocate(65535);
+        // Only used for entries whose size the inner converter can't tell.
+        ByteBuffer tmpBuff = null;
         ByteBuffer out = buffer;
 
-        for (int i = 0; i < values.length; i++) {
-            // Need to mark the temp buffer because check() uses reset().
-            tmpBuff.mark();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                int length = ConverterUtils.getSize(this.innerConverter, values[i], context);
+
+                if (length >= 0) {
+                    // The size is known, write the entry straight to the out buffer.
+                    // Check only what the entry takes, so a buffer sized by getSize fits.
+                    out = ConverterUtils.check(out, lengthSize(length) + length);
+
+                    writeLength(length, out);
+
+                    out = this.innerConverter.writeBytes(values[i], out, context);
+
+                    // A nested array sets the limit at its end, open the buffer up again.
+                    out.limit(out.capacity());
+                    continue;
+                }
+
+                if (tmpBuff == null) {
+                    tmpBuff = BufferPool.acquire();
+                }
 
-            tmpBuff = this.innerConverter.writeBytes(values[i], tmpBuff, context);
-            int length = tmpBuff.position();
+                tmpBuff = this.innerConverter.writeBytes(values[i], tmpBuff, context);
+                length = tmpBuff.position();
 
-            // Check 7 bytes + length because 7 is the
-            // greatest number of bytes it can take to represent a length.
-            out = ConverterUtils.check(out, length + 7);
+                // Check the encoded length + length, the exact size of the entry.
+                out = ConverterUtils.check(out, lengthSize(length) + length);
 
-            writeLength(length, out);
+                writeLength(length, out);
 
-            // Copy the content from the temp buffer to the out buffer.
-            tmpBuff.flip();
-            out.put(tmpBuff);
-            tmpBuff.clear();
+                // Copy the content from the temp buffer to the out buffer.
+                tmpBuff.flip();
+                out.put(tmpBuff);
+                tmpBuff.clear();
+                tmpBuff.mark();
+            }
+        } finally {
+            BufferPool.release(tmpBuff);
         }
 
         // Set the limit of this buffer at the current location.
@@ -162,6 +184,39 @@ public class ArrayConverter implements ByteConverter
         return out;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @see SizedByteConverter#getSize(Object, ByteConverterContext)
+     */
+    @Override
+    public int getSize(final Object value, final ByteConverterContext context)
+    {
+        if (value == null) {
+            return 0;
+        }
+
+        final Object[] values = (Object[]) value;
+
+        if (values.length == 0) {
+            return 1;
+        }
+
+        int size = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            int length = ConverterUtils.getSize(this.innerConverter, values[i], context);
+
+            if (length < 0) {
+                return -1;
+            }
+
+            size += lengthSize(length) + length;
+        }
+
+        return size;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -206,6 +261,25 @@ public class ArrayConverter implements ByteConverter
         writeTo.putShort((short) 0xFFFF).putInt(length);
     }
 
+    /**
+     * The number of bytes {@link #writeLength(int, ByteBuffer)} uses for the length.
+     *
+     * @param length the length of the content.
+     * @return the size of the encoded length.
+     */
+    private static int lengthSize(final int length)
+    {
+        if (length < 255) {
+            return 1;
+        }
+
+        if (length < 65535) {
+            return 3;
+        }
+
+        return 7;
+    }
+
     /**
      * Read a length of a piece of data as generated by {@link #writeLength(int, ByteBuffer)}.
      *
@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  *
  */
-public class BooleanConverter implements ByteConverter {
+public class BooleanConverter implements BooleanByteConverter,
+        SizedByteConverter {
 
     private static final byte TRUE = 1;
     private static final byte FALSE = 0;
@@ -42,9 +43,19 @@ public class BooleanConverter implements ByteConverter {
 
     @Override
     public ByteBuffer writeBytes(Object value, ByteBuffer buffer, ByteConverterContext context) {
+        return writeBoolean((Boolean) value, buffer);
+    }
+
+    @Override
+    public boolean readBoolean(ByteBuffer buffer) {
+        return buffer.get(buffer.position()) == TRUE;
+    }
+
+    @Override
+    public ByteBuffer writeBoolean(boolean value, ByteBuffer buffer) {
         ByteBuffer checked = check(buffer, 1);
         
-        if((Boolean) value){
+        if(value){
             checked.put(TRUE);
         }else{
             checked.put(FALSE);
@@ -57,6 +68,11 @@ public class BooleanConverter implements ByteConverter {
 
     
 
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : 1;
+    }
+
     @Override
     public String getComparatorType() {
         return ColumnFamilyManager.CFDEF_COMPARATOR_BYTES;
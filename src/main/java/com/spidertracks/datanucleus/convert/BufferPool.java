@@ -0,0 +1,114 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Per thread pool of scratch buffers for values whose size isn't known before
+ * they're written. A buffer is acquired, written to and the result copied to
+ * an exactly sized buffer before the scratch buffer is released. Buffers grow
+ * as required and keep their size when released, so after warming up a
+ * thread writes without allocating scratch space.
+ * 
+ * Buffers are kept in a stack so converters that write nested values, like
+ * arrays of arrays, can hold more than one at a time. Buffers larger than
+ * MAX_POOLED_SIZE are dropped instead of being kept.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BufferPool {
+
+    private static final int INITIAL_SIZE = 256;
+
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>> POOL = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+
+        @Override
+        protected ArrayDeque<ByteBuffer> initialValue() {
+            return new ArrayDeque<ByteBuffer>(MAX_POOLED_BUFFERS);
+        }
+    };
+
+    private BufferPool() {
+    }
+
+    /**
+     * Take a buffer from the current thread's pool or allocate one if the
+     * pool is empty. The buffer is cleared and marked at position 0
+     * 
+     * @return
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.get().poll();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(INITIAL_SIZE);
+        }
+
+        buffer.clear();
+        buffer.mark();
+
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the current thread's pool. Pass the buffer returned
+     * by the last write, since a write may replace the acquired buffer with a
+     * larger one. The buffer must not be used afterwards
+     * 
+     * @param buffer
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasArray() || buffer.arrayOffset() != 0
+                || buffer.capacity() > MAX_POOLED_SIZE) {
+            return;
+        }
+
+        ArrayDeque<ByteBuffer> pool = POOL.get();
+
+        if (pool.size() < MAX_POOLED_BUFFERS) {
+            pool.push(buffer);
+        }
+    }
+
+    /**
+     * Copy everything written to the scratch buffer, from 0 to its position,
+     * to a new buffer of exactly that size. The copy is marked at 0 and
+     * positioned after the copied bytes, like a buffer written by a converter
+     * 
+     * @param scratch
+     * @return
+     */
+    public static ByteBuffer copy(ByteBuffer scratch) {
+        ByteBuffer written = scratch.duplicate();
+        written.flip();
+
+        ByteBuffer copy = ByteBuffer.allocate(written.remaining());
+        copy.mark();
+        copy.put(written);
+
+        return copy;
+    }
+
+}
@@ -21,14 +21,13 @@ import static com.spidertracks.datanucleus.convert.ConverterUtils.check;
 
 import java.nio.ByteBuffer;
 
-import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.ColumnFamilyManager;
 
 /**
  * @author Todd Nine
  *
  */
-public class ByteArrayConverter implements ByteConverter{
+public class ByteArrayConverter implements SizedByteConverter{
 
     @Override
     public byte[] getObject(ByteBuffer buffer, ByteConverterContext context) {
@@ -36,7 +35,12 @@ public class ByteArrayConverter implements ByteConverter{
             return null;
         }
         
-        return Bytes.fromByteBuffer(buffer).toByteArray();
+        // always copy, the buffer may be shared with the rest of the row
+        byte[] data = new byte[buffer.remaining()];
+
+        buffer.duplicate().get(data);
+
+        return data;
     }
 
     @Override
@@ -48,6 +52,11 @@ public class ByteArrayConverter implements ByteConverter{
         return checked.put(bytes);
     }
 
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : ((byte[]) value).length;
+    }
+
     @Override
     public String getComparatorType() {
         return ColumnFamilyManager.CFDEF_COMPARATOR_BYTES;
@@ -97,7 +97,11 @@ import com.spidertracks.datanucleus.serialization.Serializer;
  */
 public class ByteConverterContext {
 
-    private Map<Class<?>, ByteConverter> converters;
+    // copy on write, never modified once published so reads don't need a lock
+    private volatile Map<Class<?>, ByteConverter> converters;
+
+    // serializes the copies of converters
+    private Object convertersLock = new Object();
 
     private ByteConverter boolConverter;
     private ByteConverter charConverter;
@@ -109,6 +113,16 @@ public class ByteConverterContext {
     private ByteConverter stringConverter;
     private ByteConverter serializerConverter;
 
+    // the primitive forms of the converters above, null if a user defined
+    // converter doesn't support them
+    private BooleanByteConverter boolPrimitive;
+    private CharByteConverter charPrimitive;
+    private ShortByteConverter shortPrimitive;
+    private IntByteConverter intPrimitive;
+    private DoubleByteConverter doublePrimitive;
+    private LongByteConverter longPrimitive;
+    private FloatByteConverter floatPrimitive;
+
     private Serializer serializer;
     private TypeManager typeManager;
     private ApiAdapter apiAdapter;
@@ -129,7 +143,7 @@ public class ByteConverterContext {
      * @param propertiesFilePath
      */
     private void initialize(String propertiesFilePath) {
-        converters = new HashMap<Class<?>, ByteConverter>();
+        Map<Class<?>, ByteConverter> converters = new HashMap<Class<?>, ByteConverter>();
 
         /**
          * Load our defaults
@@ -197,8 +211,38 @@ public class ByteConverterContext {
         this.shortConverter = converters.get(Short.class);
         this.stringConverter = converters.get(String.class);
 
+        if (boolConverter instanceof BooleanByteConverter) {
+            this.boolPrimitive = (BooleanByteConverter) boolConverter;
+        }
+
+        if (charConverter instanceof CharByteConverter) {
+            this.charPrimitive = (CharByteConverter) charConverter;
+        }
+
+        if (doubleConverter instanceof DoubleByteConverter) {
+            this.doublePrimitive = (DoubleByteConverter) doubleConverter;
+        }
+
+        if (floatConverter instanceof FloatByteConverter) {
+            this.floatPrimitive = (FloatByteConverter) floatConverter;
+        }
+
+        if (intConverter instanceof IntByteConverter) {
+            this.intPrimitive = (IntByteConverter) intConverter;
+        }
+
+        if (longConverter instanceof LongByteConverter) {
+            this.longPrimitive = (LongByteConverter) longConverter;
+        }
+
+        if (shortConverter instanceof ShortByteConverter) {
+            this.shortPrimitive = (ShortByteConverter) shortConverter;
+        }
+
         this.serializerConverter = new SerializerWrapperConverter(serializer);
 
+        this.converters = converters;
+
     }
 
     /**
@@ -266,7 +310,7 @@ public class ByteConverterContext {
             objectId = id;
         }
 
-        ByteConverter converter = determineConverter(objectId.getClass());
+        ByteConverter converter = getConverter(objectId.getClass());
 
         if (converter == serializerConverter) {
             throw new NucleusDataStoreException(
@@ -276,6 +320,10 @@ public class ByteConverterContext {
                             ByteAware.class.getName()));
         }
 
+        if (buffer == null) {
+            return writeExact(converter, objectId);
+        }
+
         return convertToBytes(converter, objectId, buffer);
 
     }
@@ -296,17 +344,7 @@ public class ByteConverterContext {
      * @return
      */
     public Bytes getBytes(Object value) {
-        ByteConverter converter = converters.get(value.getClass());
-
-        if (converter != null) {
-            return convertPelops(converter, value);
-        }
-
-        converter = determineConverter(value.getClass());
-
-        converters.put(value.getClass(), converter);
-
-        return convertPelops(converter, value);
+        return convertPelops(getConverter(value.getClass()), value);
     }
 
     /**
@@ -319,13 +357,10 @@ public class ByteConverterContext {
      */
     public ByteBuffer getBytes(Object value, ByteBuffer buffer) {
 
-        ByteConverter converter = converters.get(value.getClass());
-
-        if (converter == null) {
+        ByteConverter converter = getConverter(value.getClass());
 
-            converter = determineConverter(value.getClass());
-
-            converters.put(value.getClass(), converter);
+        if (buffer == null) {
+            return writeExact(converter, value);
         }
 
         return converter.writeBytes(value, buffer, this);
@@ -375,17 +410,7 @@ public class ByteConverterContext {
      * @return
      */
     public Object getObject(ByteBuffer buffer, Class<?> targetType) {
-        ByteConverter converter = converters.get(targetType);
-
-        if (converter != null) {
-            return convertToObject(converter, buffer);
-        }
-
-        converter = determineConverter(targetType);
-
-        converters.put(targetType, converter);
-
-        return convertToObject(converter, buffer);
+        return convertToObject(getConverter(targetType), buffer);
     }
 
     /**
@@ -406,19 +431,69 @@ public class ByteConverterContext {
      * @return
      */
     public Object getObject(Bytes value, Class<?> targetType) {
+        return convertToObject(getConverter(targetType), value);
+    }
 
-        ByteConverter converter = converters.get(targetType);
+    /**
+     * Get the converter for the class, creating and caching it if required.
+     * Allows callers to resolve the converter for a type once and reuse it.
+     * Safe to call from any thread, a cached converter is returned without
+     * locking
+     *
+     * @param clazz
+     * @return
+     */
+    public ByteConverter getConverter(Class<?> clazz) {
+        ByteConverter converter = converters.get(clazz);
 
         if (converter != null) {
-            return convertToObject(converter, value);
+            return converter;
         }
 
-        converter = determineConverter(targetType);
+        converter = determineConverter(clazz);
 
-        converters.put(targetType, converter);
+        synchronized (convertersLock) {
+            // another thread may have cached one in the mean time, keep theirs
+            // so every caller shares the same instance
+            ByteConverter existing = converters.get(clazz);
 
-        return convertToObject(converter, value);
+            if (existing != null) {
+                return existing;
+            }
+
+            Map<Class<?>, ByteConverter> copy = new HashMap<Class<?>, ByteConverter>(
+                    converters);
+
+            copy.put(clazz, converter);
 
+            converters = copy;
+        }
+
+        return converter;
+    }
+
+    /**
+     * Convert the value with a converter previously returned by
+     * {@link #getConverter(Class)}
+     *
+     * @param converter
+     * @param value
+     * @return
+     */
+    public Bytes getBytes(ByteConverter converter, Object value) {
+        return convertPelops(converter, value);
+    }
+
+    /**
+     * Convert the bytes with a converter previously returned by
+     * {@link #getConverter(Class)}
+     *
+     * @param converter
+     * @param buffer
+     * @return
+     */
+    public Object getObject(ByteConverter converter, ByteBuffer buffer) {
+        return convertToObject(converter, buffer);
     }
 
     /**
@@ -450,7 +525,7 @@ public class ByteConverterContext {
         // 2. If the class is an array then look inside of it and try using the inner class.
         if (clazz.isArray()) {
             final ByteConverter innerConverter =
-                this.determineConverter(clazz.getComponentType());
+                this.getConverter(clazz.getComponentType());
             // It makes no sense to store an array of opaque objects so if the converter
             // is the serializerConverter then we won't bother looking in the array.
             if (innerConverter == this.serializerConverter) {
@@ -550,7 +625,7 @@ public class ByteConverterContext {
      */
     public String getValidationClass(Class<?> fieldClass) {
 
-        ByteConverter converter = determineConverter(fieldClass);
+        ByteConverter converter = getConverter(fieldClass);
 
         return converter.getComparatorType();
     }
@@ -623,6 +698,146 @@ public class ByteConverterContext {
         return (Character) convertToObject(this.charConverter, bytes);
     }
 
+    /**
+     * The primitive conversions below don't box the value when the registered
+     * converter implements the matching primitive interface, such as
+     * {@link IntByteConverter}. Otherwise they fall back to the converter's
+     * object methods. Reads don't change the position of the buffer.
+     */
+
+    public Bytes getBytes(boolean value) {
+        if (boolPrimitive == null) {
+            return getBytes(Boolean.valueOf(value));
+        }
+
+        return wrap(boolPrimitive.writeBoolean(value, null));
+    }
+
+    public boolean readBoolean(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (boolPrimitive == null) {
+            return (Boolean) convertToObject(boolConverter,
+                    buffer.duplicate());
+        }
+
+        return boolPrimitive.readBoolean(buffer);
+    }
+
+    public Bytes getBytes(short value) {
+        if (shortPrimitive == null) {
+            return getBytes(Short.valueOf(value));
+        }
+
+        return wrap(shortPrimitive.writeShort(value, null));
+    }
+
+    public short readShort(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (shortPrimitive == null) {
+            return (Short) convertToObject(shortConverter,
+                    buffer.duplicate());
+        }
+
+        return shortPrimitive.readShort(buffer);
+    }
+
+    public Bytes getBytes(int value) {
+        if (intPrimitive == null) {
+            return getBytes(Integer.valueOf(value));
+        }
+
+        return wrap(intPrimitive.writeInt(value, null));
+    }
+
+    public int readInt(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (intPrimitive == null) {
+            return (Integer) convertToObject(intConverter,
+                    buffer.duplicate());
+        }
+
+        return intPrimitive.readInt(buffer);
+    }
+
+    public Bytes getBytes(double value) {
+        if (doublePrimitive == null) {
+            return getBytes(Double.valueOf(value));
+        }
+
+        return wrap(doublePrimitive.writeDouble(value, null));
+    }
+
+    public double readDouble(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (doublePrimitive == null) {
+            return (Double) convertToObject(doubleConverter,
+                    buffer.duplicate());
+        }
+
+        return doublePrimitive.readDouble(buffer);
+    }
+
+    public Bytes getBytes(long value) {
+        if (longPrimitive == null) {
+            return getBytes(Long.valueOf(value));
+        }
+
+        return wrap(longPrimitive.writeLong(value, null));
+    }
+
+    public long readLong(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (longPrimitive == null) {
+            return (Long) convertToObject(longConverter,
+                    buffer.duplicate());
+        }
+
+        return longPrimitive.readLong(buffer);
+    }
+
+    public Bytes getBytes(float value) {
+        if (floatPrimitive == null) {
+            return getBytes(Float.valueOf(value));
+        }
+
+        return wrap(floatPrimitive.writeFloat(value, null));
+    }
+
+    public float readFloat(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (floatPrimitive == null) {
+            return (Float) convertToObject(floatConverter,
+                    buffer.duplicate());
+        }
+
+        return floatPrimitive.readFloat(buffer);
+    }
+
+    public Bytes getBytes(char value) {
+        if (charPrimitive == null) {
+            return getBytes(Character.valueOf(value));
+        }
+
+        return wrap(charPrimitive.writeChar(value, null));
+    }
+
+    public char readChar(ByteBuffer buffer) {
+        checkPresent(buffer);
+
+        if (charPrimitive == null) {
+            return (Character) convertToObject(charConverter,
+                    buffer.duplicate());
+        }
+
+        return charPrimitive.readChar(buffer);
+    }
+
     /**
      * Wrap the buffer in pelops bytes
      * 
@@ -634,6 +849,31 @@ public class ByteConverterContext {
         return Bytes.fromByteBuffer(convertToBytes(converter, value));
     }
 
+    /**
+     * Wrap a newly written buffer, from its mark to the current position
+     * 
+     * @param buffer
+     * @return
+     */
+    private Bytes wrap(ByteBuffer buffer) {
+        buffer.limit(buffer.position());
+        buffer.reset();
+
+        return Bytes.fromByteBuffer(buffer);
+    }
+
+    /**
+     * Primitives can't be null, fail if the column wasn't stored
+     * 
+     * @param buffer
+     */
+    private void checkPresent(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new NucleusDataStoreException(
+                    "No value is stored for the primitive field");
+        }
+    }
+
     /**
      * Allocate a byte buffer and convert the bytes with the given converter.
      * Performs a mark and a reset on the internal buffer before invoking the
@@ -644,10 +884,14 @@ public class ByteConverterContext {
      * @return
      */
     private ByteBuffer convertToBytes(ByteConverter converter, Object value) {
-        ByteBuffer buff = converter.writeBytes(value, null, this);
+        if (value == null) {
+            return converter.writeBytes(value, null, this);
+        }
+
+        ByteBuffer buff = writeExact(converter, value);
 
         if (buff != null) {
-            buff.limit();
+            buff.limit(buff.position());
             buff.reset();
         }
         
@@ -656,6 +900,37 @@ public class ByteConverterContext {
         return buff;
     }
 
+    /**
+     * Write the value to a new buffer of exactly its size. If the converter
+     * can't tell the size up front the value is written to a pooled buffer
+     * and copied. Like a buffer passed to a converter the returned buffer is
+     * marked at 0 and positioned after the value
+     * 
+     * @param converter
+     * @param value
+     * @return
+     */
+    private ByteBuffer writeExact(ByteConverter converter, Object value) {
+        int size = ConverterUtils.getSize(converter, value, this);
+
+        if (size >= 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.mark();
+
+            return converter.writeBytes(value, buffer, this);
+        }
+
+        ByteBuffer scratch = BufferPool.acquire();
+
+        try {
+            scratch = converter.writeBytes(value, scratch, this);
+
+            return BufferPool.copy(scratch);
+        } finally {
+            BufferPool.release(scratch);
+        }
+    }
+
     /**
      * Write to the given buffer but do not rewind it.
      * 
@@ -0,0 +1,51 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A converter that can read and write char values without boxing them.
+ * Character fields are converted with these methods when the converter
+ * registered for Character implements this interface.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface CharByteConverter extends ByteConverter {
+
+    /**
+     * Read the value at the buffer's position. The position of the buffer is
+     * not changed, so the same buffer can be read again.
+     * 
+     * @param buffer
+     * @return
+     */
+    public char readChar(ByteBuffer buffer);
+
+    /**
+     * Write the value to the given buffer with the same rules as
+     * {@link ByteConverter#writeBytes(Object, ByteBuffer, ByteConverterContext)}
+     * 
+     * @param value
+     * @param buffer
+     * @return The buffer to use for the next write
+     */
+    public ByteBuffer writeChar(char value, ByteBuffer buffer);
+
+}
@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  *
  */
-public class CharacterConverter implements ByteConverter {
+public class CharacterConverter implements CharByteConverter,
+        SizedByteConverter {
 
     private static final int SIZE = Character.SIZE / Byte.SIZE;
     
@@ -40,9 +41,24 @@ public class CharacterConverter implements ByteConverter {
 
     @Override
     public ByteBuffer writeBytes(Object value, ByteBuffer buff, ByteConverterContext context) {
-        ByteBuffer returned = check(buff, SIZE);
-        
-        return returned.putChar((Character) value);
+        return writeChar((Character) value, buff);
+    }
+
+    @Override
+    public char readChar(ByteBuffer buffer) {
+        return buffer.getChar(buffer.position());
+    }
+
+    @Override
+    public ByteBuffer writeChar(char value, ByteBuffer buffer) {
+        ByteBuffer returned = check(buffer, SIZE);
+
+        return returned.putChar(value);
+    }
+
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
     }
 
     @Override
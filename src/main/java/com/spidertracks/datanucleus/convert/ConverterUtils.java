@@ -18,7 +18,6 @@ Contributors :
 package com.spidertracks.datanucleus.convert;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * @author Todd Nine
@@ -27,8 +26,12 @@ import java.util.Arrays;
 public class ConverterUtils  {
 
     /**
-     * Check if the buffer has the remaining capacity to hold the number
-     * of bytes.  If not, create a new buffer with the required size and return it
+     * Check if the buffer has the remaining capacity to hold the number of
+     * bytes. If not, create a new buffer with all bytes written so far and room
+     * for at least size more and return it. Buffers grow to at least twice
+     * their capacity, so writing many values to the same buffer copies it a
+     * logarithmic number of times
+     * 
      * @param buffer
      * @param size
      * @return
@@ -45,12 +48,11 @@ public class ConverterUtils  {
 
             int position = buffer.position();
 
-            ByteBuffer newBuffer = ByteBuffer.allocate(position + size + 1);
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(position
+                    + size, buffer.capacity() * 2));
             newBuffer.mark();
 
-            buffer.reset();
-
-            newBuffer.put(Arrays.copyOfRange(buffer.array(), 0, position));
+            newBuffer.put(buffer.array(), buffer.arrayOffset(), position);
 
             return newBuffer;
 
@@ -59,4 +61,22 @@ public class ConverterUtils  {
         return buffer;
     }
 
+    /**
+     * Get the number of bytes the converter will write for the value
+     * 
+     * @param converter
+     * @param value
+     * @param context
+     * @return The size or -1 if the converter can't tell
+     * @see SizedByteConverter
+     */
+    public static int getSize(ByteConverter converter, Object value,
+            ByteConverterContext context) {
+        if (converter instanceof SizedByteConverter) {
+            return ((SizedByteConverter) converter).getSize(value, context);
+        }
+
+        return -1;
+    }
+
 }
@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class DoubleConverter implements ByteConverter {
+public class DoubleConverter implements DoubleByteConverter,
+        SizedByteConverter {
 
     private static final int SIZE = Double.SIZE / Byte.SIZE;
 
@@ -45,12 +46,27 @@ public class DoubleConverter implements ByteConverter {
             return buffer;
         }
 
+        return writeDouble((Double) value, buffer);
+    }
+
+    
+    @Override
+    public double readDouble(ByteBuffer buffer) {
+        return buffer.getDouble(buffer.position());
+    }
+
+    @Override
+    public ByteBuffer writeDouble(double value, ByteBuffer buffer) {
         ByteBuffer returned = check(buffer, SIZE);
 
-        return returned.putDouble((Double) value);
+        return returned.putDouble(value);
+    }
+
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
     }
 
-    
     @Override
     public String getComparatorType() {
         return ColumnFamilyManager.CFDEF_COMPARATOR_INTEGER;
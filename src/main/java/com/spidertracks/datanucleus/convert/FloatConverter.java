@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class FloatConverter implements ByteConverter {
+public class FloatConverter implements FloatByteConverter,
+        SizedByteConverter {
 
     private static final int SIZE = Float.SIZE / Byte.SIZE;
 
@@ -45,12 +46,27 @@ public class FloatConverter implements ByteConverter {
             return buffer;
         }
 
-        ByteBuffer checked = check(buffer, SIZE);
-        
-        return checked.putFloat((Float) value);
+        return writeFloat((Float) value, buffer);
     }
 
 
+    @Override
+    public float readFloat(ByteBuffer buffer) {
+        return buffer.getFloat(buffer.position());
+    }
+
+    @Override
+    public ByteBuffer writeFloat(float value, ByteBuffer buffer) {
+        ByteBuffer returned = check(buffer, SIZE);
+
+        return returned.putFloat(value);
+    }
+
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
+    }
+
     @Override
     public String getComparatorType() {
         return ColumnFamilyManager.CFDEF_COMPARATOR_LONG;
@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class IntegerConverter implements ByteConverter {
+public class IntegerConverter implements IntByteConverter,
+        SizedByteConverter {
 
     private static final int SIZE = Integer.SIZE / Byte.SIZE;
 
@@ -44,11 +45,26 @@ public class IntegerConverter implements ByteConverter {
         if (value == null) {
             return buffer;
         }
+        return writeInt((Integer) value, buffer);
+    }
+
+
+    @Override
+    public int readInt(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position());
+    }
+
+    @Override
+    public ByteBuffer writeInt(int value, ByteBuffer buffer) {
         ByteBuffer returned = check(buffer, SIZE);
 
-        return returned.putInt((Integer) value);
+        return returned.putInt(value);
     }
 
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
+    }
 
     @Override
     public String getComparatorType() {
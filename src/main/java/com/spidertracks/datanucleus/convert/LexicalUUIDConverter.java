@@ -27,7 +27,7 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class LexicalUUIDConverter implements ByteConverter {
+public class LexicalUUIDConverter implements SizedByteConverter {
 
     private static final int SIZE = 128 / Byte.SIZE;
 
@@ -61,6 +61,11 @@ public class LexicalUUIDConverter implements ByteConverter {
     }
 
 
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
+    }
+
     @Override
     public String getComparatorType() {
         return ColumnFamilyManager.CFDEF_COMPARATOR_LEXICAL_UUID;
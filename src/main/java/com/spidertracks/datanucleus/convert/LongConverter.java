@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class LongConverter implements ByteConverter {
+public class LongConverter implements LongByteConverter,
+        SizedByteConverter {
 
     private static final int SIZE = Long.SIZE / Byte.SIZE;
 
@@ -45,9 +46,24 @@ public class LongConverter implements ByteConverter {
             return buffer;
         }
 
+        return writeLong((Long) value, buffer);
+    }
+
+    @Override
+    public long readLong(ByteBuffer buffer) {
+        return buffer.getLong(buffer.position());
+    }
+
+    @Override
+    public ByteBuffer writeLong(long value, ByteBuffer buffer) {
         ByteBuffer returned = check(buffer, SIZE);
 
-        return returned.putLong((Long) value);
+        return returned.putLong(value);
+    }
+
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
     }
 
     @Override
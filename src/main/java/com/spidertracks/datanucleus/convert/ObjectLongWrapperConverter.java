@@ -29,7 +29,7 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class ObjectLongWrapperConverter implements ByteConverter {
+public class ObjectLongWrapperConverter implements SizedByteConverter {
 
     private ObjectLongConverter dnLongConverter;
     private ByteConverter longConverter;
@@ -61,6 +61,12 @@ public class ObjectLongWrapperConverter implements ByteConverter {
 
     }
 
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return ConverterUtils.getSize(longConverter,
+                dnLongConverter.toLong(value), context);
+    }
+
     
 
 }
@@ -22,6 +22,7 @@ import java.nio.ByteBuffer;
 
 import org.scale7.cassandra.pelops.ColumnFamilyManager;
 
+import com.spidertracks.datanucleus.serialization.BufferSerializer;
 import com.spidertracks.datanucleus.serialization.Serializer;
 
 /**
@@ -43,10 +44,14 @@ public class SerializerWrapperConverter implements ByteConverter {
             return null;
         }
 
-        // TODO this be required to copy
-        byte[] data = new byte[buffer.limit() - buffer.position()];
+        // read in place if the serializer can, otherwise it needs a copy
+        if (serializer instanceof BufferSerializer) {
+            return ((BufferSerializer) serializer).getObject(buffer);
+        }
+
+        byte[] data = new byte[buffer.remaining()];
 
-        buffer.get(data);
+        buffer.duplicate().get(data);
 
         return serializer.getObject(data);
 
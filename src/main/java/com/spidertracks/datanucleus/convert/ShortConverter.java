@@ -26,7 +26,8 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class ShortConverter implements ByteConverter {
+public class ShortConverter implements ShortByteConverter,
+        SizedByteConverter {
 
     private static final int SIZE = Short.SIZE / Byte.SIZE;
 
@@ -45,12 +46,27 @@ public class ShortConverter implements ByteConverter {
             return buffer;
         }
 
-        ByteBuffer returned = check(buffer, SIZE);
+        return writeShort((Short) value, buffer);
+
+    }
 
-        return returned.putShort((Short) value);
 
+    @Override
+    public short readShort(ByteBuffer buffer) {
+        return buffer.getShort(buffer.position());
     }
 
+    @Override
+    public ByteBuffer writeShort(short value, ByteBuffer buffer) {
+        ByteBuffer returned = check(buffer, SIZE);
+
+        return returned.putShort(value);
+    }
+
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
+    }
 
     @Override
     public String getComparatorType() {
@@ -0,0 +1,44 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+/**
+ * A converter that can tell how many bytes a value will take before writing
+ * it. Values are written to a buffer of exactly that size when the converter
+ * registered for their type implements this interface, otherwise they're
+ * written to a pooled buffer and copied.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface SizedByteConverter extends ByteConverter {
+
+    /**
+     * Get the number of bytes
+     * {@link ByteConverter#writeBytes(Object, java.nio.ByteBuffer, ByteConverterContext)}
+     * will write for the value. Should be cheap, the value is converted again
+     * when it's written.
+     * 
+     * @param value
+     * @param context
+     * @return The number of bytes or -1 if it can't be determined without
+     *         writing the value
+     */
+    public int getSize(Object value, ByteConverterContext context);
+
+}
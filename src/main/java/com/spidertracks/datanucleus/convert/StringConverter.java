@@ -28,7 +28,7 @@ import org.scale7.cassandra.pelops.ColumnFamilyManager;
  * @author Todd Nine
  * 
  */
-public class StringConverter implements ByteConverter {
+public class StringConverter implements SizedByteConverter {
 
     private static final Charset ENCODING = Charset.forName("UTF-8");
 
@@ -43,8 +43,13 @@ public class StringConverter implements ByteConverter {
             return null;
         }
 
-        return new String(buffer.array(), buffer.position(),
-                buffer.remaining(), ENCODING);
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset()
+                    + buffer.position(), buffer.remaining(), ENCODING);
+        }
+
+        // direct or read only, decode without touching the buffer's position
+        return ENCODING.decode(buffer.duplicate()).toString();
 
     }
 
@@ -59,4 +64,43 @@ public class StringConverter implements ByteConverter {
         return returned.put(bytes);
     }
 
+    /**
+     * Count the UTF-8 length of the string without encoding it. Unpaired
+     * surrogates are replaced with '?' when encoded, so they count as 1 byte
+     */
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        if (value == null) {
+            return 0;
+        }
+
+        String string = (String) value;
+        int length = string.length();
+        int size = length;
+
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+
+            if (c < 0x80) {
+                continue;
+            }
+
+            if (c < 0x800) {
+                size += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                // the pair is 2 chars and 4 bytes
+                size += 2;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE
+                    && c <= Character.MAX_SURROGATE) {
+                continue;
+            } else {
+                size += 2;
+            }
+        }
+
+        return size;
+    }
+
 }
@@ -29,7 +29,7 @@ import com.eaio.uuid.UUID;
  * @author Todd Nine
  * 
  */
-public class TimeUUIDConverter implements ByteConverter {
+public class TimeUUIDConverter implements SizedByteConverter {
 
     private static final int SIZE = 128 / Byte.SIZE;
 
@@ -61,6 +61,11 @@ public class TimeUUIDConverter implements ByteConverter {
 
     }
 
+    @Override
+    public int getSize(Object value, ByteConverterContext context) {
+        return value == null ? 0 : SIZE;
+    }
+
     @Override
     public String getComparatorType() {
         return ColumnFamilyManager.CFDEF_COMPARATOR_TIME_UUID;
@@ -16,30 +16,82 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
-import org.scale7.cassandra.pelops.Pelops;
 
 import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.client.Consistency;
 
 /**
  * Internalises all pending operations for a given Execution context.
  * 
+ * A single instance is shared by every execution context of the store
+ * manager, so the operations are tracked in concurrent maps. An execution
+ * context is only used by one thread at a time, so the operations themselves
+ * are never shared between threads. The operations of a context are always
+ * removed once its outermost write or delete ends, whether it succeeded or
+ * not.
+ * 
+ * Normally the mutations are sent when the outermost write of the context
+ * ends. If com.spidertracks.cassandra.coalesceWrites is set, the writes made
+ * in a transaction are instead held in a single batch and sent when the
+ * transaction is flushed or committed. Reads in the transaction won't see the
+ * held writes until then. The columns of a write that fails can't be told
+ * apart from the rest of the held batch, so once a write or delete sharing it
+ * fails the batch is never sent and flushing or committing the transaction
+ * fails.
+ * 
+ * With com.spidertracks.cassandra.writeBehind the batch of a write is queued
+ * and sent by a background thread instead, see {@link WriteBehindQueue}.
+ * Deletes and the batches of coalesced transactions are always sent
+ * directly. Writes queued in a transaction are waited for when it's flushed
+ * and committed, so their failures are reported to the transaction.
+ * 
  * @author Todd Nine
  * 
  */
 public class BatchMutationManager {
 
-    private Map<ExecutionContext, ExecutionContextMutate> contextMutations = new HashMap<ExecutionContext, ExecutionContextMutate>();
-    private Map<ExecutionContext, ExecutionContextDelete> contextDeletions = new HashMap<ExecutionContext, ExecutionContextDelete>();
+    private ConcurrentMap<ExecutionContext, ExecutionContextMutate> contextMutations = new ConcurrentHashMap<ExecutionContext, ExecutionContextMutate>();
+    private ConcurrentMap<ExecutionContext, ExecutionContextDelete> contextDeletions = new ConcurrentHashMap<ExecutionContext, ExecutionContextDelete>();
+    private ConcurrentMap<ExecutionContext, List<Future<Void>>> contextWritesBehind = new ConcurrentHashMap<ExecutionContext, List<Future<Void>>>();
 
-    private CassandraStoreManager manager;
+    private MutationDispatcher dispatcher;
+
+    private boolean coalesceWrites;
+
+    private WriteBehindQueue writeBehind;
 
     public BatchMutationManager(CassandraStoreManager manager) {
-        this.manager = manager;
+        this(manager.getMutationDispatcher(), manager.isCoalesceWrites(),
+                manager.getWriteBehindQueue());
+    }
+
+    /**
+     * 
+     * @param dispatcher
+     *            The dispatcher to send all mutations with
+     * @param coalesceWrites
+     *            True if the writes of a transaction are held until it's
+     *            flushed or committed
+     * @param writeBehind
+     *            The queue to send writes from in the background, null to
+     *            send them directly
+     */
+    public BatchMutationManager(MutationDispatcher dispatcher,
+            boolean coalesceWrites, WriteBehindQueue writeBehind) {
+        this.dispatcher = dispatcher;
+        this.coalesceWrites = coalesceWrites;
+        this.writeBehind = writeBehind;
     }
 
     public ExecutionContextDelete beginDelete(ExecutionContext context,
@@ -67,15 +119,24 @@ public class BatchMutationManager {
      */
     public void endDelete(ExecutionContext context)
             throws Exception {
+        ExecutionContextDelete deletions = contextDeletions.get(context);
+
         // not our root instance, don't create a batch mutation
-        if (!getDeletions(context).popInstance()) {
+        if (deletions == null || !deletions.popInstance()) {
+            return;
+        }
+
+        contextDeletions.remove(context);
+
+        // the deletes were added to the batch of a write that is still in
+        // progress, they're sent when that write ends
+        if (contextMutations.containsKey(context)) {
             return;
         }
 
         // it is our root instance, create the batch mutation.
 
-        getDeletions(context).execute();
-        contextDeletions.remove(context);
+        deletions.getMutator().execute(Consistency.get());
 
     }
 
@@ -90,16 +151,157 @@ public class BatchMutationManager {
      */
     public void endWrite(ExecutionContext context)
             throws Exception {
+        ExecutionContextMutate mutations = contextMutations.get(context);
+
         // not our root instance, don't create a batch mutation
-        if (!getMutations(context).popInstance()) {
+        if (mutations == null || !mutations.popInstance()) {
+            return;
+        }
+
+        // held open until the transaction is flushed or committed
+        if (hold(mutations)) {
+            return;
+        }
+
+        contextMutations.remove(context);
+
+        CassandraMutator mutator = mutations.getMutator();
+
+        // nothing was written, don't bother the flushers or the cluster
+        if (mutator.isEmpty()) {
+            return;
+        }
+
+        // hand the batch to the background flushers
+        if (writeBehind != null) {
+            Future<Void> write = writeBehind.submit(mutator, Consistency.get());
+
+            if (context.getTransaction().isActive()) {
+                trackWriteBehind(context, write);
+            }
+
             return;
         }
 
         // it is our root instance, create the batch mutation.
 
-        getMutations(context).execute();
+        mutator.execute(Consistency.get());
+
+    }
+
+    /**
+     * End a write that failed. If it was the outermost write of the context
+     * everything written by the context is dropped. If the mutations are held
+     * for the transaction they are marked as failed instead, since the
+     * failed write's columns are mixed with the rest of the transaction
+     * 
+     * @param context
+     */
+    public void abortWrite(ExecutionContext context) {
+        ExecutionContextMutate mutations = contextMutations.get(context);
+
+        if (mutations == null) {
+            return;
+        }
+
+        boolean outermost = mutations.popInstance();
+
+        if (mutations.isHeld()) {
+            mutations.setFailed();
+            return;
+        }
+
+        if (!outermost) {
+            return;
+        }
+
         contextMutations.remove(context);
+        mutations.getMutator().discard();
+    }
+
+    /**
+     * End a delete that failed. If it was the outermost delete of the context
+     * its row deletions are dropped. Deletions sharing the batch held for the
+     * transaction mark it as failed
+     * 
+     * @param context
+     */
+    public void abortDelete(ExecutionContext context) {
+        ExecutionContextDelete deletions = contextDeletions.get(context);
+
+        if (deletions == null) {
+            return;
+        }
+
+        boolean outermost = deletions.popInstance();
+
+        ExecutionContextMutate writes = contextMutations.get(context);
+
+        if (writes != null && writes.isHeld()
+                && writes.getMutator() == deletions.getMutator()) {
+            writes.setFailed();
+        }
+
+        if (!outermost) {
+            return;
+        }
+
+        contextDeletions.remove(context);
 
+        // a shared batch is dropped by its write
+        if (writes == null) {
+            deletions.getMutator().discard();
+        }
+    }
+
+    /**
+     * @return True if no execution context has a write or delete in progress
+     *         or held
+     */
+    public boolean isIdle() {
+        return contextMutations.isEmpty() && contextDeletions.isEmpty()
+                && contextWritesBehind.isEmpty();
+    }
+
+    /**
+     * Remember a write queued in the context's transaction. The first time a
+     * context queues a write a listener is added to its transaction which
+     * waits for the writes
+     * 
+     * @param context
+     * @param write
+     */
+    private void trackWriteBehind(ExecutionContext context, Future<Void> write) {
+        List<Future<Void>> writes = contextWritesBehind.get(context);
+
+        if (writes == null) {
+            writes = new ArrayList<Future<Void>>();
+            contextWritesBehind.put(context, writes);
+            context.getTransaction().addTransactionEventListener(
+                    new WriteBehindWait(context));
+        }
+
+        writes.add(write);
+    }
+
+    /**
+     * Wait for the writes the context has queued so far
+     * 
+     * @param context
+     * @throws NucleusDataStoreException
+     *             If any of them failed
+     */
+    private void awaitWritesBehind(ExecutionContext context) {
+        List<Future<Void>> writes = contextWritesBehind.get(context);
+
+        if (writes == null || writes.isEmpty()) {
+            return;
+        }
+
+        List<Future<Void>> pending = new ArrayList<Future<Void>>(writes);
+        writes.clear();
+
+        writeBehind.await(pending);
     }
 
     /**
@@ -113,8 +315,14 @@ public class BatchMutationManager {
 
         if (operations == null) {
             operations = new ExecutionContextMutate(context,
-                    Pelops.createMutator(manager.getPoolName(), System.currentTimeMillis()));
-            contextMutations.put(context, operations);
+                    new CassandraMutator(dispatcher));
+
+            ExecutionContextMutate existing = contextMutations.putIfAbsent(
+                    context, operations);
+
+            if (existing != null) {
+                operations = existing;
+            }
         }
 
         return operations;
@@ -130,12 +338,207 @@ public class BatchMutationManager {
         ExecutionContextDelete operations = contextDeletions.get(context);
 
         if (operations == null) {
-            operations = new ExecutionContextDelete(context, Pelops
-                    .createRowDeletor(manager.getPoolName(), System.currentTimeMillis()));
-            contextDeletions.put(context, operations);
+            ExecutionContextMutate writes = contextMutations.get(context);
+
+            // deletes join the transaction's batch when writes are coalesced,
+            // otherwise they would be sent before writes made earlier
+            if (writes == null && isCoalescing(context)) {
+                writes = getMutations(context);
+                hold(writes);
+            }
+
+            // deletes cascaded from a write share its batch
+            CassandraMutator mutator = writes != null ? writes.getMutator()
+                    : new CassandraMutator(dispatcher);
+
+            operations = new ExecutionContextDelete(context, mutator);
+
+            ExecutionContextDelete existing = contextDeletions.putIfAbsent(
+                    context, operations);
+
+            if (existing != null) {
+                operations = existing;
+            }
         }
 
         return operations;
     }
 
+    /**
+     * @param context
+     * @return True if the writes of the context are held until its
+     *         transaction is flushed or committed
+     */
+    private boolean isCoalescing(ExecutionContext context) {
+        return coalesceWrites && context.getTransaction().isActive();
+    }
+
+    /**
+     * Hold the mutations open until the transaction is flushed or committed if
+     * writes are coalesced. The first time a context's mutations are held a
+     * listener is added to its transaction
+     * 
+     * @param mutations
+     * @return True if the mutations are held
+     */
+    private boolean hold(ExecutionContextMutate mutations) {
+        ExecutionContext context = mutations.getExecutionContext();
+
+        if (!isCoalescing(context)) {
+            return false;
+        }
+
+        if (!mutations.isHeld()) {
+            mutations.setHeld(true);
+            context.getTransaction().addTransactionEventListener(
+                    new TransactionFlush(context));
+        }
+
+        return true;
+    }
+
+    /**
+     * Send everything held for the context. The mutations stay held for the
+     * rest of the transaction
+     * 
+     * @param context
+     */
+    private void flush(ExecutionContext context) {
+        ExecutionContextMutate mutations = contextMutations.get(context);
+
+        if (mutations == null) {
+            return;
+        }
+
+        // part of a failed write, the transaction has to roll back
+        if (mutations.isFailed()) {
+            throw new NucleusDataStoreException(
+                    "A write in this transaction failed, its changes can't be committed");
+        }
+
+        // order the held writes after anything written since they were
+        // created
+        mutations.getMutator().renewTimestamp();
+
+        try {
+            mutations.getMutator().execute(Consistency.get());
+        } catch (NucleusException ne) {
+            throw ne;
+        } catch (Exception e) {
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Drop everything held for the context
+     * 
+     * @param context
+     */
+    private void discard(ExecutionContext context) {
+        ExecutionContextMutate mutations = contextMutations.remove(context);
+
+        if (mutations != null) {
+            mutations.getMutator().discard();
+        }
+    }
+
+    /**
+     * Sends the held mutations of a context when its transaction is flushed
+     * or committed and drops them on rollback
+     */
+    private class TransactionFlush implements TransactionEventListener {
+
+        private ExecutionContext context;
+
+        private TransactionFlush(ExecutionContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void transactionStarted() {
+        }
+
+        @Override
+        public void transactionFlushed() {
+            flush(context);
+        }
+
+        @Override
+        public void transactionPreCommit() {
+            flush(context);
+        }
+
+        @Override
+        public void transactionCommitted() {
+            discard(context);
+        }
+
+        @Override
+        public void transactionPreRollBack() {
+            discard(context);
+        }
+
+        @Override
+        public void transactionRolledBack() {
+            discard(context);
+        }
+
+        @Override
+        public void transactionEnded() {
+            discard(context);
+        }
+    }
+
+    /**
+     * Waits for the writes a context queued in its transaction when the
+     * transaction is flushed or committed. Writes made by the commit's own
+     * flush are waited for once it has committed, so their failures still
+     * reach the committing thread
+     */
+    private class WriteBehindWait implements TransactionEventListener {
+
+        private ExecutionContext context;
+
+        private WriteBehindWait(ExecutionContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void transactionStarted() {
+        }
+
+        @Override
+        public void transactionFlushed() {
+            awaitWritesBehind(context);
+        }
+
+        @Override
+        public void transactionPreCommit() {
+            awaitWritesBehind(context);
+        }
+
+        @Override
+        public void transactionCommitted() {
+            try {
+                awaitWritesBehind(context);
+            } finally {
+                contextWritesBehind.remove(context);
+            }
+        }
+
+        @Override
+        public void transactionPreRollBack() {
+        }
+
+        @Override
+        public void transactionRolledBack() {
+            contextWritesBehind.remove(context);
+        }
+
+        @Override
+        public void transactionEnded() {
+            contextWritesBehind.remove(context);
+        }
+    }
+
 }
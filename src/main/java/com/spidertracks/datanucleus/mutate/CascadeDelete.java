@@ -0,0 +1,469 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.api.ApiAdapter;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.collection.ChangeTracking;
+import com.spidertracks.datanucleus.collection.ColumnSlicePager;
+import com.spidertracks.datanucleus.collection.ReadCollection;
+import com.spidertracks.datanucleus.collection.ReadMap;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.utils.MappingPlan;
+
+/**
+ * Deletes the dependents of a deleted row by key. Only the relationship
+ * columns of the dependent fields are read, the related objects are never
+ * loaded. Rows are processed breadth first, one class at a time, so the single
+ * valued relationships of all rows of a class are read with one multiget.
+ *
+ * The row deletions are added to the delete operation of the execution
+ * context and are sent with it. Dependents already managed by the execution
+ * context are deleted through it instead, so their state, lifecycle
+ * callbacks and listeners follow the delete. Only rows which aren't loaded
+ * are deleted by key, and no lifecycle callbacks are fired for them.
+ *
+ * The stored columns miss dependents linked in the current transaction whose
+ * columns are still held or not flushed yet. For an object managed by the
+ * execution context, the values of its loaded fields are followed as well
+ * with {@link #deleteLoadedDependents(ObjectProvider)}.
+ *
+ * @author Todd Nine
+ *
+ */
+public class CascadeDelete {
+
+    private static final int PAGE_SIZE = 1000;
+
+    private CassandraStoreManager manager;
+
+    private ExecutionContext ec;
+
+    private ExecutionContextDelete delete;
+
+    private Selector selector;
+
+    private ByteConverterContext byteContext;
+
+    private ClassLoaderResolver clr;
+
+    private MetaDataManager metaDataManager;
+
+    // deleted rows whose own dependents haven't been read yet
+    private Map<AbstractClassMetaData, List<Bytes>> pending = new LinkedHashMap<AbstractClassMetaData, List<Bytes>>();
+
+    /**
+     *
+     * @param manager
+     * @param ec
+     * @param delete
+     *            The delete operation the rows are deleted with
+     * @param selector
+     */
+    public CascadeDelete(CassandraStoreManager manager, ExecutionContext ec,
+            ExecutionContextDelete delete, Selector selector) {
+        this.manager = manager;
+        this.ec = ec;
+        this.delete = delete;
+        this.selector = selector;
+        this.byteContext = manager.getByteConverterContext();
+        this.clr = ec.getClassLoaderResolver();
+        this.metaDataManager = ec.getMetaDataManager();
+    }
+
+    /**
+     * Delete everything that depends on the row, recursively. The row itself
+     * must already have been added to the delete operation
+     *
+     * @param metaData
+     *            The class stored in the row
+     * @param key
+     */
+    public void deleteDependents(AbstractClassMetaData metaData, Bytes key) {
+        queue(metaData, key);
+
+        while (!pending.isEmpty()) {
+            Iterator<Entry<AbstractClassMetaData, List<Bytes>>> it = pending
+                    .entrySet().iterator();
+
+            Entry<AbstractClassMetaData, List<Bytes>> next = it.next();
+            it.remove();
+
+            readDependents(next.getKey(), next.getValue());
+        }
+    }
+
+    /**
+     * Delete the dependents referenced by the loaded fields of an object
+     * managed by the execution context. Fields which aren't loaded are left
+     * alone, and of a lazy relation only the elements which may not be stored
+     * yet are followed, so nothing is read from Cassandra
+     *
+     * @param op
+     */
+    public void deleteLoadedDependents(ObjectProvider op) {
+        MappingPlan plan = manager.getMappingPlan(op.getClassMetaData(), clr);
+
+        for (int field : plan.getDependentFields()) {
+            if (!op.isLoaded(op.getObject(), field)) {
+                continue;
+            }
+
+            Object value = op.provideField(field);
+
+            if (value == null) {
+                continue;
+            }
+
+            AbstractMemberMetaData member = plan.getMember(field);
+
+            if (plan.getRelation(field) == MappingPlan.SINGLE) {
+                deleteManaged(value);
+            } else if (member.hasCollection()) {
+                Collection<?> elements = (Collection<?>) value;
+
+                if (value instanceof ChangeTracking) {
+                    elements = ((ChangeTracking) value).getUnstored();
+                }
+
+                for (Object element : elements) {
+                    deleteManaged(element);
+                }
+            } else if (member.hasMap()) {
+                Collection<?> entries = ((Map<?, ?>) value).entrySet();
+
+                if (value instanceof ChangeTracking) {
+                    entries = ((ChangeTracking) value).getUnstored();
+                }
+
+                for (Object entry : entries) {
+                    deleteManaged(((Map.Entry<?, ?>) entry).getKey());
+                    deleteManaged(((Map.Entry<?, ?>) entry).getValue());
+                }
+            } else if (member.hasArray() && member.isDependent()) {
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    deleteManaged(Array.get(value, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the object through the execution context if it's persistent and
+     * not deleted already
+     *
+     * @param value
+     */
+    private void deleteManaged(Object value) {
+        ApiAdapter adapter = ec.getApiAdapter();
+
+        if (value == null || !adapter.isPersistent(value)
+                || adapter.isDeleted(value)) {
+            return;
+        }
+
+        ec.deleteObjectInternal(value);
+    }
+
+    /**
+     * Read the dependent fields of the rows and delete the rows they reference
+     *
+     * @param metaData
+     * @param keys
+     */
+    private void readDependents(AbstractClassMetaData metaData, List<Bytes> keys) {
+        MappingPlan plan = manager.getMappingPlan(metaData, clr);
+
+        int[] fields = plan.getDependentFields();
+
+        if (fields.length == 0) {
+            return;
+        }
+
+        String columnFamily = getColumnFamily(metaData);
+
+        List<Integer> singles = new ArrayList<Integer>();
+
+        for (int field : fields) {
+            if (plan.getRelation(field) == MappingPlan.SINGLE) {
+                singles.add(field);
+            } else {
+                for (Bytes key : keys) {
+                    readMultiple(plan, field, columnFamily, key);
+                }
+            }
+        }
+
+        if (singles.size() > 0) {
+            readSingles(plan, toArray(singles), columnFamily, keys);
+        }
+    }
+
+    /**
+     * Read the columns of the single valued dependent fields from all rows
+     *
+     * @param plan
+     * @param fields
+     * @param columnFamily
+     * @param keys
+     */
+    private void readSingles(MappingPlan plan, int[] fields,
+            String columnFamily, List<Bytes> keys) {
+
+        for (int start = 0; start < keys.size(); start += PAGE_SIZE) {
+            List<Bytes> page = keys.subList(start,
+                    Math.min(start + PAGE_SIZE, keys.size()));
+
+            Map<Bytes, List<Column>> rows;
+
+            try {
+                rows = selector.getColumnsFromRows(columnFamily, page,
+                        plan.getPredicate(fields), Consistency.get());
+            } catch (Exception e) {
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            }
+
+            for (List<Column> columns : rows.values()) {
+                ByteBuffer[] values = plan.getValues(columns);
+
+                for (int field : fields) {
+                    if (values[field] == null) {
+                        continue;
+                    }
+
+                    add(getMetaData(plan.getMember(field).getTypeName()),
+                            Bytes.fromByteBuffer(values[field].duplicate()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Page through the relationship columns of a collection, map or array
+     *
+     * @param plan
+     * @param field
+     * @param columnFamily
+     * @param key
+     */
+    private void readMultiple(MappingPlan plan, int field,
+            String columnFamily, Bytes key) {
+
+        AbstractMemberMetaData member = plan.getMember(field);
+        Bytes columnName = plan.getColumnName(field);
+
+        if (member.hasCollection()) {
+            ReadCollection reader = new ReadCollection(selector, byteContext,
+                    columnFamily, key, columnName, ec, null);
+
+            AbstractClassMetaData elementMetaData = getMetaData(member
+                    .getCollection().getElementType());
+
+            ColumnSlicePager pager = reader.newPager(PAGE_SIZE, false, null);
+
+            while (pager.hasMore()) {
+                for (Column column : pager.nextPage()) {
+                    add(elementMetaData, reader.getElementKey(column));
+                }
+            }
+
+            return;
+        }
+
+        AbstractClassMetaData keyMetaData = null;
+        AbstractClassMetaData valueMetaData = null;
+
+        if (member.hasMap()) {
+            keyMetaData = getMetaData(member.getMap().getKeyType());
+            valueMetaData = getMetaData(member.getMap().getValueType());
+        } else if (member.hasArray() && member.isDependent()) {
+            // arrays are stored as maps keyed by index
+            valueMetaData = getMetaData(member.getArray().getElementType());
+        }
+
+        if (keyMetaData == null && valueMetaData == null) {
+            return;
+        }
+
+        ReadMap reader = new ReadMap(selector, byteContext, columnFamily, key,
+                columnName, null, null);
+
+        ColumnSlicePager pager = reader.newPager(PAGE_SIZE, false, null);
+
+        while (pager.hasMore()) {
+            for (Column column : pager.nextPage()) {
+                if (keyMetaData != null) {
+                    add(keyMetaData, reader.getKeyBytes(column));
+                }
+
+                if (valueMetaData != null) {
+                    add(valueMetaData, reader.getValueBytes(column));
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the row referenced by a dependent field if it hasn't been already
+     *
+     * @param declared
+     *            The declared type of the field
+     * @param key
+     */
+    private void add(AbstractClassMetaData declared, Bytes key) {
+        if (declared == null) {
+            return;
+        }
+
+        AbstractClassMetaData metaData = getStoredClass(declared, key);
+
+        // the row no longer exists
+        if (metaData == null) {
+            return;
+        }
+
+        String columnFamily = getColumnFamily(metaData);
+
+        if (delete.isVisited(key, columnFamily)) {
+            return;
+        }
+
+        Object loaded = getManagedObject(metaData, key);
+
+        // the object's own delete adds the row and reads its dependents
+        if (loaded != null) {
+            ec.deleteObjectInternal(loaded);
+            return;
+        }
+
+        delete.addDeletion(key, columnFamily);
+
+        manager.getDiscriminatorCache().remove(ec, metaData, key);
+
+        queue(metaData, key);
+    }
+
+    private void queue(AbstractClassMetaData metaData, Bytes key) {
+        List<Bytes> keys = pending.get(metaData);
+
+        if (keys == null) {
+            keys = new ArrayList<Bytes>();
+            pending.put(metaData, keys);
+        }
+
+        keys.add(key);
+    }
+
+    /**
+     * Get the object of the row if the execution context already manages it
+     * 
+     * @param metaData
+     *            The class stored in the row
+     * @param key
+     * @return The object or null if it isn't in the context
+     */
+    private Object getManagedObject(AbstractClassMetaData metaData, Bytes key) {
+        Object id = byteContext.getObjectIdentity(ec,
+                clr.classForName(metaData.getFullClassName()), key);
+
+        Object pc = ec.getObjectFromCache(id);
+
+        if (pc == null || ec.findObjectProvider(pc) == null) {
+            return null;
+        }
+
+        return pc;
+    }
+
+    /**
+     * Get the class stored in the row. Only classes with persistent
+     * subclasses need to be looked up, usually from the discriminator cache
+     *
+     * @param declared
+     * @param key
+     * @return
+     */
+    private AbstractClassMetaData getStoredClass(
+            AbstractClassMetaData declared, Bytes key) {
+
+        String[] subclasses = metaDataManager.getSubclassesForClass(
+                declared.getFullClassName(), true);
+
+        if (subclasses == null || subclasses.length == 0) {
+            return declared;
+        }
+
+        Object id = byteContext.getObjectIdentity(ec,
+                clr.classForName(declared.getFullClassName()), key);
+
+        String className = manager.getClassNameForObjectID(id, clr, ec);
+
+        if (className == null) {
+            return null;
+        }
+
+        return metaDataManager.getMetaDataForClass(className, clr);
+    }
+
+    /**
+     * @param className
+     * @return The metadata of the class or null if it isn't persistent
+     */
+    private AbstractClassMetaData getMetaData(String className) {
+        if (className == null) {
+            return null;
+        }
+
+        return metaDataManager.getMetaDataForClass(className, clr);
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+
+        return array;
+    }
+
+}
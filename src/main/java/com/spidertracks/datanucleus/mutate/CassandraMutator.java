@@ -0,0 +1,411 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Collects column writes and deletions and sends them to Cassandra in a single
+ * batch_mutate. Works like the pelops Mutator, but can also delete a range of
+ * columns together with the pending mutations in it.
+ * 
+ * Mutations are coalesced as they're added. Only the last write or delete of
+ * a column is kept, and a range or row deletion drops every pending mutation
+ * it covers. Range and row deletions are timestamped just before the
+ * mutator's writes, so anything written after them survives.
+ * 
+ * Timestamps are in microseconds and are never reused, so every mutator is
+ * ordered after all mutators created before it. The batch is sent by a
+ * {@link MutationDispatcher}, which splits it into requests of a safe size.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class CassandraMutator {
+
+    private static final AtomicLong CLOCK = new AtomicLong();
+
+    private MutationDispatcher dispatcher;
+
+    private long timestamp;
+
+    private Map<ByteBuffer, Map<String, RowMutations>> batch = new HashMap<ByteBuffer, Map<String, RowMutations>>();
+
+    /**
+     * Create a mutator with the next timestamp
+     * 
+     * @param dispatcher
+     *            The dispatcher to send the mutations with
+     */
+    public CassandraMutator(MutationDispatcher dispatcher) {
+        this(dispatcher, nextTimestamp());
+    }
+
+    /**
+     * 
+     * @param dispatcher
+     *            The dispatcher to send the mutations with
+     * @param timestamp
+     *            The timestamp of all writes
+     */
+    public CassandraMutator(MutationDispatcher dispatcher, long timestamp) {
+        this.dispatcher = dispatcher;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Get the next timestamp. The current time in microseconds unless that was
+     * already handed out, in which case the last timestamp plus one
+     * 
+     * @return
+     */
+    public static long nextTimestamp() {
+        long now = System.currentTimeMillis() * 1000;
+
+        while (true) {
+            long last = CLOCK.get();
+            long next = now > last ? now : last + 1;
+
+            if (CLOCK.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * @return the timestamp of the writes in this mutator
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Move this mutator and everything pending in it to the next timestamp.
+     * Used when a mutator has been held open for a while, so its writes are
+     * ordered after writes made elsewhere in the meantime
+     */
+    public void renewTimestamp() {
+        timestamp = nextTimestamp();
+
+        for (Map<String, RowMutations> families : batch.values()) {
+            for (RowMutations row : families.values()) {
+                row.setTimestamp(timestamp);
+            }
+        }
+    }
+
+    /**
+     * Create a column with the timestamp of this mutator
+     * 
+     * @param name
+     * @param value
+     * @return
+     */
+    public Column newColumn(Bytes name, Bytes value) {
+        Column column = new Column(name.getBytes());
+        column.setValue(value.getBytes());
+        column.setTimestamp(timestamp);
+        return column;
+    }
+
+    /**
+     * Write the column
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @param column
+     */
+    public void writeColumn(String columnFamily, Bytes rowKey, Column column) {
+        writeColumn(columnFamily, rowKey, column, false);
+    }
+
+    /**
+     * Write the column
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @param column
+     * @param deleteIfNull
+     *            If true and the column has no value, the column is deleted
+     *            instead
+     */
+    public void writeColumn(String columnFamily, Bytes rowKey, Column column,
+            boolean deleteIfNull) {
+
+        if (deleteIfNull && column.value == null) {
+            deleteColumn(columnFamily, rowKey, Bytes.fromByteBuffer(column.name));
+            return;
+        }
+
+        ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+        cosc.setColumn(column);
+
+        Mutation mutation = new Mutation();
+        mutation.setColumn_or_supercolumn(cosc);
+
+        getRow(columnFamily, rowKey).putColumn(column.name, mutation);
+    }
+
+    /**
+     * Delete a single column
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @param columnName
+     */
+    public void deleteColumn(String columnFamily, Bytes rowKey,
+            Bytes columnName) {
+
+        SlicePredicate predicate = new SlicePredicate();
+        predicate.setColumn_names(Collections.singletonList(columnName
+                .getBytes()));
+
+        Deletion deletion = new Deletion();
+        deletion.setTimestamp(timestamp);
+        deletion.setPredicate(predicate);
+
+        Mutation mutation = new Mutation();
+        mutation.setDeletion(deletion);
+
+        getRow(columnFamily, rowKey).putColumn(columnName.getBytes(), mutation);
+    }
+
+    /**
+     * Delete every column from start to finish inclusive. Thrift doesn't
+     * accept slice range deletions, so the caller reads the stored column
+     * names in the range and each one is deleted on its own, just before
+     * this mutator's writes. Pending mutations in the range are dropped, and
+     * columns in the range written by this mutator afterwards are kept.
+     * 
+     * @param columnFamily
+     * @param rowKey
+     * @param start
+     * @param finish
+     * @param storedNames
+     *            The names of the columns stored in the range
+     */
+    public void deleteColumnRange(String columnFamily, Bytes rowKey,
+            ByteBuffer start, ByteBuffer finish,
+            Collection<ByteBuffer> storedNames) {
+
+        RowMutations row = getRow(columnFamily, rowKey);
+
+        row.dropRange(start, finish);
+
+        for (ByteBuffer name : storedNames) {
+            SlicePredicate predicate = new SlicePredicate();
+            predicate.setColumn_names(Collections.singletonList(name));
+
+            Deletion deletion = new Deletion();
+            deletion.setTimestamp(timestamp - 1);
+            deletion.setPredicate(predicate);
+
+            Mutation mutation = new Mutation();
+            mutation.setDeletion(deletion);
+
+            row.putColumn(name, mutation);
+        }
+    }
+
+    /**
+     * Delete the whole row from the column family. As with range deletions the
+     * row is deleted just before this mutator's writes and pending mutations of
+     * the row are dropped.
+     * 
+     * @param columnFamily
+     * @param rowKey
+     */
+    public void deleteRow(String columnFamily, Bytes rowKey) {
+        Deletion deletion = new Deletion();
+        deletion.setTimestamp(timestamp - 1);
+
+        getRow(columnFamily, rowKey).deleteRange(deletion);
+    }
+
+    /**
+     * @return True if nothing has been added to the mutator
+     */
+    public boolean isEmpty() {
+        return batch.isEmpty();
+    }
+
+    /**
+     * Drop everything pending in the mutator
+     */
+    public void discard() {
+        batch = new HashMap<ByteBuffer, Map<String, RowMutations>>();
+    }
+
+    /**
+     * Send all mutations with the dispatcher. The mutator is empty afterwards
+     * 
+     * @param consistency
+     * @throws Exception
+     */
+    public void execute(ConsistencyLevel consistency) throws Exception {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> mutations = new HashMap<ByteBuffer, Map<String, List<Mutation>>>(
+                batch.size());
+
+        for (Entry<ByteBuffer, Map<String, RowMutations>> row : batch
+                .entrySet()) {
+            Map<String, List<Mutation>> families = new HashMap<String, List<Mutation>>();
+
+            for (Entry<String, RowMutations> family : row.getValue()
+                    .entrySet()) {
+                families.put(family.getKey(), family.getValue().toList());
+            }
+
+            mutations.put(row.getKey(), families);
+        }
+
+        discard();
+
+        dispatcher.dispatch(mutations, consistency);
+    }
+
+    private RowMutations getRow(String columnFamily, Bytes rowKey) {
+        ByteBuffer key = rowKey.getBytes().duplicate();
+
+        Map<String, RowMutations> families = batch.get(key);
+
+        if (families == null) {
+            families = new HashMap<String, RowMutations>();
+            batch.put(key, families);
+        }
+
+        RowMutations row = families.get(columnFamily);
+
+        if (row == null) {
+            row = new RowMutations();
+            families.put(columnFamily, row);
+        }
+
+        return row;
+    }
+
+    /**
+     * Compare column names the way the BytesType comparator does, as unsigned
+     * bytes
+     */
+    private static int compare(ByteBuffer o1, ByteBuffer o2) {
+        int length = Math.min(o1.remaining(), o2.remaining());
+
+        for (int i = 0; i < length; i++) {
+            int b1 = o1.get(o1.position() + i) & 0xff;
+            int b2 = o2.get(o2.position() + i) & 0xff;
+
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+
+        return o1.remaining() - o2.remaining();
+    }
+
+    /**
+     * The pending mutations of one row in one column family
+     */
+    private static class RowMutations {
+
+        // row deletions
+        private List<Deletion> ranges = new ArrayList<Deletion>();
+
+        // the last write or delete of each column
+        private Map<ByteBuffer, Mutation> columns = new LinkedHashMap<ByteBuffer, Mutation>();
+
+        private void putColumn(ByteBuffer name, Mutation mutation) {
+            ByteBuffer key = name.duplicate();
+
+            // re-insert so the column keeps the order of its last write
+            columns.remove(key);
+            columns.put(key, mutation);
+        }
+
+        private void deleteRange(Deletion deletion) {
+            // a row deletion covers everything
+            ranges.clear();
+            columns.clear();
+            ranges.add(deletion);
+        }
+
+        private void dropRange(ByteBuffer start, ByteBuffer finish) {
+            Iterator<ByteBuffer> it = columns.keySet().iterator();
+
+            while (it.hasNext()) {
+                ByteBuffer name = it.next();
+
+                if (compare(name, start) >= 0 && compare(name, finish) <= 0) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void setTimestamp(long timestamp) {
+            for (Deletion deletion : ranges) {
+                deletion.setTimestamp(timestamp - 1);
+            }
+
+            for (Mutation mutation : columns.values()) {
+                if (mutation.isSetDeletion()) {
+                    mutation.getDeletion().setTimestamp(timestamp);
+                } else {
+                    mutation.getColumn_or_supercolumn().getColumn()
+                            .setTimestamp(timestamp);
+                }
+            }
+        }
+
+        private List<Mutation> toList() {
+            List<Mutation> mutations = new ArrayList<Mutation>(ranges.size()
+                    + columns.size());
+
+            for (Deletion deletion : ranges) {
+                Mutation mutation = new Mutation();
+                mutation.setDeletion(deletion);
+                mutations.add(mutation);
+            }
+
+            mutations.addAll(columns.values());
+
+            return mutations;
+        }
+    }
+
+}
@@ -16,80 +16,96 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
-import java.util.IdentityHashMap;
-import java.util.List;
-import java.util.Stack;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.datanucleus.store.ExecutionContext;
-import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.RowDeletor;
-
-import com.spidertracks.datanucleus.client.Consistency;
 
 /**
- * Holds all mutations for the current execution context
+ * Holds all row deletions for the current execution context. The deletions
+ * are added to a mutator as they're found, so a delete and all of its
+ * cascaded deletes are sent together
  * 
  * @author Todd Nine
  * 
  */
 public class ExecutionContextDelete extends ExecutionContextOp {
 
-
-
-    //operations of mutations to perform
-    //our reference to visited objects so we don't get stuck in a recursive delete
-    private IdentityHashMap<ObjectProvider, Object> visited = new IdentityHashMap<ObjectProvider, Object>();
-    private List<Deletion> mutations = new Stack<Deletion>();
-    private RowDeletor deletor;
+    //our reference to visited rows so we don't get stuck in a recursive delete
+    private Set<Row> visited = new HashSet<Row>();
+    private CassandraMutator mutator;
 
     
-    public ExecutionContextDelete(ExecutionContext ctx, RowDeletor deletor) {
+    public ExecutionContextDelete(ExecutionContext ctx, CassandraMutator mutator) {
         super(ctx);
-        this.deletor = deletor;
+        this.mutator = mutator;
     }
 
 
 
 
     /**
-     * Add the deleting if the op hasn't already been visited
-     * @param op The object we're deleting
+     * Add the deleting if the row hasn't already been visited. Rows are
+     * visited both for deleted objects and for dependents deleted by key
      * @param key The key to delete
      * @param columnFamily The CF to dele
-     * @return True if this is the first visit to the object.  False otherwise
+     * @return True if this is the first visit to the row.  False otherwise
      */
-    public boolean addDeletion(ObjectProvider op, Bytes key, String columnFamily) {
+    public boolean addDeletion(Bytes key, String columnFamily) {
         
-        if(visited.containsKey(op)){
+        if(!visited.add(new Row(key, columnFamily))){
             return false;
         }
         
-        visited.put(op, null);
-        
-        mutations.add(new Deletion(key, columnFamily));
+        mutator.deleteRow(columnFamily, key);
         
         return true;
     }
 
 
 
-    public void execute() throws Exception {
-        for (Deletion deletion : mutations) {
-            deletor.deleteRow(deletion.columnFamily, deletion.rowKey, Consistency.get());
-        }
+    /**
+     * @param key
+     * @param columnFamily
+     * @return True if the row has already been visited
+     */
+    public boolean isVisited(Bytes key, String columnFamily) {
+        return visited.contains(new Row(key, columnFamily));
     }
-    
-    private class Deletion{
-        
-        public Deletion(Bytes rowKey, String columnFamily) {
-            super();
+
+    /**
+     * @return the mutator
+     */
+    public CassandraMutator getMutator() {
+        return mutator;
+    }
+
+    private static class Row {
+        private Bytes rowKey;
+        private String columnFamily;
+
+        private Row(Bytes rowKey, String columnFamily) {
             this.rowKey = rowKey;
             this.columnFamily = columnFamily;
         }
-        
-        private Bytes rowKey;
-        private String columnFamily;
+
+        @Override
+        public int hashCode() {
+            return 31 * columnFamily.hashCode() + rowKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Row)) {
+                return false;
+            }
+
+            Row other = (Row) obj;
+
+            return columnFamily.equals(other.columnFamily)
+                    && rowKey.equals(other.rowKey);
+        }
     }
 
 }
@@ -17,9 +17,6 @@ Contributors : Todd Nine
 package com.spidertracks.datanucleus.mutate;
 
 import org.datanucleus.store.ExecutionContext;
-import org.scale7.cassandra.pelops.Mutator;
-
-import com.spidertracks.datanucleus.client.Consistency;
 
 /**
  * Holds all mutations for the current execution context
@@ -30,22 +27,54 @@ import com.spidertracks.datanucleus.client.Consistency;
 public class ExecutionContextMutate extends ExecutionContextOp {
 
     // operations of mutations to perform
-    private Mutator mutator;
+    private CassandraMutator mutator;
+
+    // true if the mutations are held until the transaction commits
+    private boolean held;
+
+    // true if a write failed after adding to the held mutations
+    private boolean failed;
 
-    public ExecutionContextMutate(ExecutionContext ctx, Mutator mutator) {
+    public ExecutionContextMutate(ExecutionContext ctx, CassandraMutator mutator) {
         super(ctx);
         this.mutator = mutator;
     }
 
-    public void execute() throws Exception {
-        mutator.execute(Consistency.get());
-    }
-
     /**
      * @return the mutator
      */
-    public Mutator getMutator() {
+    public CassandraMutator getMutator() {
         return mutator;
     }
 
+    /**
+     * @return True if the mutations are held until the transaction is flushed
+     *         or committed
+     */
+    public boolean isHeld() {
+        return held;
+    }
+
+    /**
+     * @param held
+     */
+    public void setHeld(boolean held) {
+        this.held = held;
+    }
+
+    /**
+     * @return True if a write or delete failed after adding to the held
+     *         mutations, which can then never be sent
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Mark the held mutations as containing part of a failed write
+     */
+    public void setFailed() {
+        this.failed = true;
+    }
+
 }
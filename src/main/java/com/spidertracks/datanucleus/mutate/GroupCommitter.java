@@ -0,0 +1,299 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+
+import com.spidertracks.datanucleus.utils.NamedThreadFactory;
+
+/**
+ * Groups the small batches of concurrent writers into a shared batch. The
+ * first batch to arrive opens a window, everything arriving before the window
+ * closes or the group reaches maxMutations is sent with it in one dispatch.
+ * Batches are only grouped with batches of the same consistency level.
+ * Writers block until their group has been acknowledged and see the failure
+ * of the group if it fails.
+ *
+ * Every mutation keeps the timestamp of the mutator that created it, so
+ * grouping doesn't change the order writes are applied in. Batches with
+ * maxMutations or more mutations are sent directly.
+ *
+ * @author Todd Nine
+ *
+ */
+public class GroupCommitter {
+
+    private MutationDispatcher dispatcher;
+
+    private long windowNanos;
+
+    private int maxMutations;
+
+    private Object lock = new Object();
+
+    // the open groups by consistency level, guarded by lock
+    private Map<ConsistencyLevel, Group> groups = new HashMap<ConsistencyLevel, Group>();
+
+    private int pendingMutations;
+
+    private boolean closed;
+
+    private Thread committer;
+
+    /**
+     *
+     * @param dispatcher
+     *            The dispatcher to send the groups with
+     * @param windowMillis
+     *            How long the first batch of a group waits for others
+     * @param maxMutations
+     *            The number of mutations which closes the window early
+     */
+    public GroupCommitter(MutationDispatcher dispatcher, long windowMillis,
+            int maxMutations) {
+        this.dispatcher = dispatcher;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxMutations = maxMutations;
+
+        committer = new NamedThreadFactory("cassandra-group-commit")
+                .newThread(new Committer());
+        committer.start();
+    }
+
+    /**
+     * Add the batch to the current group and wait until the group has been
+     * sent
+     *
+     * @param batch
+     * @param consistency
+     * @throws Exception
+     *             If the group could not be sent
+     */
+    public void commit(Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+            ConsistencyLevel consistency) throws Exception {
+
+        int count = countMutations(batch);
+
+        if (count >= maxMutations) {
+            dispatcher.send(batch, consistency);
+            return;
+        }
+
+        Group group;
+
+        synchronized (lock) {
+            if (closed) {
+                group = null;
+            } else {
+                group = groups.get(consistency);
+
+                if (group == null) {
+                    group = new Group();
+                    groups.put(consistency, group);
+                }
+
+                group.add(batch);
+                pendingMutations += count;
+
+                lock.notifyAll();
+            }
+        }
+
+        if (group == null) {
+            dispatcher.send(batch, consistency);
+            return;
+        }
+
+        group.await();
+    }
+
+    /**
+     * Send the open groups and stop the committer. Batches committed
+     * afterwards are sent directly
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the window of the current groups to close and take them
+     *
+     * @return The groups to send or null if the committer should stop
+     * @throws InterruptedException
+     */
+    private Map<ConsistencyLevel, Group> takeGroups()
+            throws InterruptedException {
+
+        synchronized (lock) {
+            while (groups.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+
+                lock.wait();
+            }
+
+            long deadline = System.nanoTime() + windowNanos;
+
+            while (!closed && pendingMutations < maxMutations) {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+
+            Map<ConsistencyLevel, Group> ready = groups;
+
+            groups = new HashMap<ConsistencyLevel, Group>();
+            pendingMutations = 0;
+
+            return ready;
+        }
+    }
+
+    private static int countMutations(
+            Map<ByteBuffer, Map<String, List<Mutation>>> batch) {
+        int count = 0;
+
+        for (Map<String, List<Mutation>> families : batch.values()) {
+            for (List<Mutation> mutations : families.values()) {
+                count += mutations.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Sends the groups as their windows close
+     */
+    private class Committer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                Map<ConsistencyLevel, Group> ready;
+
+                try {
+                    ready = takeGroups();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (ready == null) {
+                    return;
+                }
+
+                for (Entry<ConsistencyLevel, Group> group : ready.entrySet()) {
+                    group.getValue().send(group.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * The merged batches of the writers waiting on a single dispatch
+     */
+    private class Group {
+
+        private Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+
+        private CountDownLatch sent = new CountDownLatch(1);
+
+        private volatile Exception failure;
+
+        /**
+         * Merge the batch into the group. Called with the lock held
+         *
+         * @param other
+         */
+        private void add(Map<ByteBuffer, Map<String, List<Mutation>>> other) {
+            for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : other
+                    .entrySet()) {
+
+                Map<String, List<Mutation>> families = batch.get(row.getKey());
+
+                if (families == null) {
+                    families = new HashMap<String, List<Mutation>>();
+                    batch.put(row.getKey(), families);
+                }
+
+                for (Entry<String, List<Mutation>> family : row.getValue()
+                        .entrySet()) {
+
+                    List<Mutation> mutations = families.get(family.getKey());
+
+                    if (mutations == null) {
+                        mutations = new ArrayList<Mutation>();
+                        families.put(family.getKey(), mutations);
+                    }
+
+                    mutations.addAll(family.getValue());
+                }
+            }
+        }
+
+        private void send(ConsistencyLevel consistency) {
+            try {
+                dispatcher.send(batch, consistency);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                sent.countDown();
+            }
+        }
+
+        private void await() {
+            try {
+                sent.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            }
+
+            if (failure != null) {
+                throw new NucleusDataStoreException(failure.getMessage(),
+                        failure);
+            }
+        }
+    }
+
+}
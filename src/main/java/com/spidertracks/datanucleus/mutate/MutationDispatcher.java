@@ -0,0 +1,394 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the batches built by {@link CassandraMutator}. A batch is split into
+ * batch_mutate requests of at most maxMutations mutations and roughly maxBytes
+ * bytes, so large object graphs don't produce thrift frames bigger than the
+ * server accepts. When a batch needs more than one request the requests are
+ * sent in parallel, each on its own pooled connection. Every request goes
+ * through the pelops operand, so it's retried on another connection according
+ * to the pool's operand policy.
+ *
+ * The mutations of a row are never split between requests, so each row is
+ * still written by a single batch_mutate. A row larger than the limits is sent
+ * in a request of its own.
+ *
+ * @author Todd Nine
+ *
+ */
+public class MutationDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(MutationDispatcher.class);
+
+    /**
+     * Estimated thrift overhead of a mutation, its timestamp and field headers
+     */
+    private static final int MUTATION_OVERHEAD = 24;
+
+    /**
+     * Estimated thrift overhead of a row or column family entry in the batch
+     */
+    private static final int ENTRY_OVERHEAD = 8;
+
+    private String poolName;
+
+    private int maxMutations;
+
+    private long maxBytes;
+
+    private ExecutorService executor;
+
+    private MutationStatistics statistics = new MutationStatistics();
+
+    private GroupCommitter groupCommitter;
+
+    /**
+     *
+     * @param poolName
+     *            The pelops pool to send with
+     * @param maxMutations
+     *            The maximum number of mutations per batch_mutate
+     * @param maxBytes
+     *            The maximum estimated size of a batch_mutate
+     * @param executor
+     *            The executor to send requests in parallel with. May be null,
+     *            in which case the requests are sent one after another
+     */
+    public MutationDispatcher(String poolName, int maxMutations,
+            long maxBytes, ExecutorService executor) {
+        this.poolName = poolName;
+        this.maxMutations = maxMutations;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the statistics of everything sent by this dispatcher
+     */
+    public MutationStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Group small batches from concurrent writers with the committer before
+     * they're sent
+     * 
+     * @param groupCommitter
+     */
+    public void setGroupCommitter(GroupCommitter groupCommitter) {
+        this.groupCommitter = groupCommitter;
+    }
+
+    /**
+     * Send the batch and wait until all requests have completed. If a group
+     * committer is set the batch may be sent together with the batches of
+     * other threads
+     *
+     * @param batch
+     * @param consistency
+     * @throws Exception
+     *             The first failure of any request
+     */
+    public void dispatch(Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+            ConsistencyLevel consistency) throws Exception {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (groupCommitter != null) {
+            groupCommitter.commit(batch, consistency);
+            return;
+        }
+
+        send(batch, consistency);
+    }
+
+    /**
+     * Send the batch without grouping it
+     *
+     * @param batch
+     * @param consistency
+     * @throws Exception
+     */
+    void send(Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+            ConsistencyLevel consistency) throws Exception {
+
+        List<Request> requests = split(batch);
+
+        statistics.recordBatch();
+
+        if (requests.size() == 1 || executor == null) {
+            for (Request request : requests) {
+                sendRequest(request, consistency);
+            }
+
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(
+                requests.size());
+
+        for (final Request request : requests) {
+            final ConsistencyLevel level = consistency;
+
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    sendRequest(request, level);
+                    return null;
+                }
+            }));
+        }
+
+        Exception failure = null;
+
+        // wait for every request, even after a failure, so nothing is still
+        // being sent when we return
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof Exception ? (Exception) cause
+                            : e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Send a single batch_mutate through the pool's operand so failed
+     * connections are retried
+     *
+     * @param request
+     * @param consistency
+     * @throws Exception
+     */
+    private void sendRequest(Request request, ConsistencyLevel consistency)
+            throws Exception {
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Sending {} mutations of about {} bytes",
+                    request.mutations, request.bytes);
+        }
+
+        new BatchOperand().send(request.batch, consistency);
+
+        statistics.recordRequest(request.mutations, request.bytes);
+    }
+
+    /**
+     * Split the batch into requests. Rows are added whole, so a row is never
+     * written by more than one request
+     *
+     * @param batch
+     * @return
+     */
+    List<Request> split(
+            Map<ByteBuffer, Map<String, List<Mutation>>> batch) {
+
+        List<Request> requests = new ArrayList<Request>();
+
+        Request request = new Request();
+
+        for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : batch
+                .entrySet()) {
+
+            int mutations = 0;
+            long size = 0;
+
+            for (Entry<String, List<Mutation>> family : row.getValue()
+                    .entrySet()) {
+
+                size += row.getKey().remaining() + family.getKey().length()
+                        + 2 * ENTRY_OVERHEAD;
+
+                for (Mutation mutation : family.getValue()) {
+                    size += estimateSize(mutation);
+                }
+
+                mutations += family.getValue().size();
+            }
+
+            if (mutations == 0) {
+                continue;
+            }
+
+            if (!request.fits(mutations, size)) {
+                requests.add(request);
+                request = new Request();
+            }
+
+            request.add(row.getKey(), row.getValue(), mutations, size);
+        }
+
+        if (request.mutations > 0) {
+            requests.add(request);
+        }
+
+        return requests;
+    }
+
+    /**
+     * Estimate the size of the mutation in a thrift frame
+     *
+     * @param mutation
+     * @return
+     */
+    private static long estimateSize(Mutation mutation) {
+        long size = MUTATION_OVERHEAD;
+
+        if (mutation.isSetColumn_or_supercolumn()) {
+            Column column = mutation.getColumn_or_supercolumn().getColumn();
+
+            size += column.name.remaining();
+
+            if (column.value != null) {
+                size += column.value.remaining();
+            }
+
+            return size;
+        }
+
+        Deletion deletion = mutation.getDeletion();
+
+        if (!deletion.isSetPredicate()) {
+            return size;
+        }
+
+        SlicePredicate predicate = deletion.getPredicate();
+
+        if (predicate.isSetColumn_names()) {
+            for (ByteBuffer name : predicate.getColumn_names()) {
+                size += name.remaining();
+            }
+        }
+
+        if (predicate.isSetSlice_range()) {
+            size += predicate.getSlice_range().start.remaining()
+                    + predicate.getSlice_range().finish.remaining();
+        }
+
+        return size;
+    }
+
+    /**
+     * A single batch_mutate request
+     */
+    class Request {
+        private Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        private int mutations;
+        private long bytes;
+
+        /**
+         * @return the rows of this request
+         */
+        Map<ByteBuffer, Map<String, List<Mutation>>> getBatch() {
+            return batch;
+        }
+
+        /**
+         * @param rowMutations
+         *            The number of mutations of the row
+         * @param size
+         *            The size of the row and all its mutations
+         * @return True if the row can be added without going over the limits.
+         *         An empty request takes anything
+         */
+        private boolean fits(int rowMutations, long size) {
+            if (mutations == 0) {
+                return true;
+            }
+
+            return mutations + rowMutations <= maxMutations
+                    && bytes + size <= maxBytes;
+        }
+
+        private void add(ByteBuffer rowKey,
+                Map<String, List<Mutation>> families, int rowMutations,
+                long size) {
+            batch.put(rowKey, families);
+            mutations += rowMutations;
+            bytes += size;
+        }
+    }
+
+    /**
+     * Sends a batch_mutate with the retries of the pool's operand policy
+     */
+    private class BatchOperand extends Operand {
+
+        private BatchOperand() {
+            super(Pelops.getDbConnPool(poolName));
+        }
+
+        private void send(
+                final Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+                final ConsistencyLevel consistency) {
+
+            tryOperation(new IOperation<Void>() {
+
+                @Override
+                public Void execute(IPooledConnection connection)
+                        throws Exception {
+                    connection.getAPI().batch_mutate(batch, consistency);
+                    return null;
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the mutations sent to Cassandra. A batch is everything one
+ * mutator sends, a request is a single batch_mutate call. Sizes are the
+ * estimates used to chunk the batches, not the exact size of the thrift
+ * frames. Safe for concurrent use.
+ *
+ * @author Todd Nine
+ *
+ */
+public class MutationStatistics {
+
+    private AtomicLong batches = new AtomicLong();
+
+    private AtomicLong requests = new AtomicLong();
+
+    private AtomicLong mutations = new AtomicLong();
+
+    private AtomicLong bytes = new AtomicLong();
+
+    private AtomicLong largestRequestMutations = new AtomicLong();
+
+    private AtomicLong largestRequestBytes = new AtomicLong();
+
+    /**
+     * Record a batch sent by a mutator
+     */
+    public void recordBatch() {
+        batches.incrementAndGet();
+    }
+
+    /**
+     * Record a single batch_mutate call
+     *
+     * @param mutationCount
+     *            The number of mutations sent
+     * @param size
+     *            The estimated size in bytes
+     */
+    public void recordRequest(int mutationCount, long size) {
+        requests.incrementAndGet();
+        mutations.addAndGet(mutationCount);
+        bytes.addAndGet(size);
+
+        max(largestRequestMutations, mutationCount);
+        max(largestRequestBytes, size);
+    }
+
+    /**
+     * @return the number of batches sent
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * @return the number of batch_mutate calls made
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of mutations sent
+     */
+    public long getMutations() {
+        return mutations.get();
+    }
+
+    /**
+     * @return the estimated number of bytes sent
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the most mutations sent in a single batch_mutate
+     */
+    public long getLargestRequestMutations() {
+        return largestRequestMutations.get();
+    }
+
+    /**
+     * @return the estimated size of the largest batch_mutate
+     */
+    public long getLargestRequestBytes() {
+        return largestRequestBytes.get();
+    }
+
+    /**
+     * Reset all counters to 0
+     */
+    public void reset() {
+        batches.set(0);
+        requests.set(0);
+        mutations.set(0);
+        bytes.set(0);
+        largestRequestMutations.set(0);
+        largestRequestBytes.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "batches=%d requests=%d mutations=%d bytes=%d largestRequestMutations=%d largestRequestBytes=%d",
+                getBatches(), getRequests(), getMutations(), getBytes(),
+                getLargestRequestMutations(), getLargestRequestBytes());
+    }
+
+    private static void max(AtomicLong current, long value) {
+        while (true) {
+            long existing = current.get();
+
+            if (value <= existing || current.compareAndSet(existing, value)) {
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,423 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.spidertracks.datanucleus.utils.NamedThreadFactory;
+
+/**
+ * Sends mutators in the background. Writers hand their mutator to a bounded
+ * queue and return immediately, flusher threads take the mutators off the
+ * queue and execute them. When the queue is full writers block until there is
+ * room, so a slow cluster slows the writers down instead of exhausting memory.
+ *
+ * Every submitted write has a future which fails if the write does. The
+ * future of the last write of the current thread is available from
+ * {@link #getLastWrite()}, and {@link #flush()} waits for everything
+ * submitted so far. A failure is kept until a flush or an await of the failed
+ * write reports it, so a write that failed before anyone waited for it isn't
+ * lost. Failed writes are also logged, since most writers never look at their
+ * future. At most as many failures as the queue holds are kept, beyond that
+ * they are only counted, so writers which never flush can't pile them up
+ * during an outage. The next flush still fails with the count.
+ *
+ * Writes may complete out of order. Their timestamps are assigned when the
+ * mutator is created, so Cassandra still applies them in order.
+ *
+ * @author Todd Nine
+ *
+ */
+public class WriteBehindQueue {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(WriteBehindQueue.class);
+
+    private BlockingQueue<Runnable> queue;
+
+    private Thread[] flushers;
+
+    private volatile boolean closed;
+
+    // writes submitted but not completed yet
+    private Set<Future<Void>> outstanding = Collections
+            .newSetFromMap(new ConcurrentHashMap<Future<Void>, Boolean>());
+
+    // failed writes which haven't been reported yet
+    private ConcurrentMap<Future<Void>, Throwable> failures = new ConcurrentHashMap<Future<Void>, Throwable>();
+
+    // failed writes which weren't kept since there were too many
+    private AtomicInteger dropped = new AtomicInteger();
+
+    // the writes not kept, only as long as someone holds their future
+    private Set<Future<Void>> droppedWrites = Collections
+            .synchronizedSet(Collections
+                    .newSetFromMap(new WeakHashMap<Future<Void>, Boolean>()));
+
+    private int maxFailures;
+
+    private ThreadLocal<Future<Void>> lastWrite = new ThreadLocal<Future<Void>>();
+
+    /**
+     *
+     * @param capacity
+     *            The number of writes that can wait in the queue before
+     *            writers block
+     * @param threads
+     *            The number of flusher threads
+     */
+    public WriteBehindQueue(int capacity, int threads) {
+        queue = new ArrayBlockingQueue<Runnable>(capacity);
+        flushers = new Thread[threads];
+        maxFailures = capacity;
+
+        NamedThreadFactory factory = new NamedThreadFactory(
+                "cassandra-write-behind");
+
+        for (int i = 0; i < threads; i++) {
+            flushers[i] = factory.newThread(new Flusher());
+            flushers[i].start();
+        }
+    }
+
+    /**
+     * Queue the mutator to be executed in the background. Blocks while the
+     * queue is full
+     *
+     * @param mutator
+     * @param consistency
+     *            The consistency level to write at. Captured here since the
+     *            flusher threads don't share the writer's level
+     * @return The future of the write
+     */
+    public Future<Void> submit(final CassandraMutator mutator,
+            final ConsistencyLevel consistency) {
+
+        if (closed) {
+            throw new NucleusDataStoreException(
+                    "The write behind queue has been closed");
+        }
+
+        final FutureTask<Void> write = new FutureTask<Void>(
+                new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        mutator.execute(consistency);
+                        return null;
+                    }
+                }) {
+
+            @Override
+            protected void setException(Throwable t) {
+                // record the failure before the write completes, so anyone
+                // waiting for it can't miss it
+                keep(this, t);
+                super.setException(t);
+            }
+
+            @Override
+            protected void done() {
+                outstanding.remove(this);
+            }
+        };
+
+        outstanding.add(write);
+
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            outstanding.remove(write);
+            Thread.currentThread().interrupt();
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+
+        // only once queued, a write that was never queued never completes
+        lastWrite.set(write);
+
+        return write;
+    }
+
+    /**
+     * @return The future of the last write submitted by the current thread or
+     *         null if it hasn't submitted any
+     */
+    public Future<Void> getLastWrite() {
+        return lastWrite.get();
+    }
+
+    /**
+     * Wait until every write submitted before the call has completed
+     *
+     * @throws NucleusDataStoreException
+     *             If any write failed since the last flush
+     */
+    public void flush() {
+        try {
+            await(-1, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // can't happen without a timeout
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Wait until every write submitted before the call has completed or the
+     * timeout expires
+     *
+     * @param timeout
+     *            The time to wait. Negative to wait without a timeout
+     * @param unit
+     * @throws TimeoutException
+     *             If the writes haven't completed in time
+     * @throws NucleusDataStoreException
+     *             If any write failed since the last flush
+     */
+    public void await(long timeout, TimeUnit unit) throws TimeoutException {
+        waitFor(new ArrayList<Future<Void>>(outstanding), timeout, unit);
+
+        // the dropped failures are reported by their count
+        droppedWrites.clear();
+
+        report(new ArrayList<Future<Void>>(failures.keySet()), dropped
+                .getAndSet(0));
+    }
+
+    /**
+     * Wait until the given writes have completed
+     * 
+     * @param writes
+     *            Writes returned by {@link #submit(CassandraMutator,
+     *            ConsistencyLevel)}
+     * @throws NucleusDataStoreException
+     *             If any of the writes failed. Failures of other writes are
+     *             left for the next flush
+     */
+    public void await(Collection<Future<Void>> writes) {
+        try {
+            waitFor(writes, -1, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // can't happen without a timeout
+            throw new NucleusDataStoreException(e.getMessage(), e);
+        }
+
+        report(writes, 0);
+    }
+
+    /**
+     * Keep the failure of a write until it's reported. If too many failures
+     * are kept already, one of them is only counted instead. They have all
+     * been logged
+     * 
+     * @param write
+     * @param cause
+     */
+    private void keep(Future<Void> write, Throwable cause) {
+        failures.put(write, cause);
+
+        if (failures.size() <= maxFailures) {
+            return;
+        }
+
+        Iterator<Future<Void>> it = failures.keySet().iterator();
+
+        if (!it.hasNext()) {
+            return;
+        }
+
+        Future<Void> evicted = it.next();
+
+        if (failures.remove(evicted) != null) {
+            droppedWrites.add(evicted);
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait for the writes to complete, whether they fail or not
+     * 
+     * @param writes
+     * @param timeout
+     *            The time to wait. Negative to wait without a timeout
+     * @param unit
+     * @throws TimeoutException
+     */
+    private void waitFor(Collection<Future<Void>> writes, long timeout,
+            TimeUnit unit) throws TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (Future<Void> write : writes) {
+            try {
+                if (timeout < 0) {
+                    write.get();
+                } else {
+                    write.get(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NucleusDataStoreException(e.getMessage(), e);
+            } catch (ExecutionException e) {
+                // recorded when the write completed
+            } catch (CancellationException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    /**
+     * Report the failures of the given writes and forget them. A write whose
+     * failure was dropped is checked through its future
+     * 
+     * @param writes
+     *            Completed writes
+     * @param droppedCount
+     *            The number of other failures which weren't kept
+     * @throws NucleusDataStoreException
+     *             With the first failure if any of the writes failed
+     */
+    private void report(Collection<Future<Void>> writes, int droppedCount) {
+        Throwable failure = null;
+        int failed = droppedCount;
+
+        for (Future<Void> write : writes) {
+            Throwable cause = failures.remove(write);
+
+            // no longer counted for the next flush once reported here
+            if (cause == null && droppedWrites.remove(write)) {
+                dropped.decrementAndGet();
+                cause = getFailure(write);
+            }
+
+            if (cause == null) {
+                continue;
+            }
+
+            if (failure == null) {
+                failure = cause;
+            }
+
+            failed++;
+        }
+
+        if (failure == null) {
+            if (failed > 0) {
+                throw new NucleusDataStoreException(String.format(
+                        "%d writes behind failed", failed));
+            }
+
+            return;
+        }
+
+        throw new NucleusDataStoreException(String.format(
+                "%d writes behind failed, the first with: %s", failed,
+                failure.getMessage()), failure);
+    }
+
+    /**
+     * @param write
+     *            A completed write
+     * @return The cause of the write's failure or null if it succeeded
+     */
+    private static Throwable getFailure(Future<Void> write) {
+        if (!write.isDone() || write.isCancelled()) {
+            return null;
+        }
+
+        try {
+            write.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (InterruptedException e) {
+            // can't happen, the write is done
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Stop accepting writes, send everything still queued and stop the
+     * flusher threads
+     */
+    public void close() {
+        closed = true;
+
+        try {
+            flush();
+        } catch (NucleusDataStoreException e) {
+            // already logged by the flusher
+        }
+
+        for (Thread flusher : flushers) {
+            flusher.interrupt();
+        }
+    }
+
+    /**
+     * Takes writes off the queue until interrupted
+     */
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable write;
+
+                try {
+                    write = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                write.run();
+
+                try {
+                    ((Future<?>) write).get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Unable to write behind", e.getCause());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -20,7 +20,7 @@ package com.spidertracks.datanucleus.query;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
@@ -32,7 +32,6 @@ import org.apache.cassandra.thrift.IndexOperator;
 import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.IndexedValue;
-import org.datanucleus.query.QueryUtils;
 import org.datanucleus.query.evaluator.AbstractExpressionEvaluator;
 import org.datanucleus.query.expression.DyadicExpression;
 import org.datanucleus.query.expression.Expression;
@@ -66,14 +65,18 @@ public class CassandraQueryExpressionEvaluator extends
     private static final Logger logger = LoggerFactory
             .getLogger(CassandraQueryExpressionEvaluator.class);
 
+    /** Placeholder for the value of a parameter until it's bound. */
+    private static final Bytes PARAMETER_VALUE = Bytes.fromByteArray(new byte[0]);
+
     private Stack<IndexParam> indexKeys = new Stack<IndexParam>();
     private Stack<Operand> operationStack = new Stack<Operand>();
     private List<String> primaryExpressions = new ArrayList<String>();
 
     private AbstractClassMetaData metaData;
 
-    /** Map of input parameter values, keyed by their name. */
-    private Map<String, Object> parameterValues;
+    /** The parameter each expression compares with, by identity. Bound at execution. */
+    private Map<IndexExpression, ParameterExpression> parameters =
+        new IdentityHashMap<IndexExpression, ParameterExpression>();
 
 
     private int maxSize;
@@ -87,18 +90,15 @@ public class CassandraQueryExpressionEvaluator extends
      * Constructor for a cassandra query evaluator.
      * 
      * @param metaData the DataNucleus class/interface metadata.
-     * @prarm maxSize the maximum number of entries to return.
+     * @prarm maxSize the number of entries read in the first page of each index query.
      * @param byteConverter the converter for serializing fields.
-     * @param params parameters for parameterized query.
      * @param candidateClass the class which we are searching for.
      */
     public CassandraQueryExpressionEvaluator(final AbstractClassMetaData metaData,
                                              final int maxSize,
                                              final ByteConverterContext byteConverter,
-                                             final Map<String, Object> params,
                                              final Class<?> candidateClass) {
         this.metaData = metaData;
-        this.parameterValues = (params != null) ? params : new HashMap<String, Object>();
         this.maxSize = maxSize;
         this.byteConverter = byteConverter;
         this.annotationsByField = AnnotationEvaluator.getFieldAnnotationMap(candidateClass);
@@ -148,17 +148,7 @@ public class CassandraQueryExpressionEvaluator extends
 
         logger.debug("Processing == expression {}", expr);
 
-        // get our corresponding index name from the stack
-        IndexParam indexKey = getIndexKeyResult();
-
-        IndexExpression expression = Selector.newIndexExpression(
-                indexKey.getIndexName(), IndexOperator.EQ,
-                indexKey.getIndexValue());
-
-        EqualityOperand op = new EqualityOperand(maxSize);
-        op.addExpression(expression, indexKey.isFieldIndexed());
-
-        return this.operationStack.push(op);
+        return this.operationStack.push(newEqualityOperand(IndexOperator.EQ));
 
     }
 
@@ -170,17 +160,7 @@ public class CassandraQueryExpressionEvaluator extends
      */
     @Override
     protected Object processGteqExpression(Expression expr) {
-        // get our corresponding index name from the stack
-        IndexParam indexKey = getIndexKeyResult();
-
-        IndexExpression expression = Selector.newIndexExpression(
-                indexKey.getIndexName(), IndexOperator.GTE,
-                indexKey.getIndexValue());
-
-        EqualityOperand op = new EqualityOperand(maxSize);
-        op.addExpression(expression, indexKey.isFieldIndexed());
-
-        return this.operationStack.push(op);
+        return this.operationStack.push(newEqualityOperand(IndexOperator.GTE));
     }
 
     /*
@@ -191,17 +171,7 @@ public class CassandraQueryExpressionEvaluator extends
      */
     @Override
     protected Object processGtExpression(Expression expr) {
-        // get our corresponding index name from the stack
-        IndexParam indexKey = getIndexKeyResult();
-
-        IndexExpression expression = Selector.newIndexExpression(
-                indexKey.getIndexName(), IndexOperator.GT,
-                indexKey.getIndexValue());
-
-        EqualityOperand op = new EqualityOperand(maxSize);
-        op.addExpression(expression, indexKey.isFieldIndexed());
-
-        return this.operationStack.push(op);
+        return this.operationStack.push(newEqualityOperand(IndexOperator.GT));
     }
 
     /*
@@ -212,17 +182,7 @@ public class CassandraQueryExpressionEvaluator extends
      */
     @Override
     protected Object processLteqExpression(Expression expr) {
-        // get our corresponding index name from the stack
-        IndexParam indexKey = getIndexKeyResult();
-
-        IndexExpression expression = Selector.newIndexExpression(
-                indexKey.getIndexName(), IndexOperator.LTE,
-                indexKey.getIndexValue());
-
-        EqualityOperand op = new EqualityOperand(maxSize);
-        op.addExpression(expression, indexKey.isFieldIndexed());
-
-        return this.operationStack.push(op);
+        return this.operationStack.push(newEqualityOperand(IndexOperator.LTE));
     }
 
     /*
@@ -233,17 +193,7 @@ public class CassandraQueryExpressionEvaluator extends
      */
     @Override
     protected Object processLtExpression(Expression expr) {
-        // get our corresponding index name from the stack
-        IndexParam indexKey = getIndexKeyResult();
-
-        IndexExpression expression = Selector.newIndexExpression(
-                indexKey.getIndexName(), IndexOperator.LT,
-                indexKey.getIndexValue());
-
-        EqualityOperand op = new EqualityOperand(maxSize);
-        op.addExpression(expression, indexKey.isFieldIndexed());
-
-        return this.operationStack.push(op);
+        return this.operationStack.push(newEqualityOperand(IndexOperator.LT));
     }
 
     /*
@@ -279,14 +229,11 @@ public class CassandraQueryExpressionEvaluator extends
     protected Object processParameterExpression(ParameterExpression expr) {
         logger.debug("Processing expression param {}", expr);
 
-        Object value = QueryUtils.getValueForParameterExpression(
-                parameterValues, expr);
-
-        Bytes byteVal = byteConverter.getBytes(value);
-
+        // the value is bound when the query is executed
         IndexParam param = indexKeys.peek();
 
-        param.setIndexValue(byteVal);
+        param.setIndexValue(PARAMETER_VALUE);
+        param.setParameter(expr);
 
         return param;
     }
@@ -343,6 +290,14 @@ public class CassandraQueryExpressionEvaluator extends
         return param;
     }
 
+    /**
+     * @return the parameter each expression in the operand tree compares with,
+     *         by identity.
+     */
+    public Map<IndexExpression, ParameterExpression> getParameters() {
+        return parameters;
+    }
+
     /**
      * get the primary expressions of the given expression.
      * @param expr expression to be evaluated
@@ -371,6 +326,30 @@ public class CassandraQueryExpressionEvaluator extends
 
     }
 
+    /**
+     * Create a leaf for the index key on the stack
+     * 
+     * @param operator
+     * @return
+     */
+    private EqualityOperand newEqualityOperand(IndexOperator operator) {
+        // get our corresponding index name from the stack
+        IndexParam indexKey = getIndexKeyResult();
+
+        IndexExpression expression = Selector.newIndexExpression(
+                indexKey.getIndexName(), operator,
+                indexKey.getIndexValue());
+
+        if (indexKey.getParameter() != null) {
+            parameters.put(expression, indexKey.getParameter());
+        }
+
+        EqualityOperand op = new EqualityOperand(maxSize);
+        op.addExpression(expression, indexKey.isFieldIndexed());
+
+        return op;
+    }
+
     /**
      * Get the index value off the stack. Will only pop if the stack sizes are
      * equal
@@ -398,6 +377,9 @@ public class CassandraQueryExpressionEvaluator extends
         private Bytes indexName;
         private Bytes indexValue;
 
+        /** The parameter the value is bound from, null for literals. */
+        private ParameterExpression parameter;
+
         /**
          * If false, this param has no secondary index in cassandra.
          * cassandra cannot handle a query for which no fields are indexed.
@@ -439,6 +421,21 @@ public class CassandraQueryExpressionEvaluator extends
             this.indexValue = indexValue;
         }
 
+        /**
+         * @return the parameter the value is bound from, null for literals
+         */
+        public ParameterExpression getParameter() {
+            return parameter;
+        }
+
+        /**
+         * 
+         * @param parameter
+         */
+        public void setParameter(ParameterExpression parameter) {
+            this.parameter = parameter;
+        }
+
     }
 
 }
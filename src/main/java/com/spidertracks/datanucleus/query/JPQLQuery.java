@@ -107,16 +107,32 @@ public class JPQLQuery extends AbstractJPQLQuery
         }
 
         @Override
-        public Collection<?> run(final Collection<?> candidates, final Map parameters)
+        public Collection<?> filter(final Collection<?> candidates, final Map parameters)
         {
-            final JavaQueryEvaluator evaluator =
-                new JPQLEvaluator(this.query,
-                                  candidates,
-                                  this.query.getCompilation(),
-                                  parameters,
-                                  query.getObjectManager().getClassLoaderResolver());
-
-            return evaluator.execute(true, true, true, true, true);
+            // filter only
+            return newEvaluator(candidates, parameters).execute(true, false, false, false, false);
+        }
+
+        @Override
+        public Collection<?> complete(final Collection<?> candidates, final Map parameters)
+        {
+            // everything but the filter
+            return newEvaluator(candidates, parameters).execute(false, true, true, true, true);
+        }
+
+        /**
+         * @param candidates the result candidates to evaluate.
+         * @param parameters the query parameters if this was a parameterized query.
+         * @return an evaluator of the query for the candidates.
+         */
+        private JavaQueryEvaluator newEvaluator(final Collection<?> candidates,
+                                                final Map parameters)
+        {
+            return new JPQLEvaluator(this.query,
+                                     candidates,
+                                     this.query.getCompilation(),
+                                     parameters,
+                                     query.getObjectManager().getClassLoaderResolver());
         }
     }
 }
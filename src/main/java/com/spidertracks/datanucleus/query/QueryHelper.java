@@ -15,15 +15,12 @@ package com.spidertracks.datanucleus.query;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 
 import javax.jdo.identity.SingleFieldIdentity;
-import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.IndexExpression;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.exceptions.NucleusException;
@@ -31,6 +28,7 @@ import org.datanucleus.metadata.AbstractClassMetaData;
 import org.datanucleus.query.expression.DyadicExpression;
 import org.datanucleus.query.expression.Expression;
 import org.datanucleus.query.expression.Literal;
+import org.datanucleus.query.expression.ParameterExpression;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.query.Query;
 import org.datanucleus.util.ClassUtils;
@@ -38,11 +36,15 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.ColumnFieldValues;
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
 import com.spidertracks.datanucleus.query.runtime.Columns;
 import com.spidertracks.datanucleus.query.runtime.EqualityOperand;
 import com.spidertracks.datanucleus.query.runtime.Operand;
+import com.spidertracks.datanucleus.query.runtime.PageListener;
+import com.spidertracks.datanucleus.query.runtime.QueryPlan;
+import com.spidertracks.datanucleus.query.runtime.QueryPlanCache;
 import com.spidertracks.datanucleus.utils.MetaDataUtils;
 
 
@@ -54,8 +56,11 @@ import com.spidertracks.datanucleus.utils.MetaDataUtils;
  */
 final class QueryHelper
 {
-    /** The default maximum number of entries to return in a query. */
-    private static final int DEFAULT_MAX = 1000;
+    /**
+     * The number of rows read in the first page of a query. Queries read all
+     * matching rows, later pages are sized by the rows already read.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 1000;
 
     /**
      * Private default constructor.
@@ -73,7 +78,7 @@ final class QueryHelper
      * @param query the query to run.
      * @param postProcessor the thing to use to postprocess the query if there are parts of it
      *                      which Cassandra cannot handle.
-     * @return all of the objects in the store which match the query up to limited by DEFAULT_MAX.
+     * @return all of the objects in the store which match the query.
      */
     static Collection<?> executeQuery(final Map parameters,
                                       final Query query,
@@ -95,20 +100,17 @@ final class QueryHelper
         // The class discriminator column if one is used, otherwise null.
         final Bytes discriminatorColumn = getDiscriminatorColumnName(acmd);
 
-        // Names of columns necessary to select in order to have a unique key.
-        final Bytes[] selectColumns;
-        if (discriminatorColumn != null) {
-            selectColumns = new Bytes[] {idColumnBytes, discriminatorColumn};
-        } else {
-            selectColumns = new Bytes[] {idColumnBytes};
-        }
+        // Names of columns necessary to select in order to have a unique key
+        // and to populate the default fetch group without reading each row again.
+        final Bytes[] selectColumns = MetaDataUtils.getDefaultFetchColumns(
+            acmd, query.isSubclasses(), resolver, context);
 
         final CassandraStoreManager storeManager =
             (CassandraStoreManager) context.getStoreManager();
 
         final ByteConverterContext byteConverter = storeManager.getByteConverterContext();
 
-        int range = DEFAULT_MAX;
+        int range = DEFAULT_PAGE_SIZE;
         if (query.getRange() != null) {
             if (query.getOrdering() == null) {
                 throw new NucleusDataStoreException(
@@ -121,27 +123,52 @@ final class QueryHelper
             //range = (int) query.getRangeToExcl();
         }
 
-        final CassandraQueryExpressionEvaluator evaluator = new CassandraQueryExpressionEvaluator(
-            acmd, range, byteConverter, parameters, candidateClass);
+        final QueryPlan plan = getPlan(query, acmd, context, range);
 
         final Expression filter = query.getCompilation().getExprFilter();
 
 System.out.println("Running Query: [ " + filter + " ]");
 
+        final List<Object> results = new ArrayList<Object>();
+
+        // A unique query only needs a second match to know it isn't unique. Results, ordering
+        // and ranges are applied once all matches are read, so those queries read every page.
+        final boolean stopEarly = query.isUnique()
+                                  && query.getResult() == null
+                                  && query.getOrdering() == null
+                                  && query.getRange() == null;
+
+        final int limit = stopEarly ? 2 : Integer.MAX_VALUE;
+
+        // Rows are loaded into objects and filtered as they're read, so only a page of raw
+        // columns and the matching objects are held when the query doesn't combine operands.
+        final PageListener loader = new PageListener() {
+
+            @Override
+            public boolean onPage(final Collection<Columns> page)
+            {
+                final List<Object> candidates = new ArrayList<Object>(page.size());
+
+                getObjectsOfCandidateType(page,
+                                          context,
+                                          candidateClass,
+                                          query.getIgnoreCache(),
+                                          idColumnBytes,
+                                          discriminatorColumn,
+                                          byteConverter,
+                                          candidates);
+
+                results.addAll(postProcessor.filter(candidates, parameters));
+
+                return results.size() < limit;
+            }
+        };
+
         // If a query was specified, and there are indexed fields in the query,
         // perform a filter with secondary cassandra indexes.
-        final Set<Columns> candidateKeys =
-            runQuery(filter, evaluator, acmd, context, selectColumns, range);
-
-        final List<?> results = getObjectsOfCandidateType(candidateKeys,
-                                                          context,
-                                                          candidateClass,
-                                                          query.isSubclasses(),
-                                                          idColumnBytes,
-                                                          discriminatorColumn,
-                                                          byteConverter);
-
-        return postProcessor.run(results, parameters);
+        runQuery(plan, parameters, acmd, context, selectColumns, range, loader);
+
+        return postProcessor.complete(results, parameters);
     }
 
     /**
@@ -152,19 +179,20 @@ System.out.println("Running Query: [ " + filter + " ]");
      *             identity.
      * @param context the DataNucleus ExecutionContext.
      * @param candidateClass the class of object to get objects of.
-     * @param subclasses whether to look in the store database to determine the class of the object.
+     * @param ignoreCache whether to ignore the cached state of objects already in the context.
      * @param identityColumn the name of the identity column.
      * @param descriminatorColumn the name of the descriminator column.
      * @param byteConverter the ByteConverterContext for deserializing the objects.
-     * @return a list of persistable objects for each of the keys.
+     * @param results the list to add a persistable object for each of the keys to.
      */
-    private static List<?> getObjectsOfCandidateType(final Set<Columns> keys,
-                                                     final ExecutionContext context,
-                                                     final Class<?> candidateClass,
-                                                     final boolean subclasses,
-                                                     final Bytes identityColumn,
-                                                     final Bytes descriminatorColumn,
-                                                     final ByteConverterContext byteConverter)
+    private static void getObjectsOfCandidateType(final Collection<Columns> keys,
+                                                  final ExecutionContext context,
+                                                  final Class<?> candidateClass,
+                                                  final boolean ignoreCache,
+                                                  final Bytes identityColumn,
+                                                  final Bytes descriminatorColumn,
+                                                  final ByteConverterContext byteConverter,
+                                                  final List<Object> results)
     {
         final ClassLoaderResolver resolver = context.getClassLoaderResolver();
 
@@ -172,7 +200,13 @@ System.out.println("Running Query: [ " + filter + " ]");
         final AbstractClassMetaData acmd =
             context.getMetaDataManager().getMetaDataForClass(candidateClass.getName(), resolver);
 
-        final List<Object> results = new ArrayList<Object>(keys.size());
+        final String columnFamily = MetaDataUtils.getColumnFamily(acmd);
+
+        final CassandraStoreManager storeManager =
+            (CassandraStoreManager) context.getStoreManager();
+
+        // Used by the field managers to read relationship columns.
+        final Selector selector = Pelops.createSelector(storeManager.getPoolName());
 
         for (final Columns idBytes : keys) {
 
@@ -189,6 +223,8 @@ System.out.println("Running Query: [ " + filter + " ]");
                         descriminatorValue, acmd.getDiscriminatorMetaData(), context);
 
                 targetClass = resolver.classForName(className);
+
+                storeManager.getDiscriminatorCache().put(acmd, idBytes.getRowKey(), className);
             } else {
                 targetClass = candidateClass;
             }
@@ -212,8 +248,13 @@ System.out.println("Running Query: [ " + filter + " ]");
                                                     + targetClass.getName());
             }
 
-            final Object returned =
-                context.findObject(identity, true, subclasses, candidateClass.getName());
+            // Populate the object from the columns we already hold, rather than
+            // going back to Cassandra for each row.
+            final Object returned = context.findObject(identity,
+                new ColumnFieldValues(idBytes.getColumns(), columnFamily, idBytes.getRowKey(),
+                                      selector),
+                targetClass,
+                ignoreCache);
 
             if (returned == null) {
                 // This should never happen.
@@ -222,92 +263,78 @@ System.out.println("Running Query: [ " + filter + " ]");
 
             results.add(returned);
         }
-
-        return results;
     }
 
     /**
      * Get all of a specified column from a given column family.
-     * Used ranges to set the max amount.
+     * The token ranges of the ring are scanned in parallel.
      * 
-     * @param poolName the name of the cassandra pool to query against.
-     * @param cfName the name of the column family.
+     * @param storeManager the store manager to scan with.
+     * @param acmd metadata about the class ot interface being selected.
      * @param selectColumns the columns to get.
-     * @param maxSize the maximum number of entries to return.
-     * @return a set of the requested columns from all of the entries in the column family or
-     *         from the maxSize, whichever is fewer.
+     * @param pageSize the number of entries to read in the first page of each range.
+     * @param listener receives the requested columns of each page of entries.
      */
-    private static Set<Columns> getAll(final String poolName,
-                                       final AbstractClassMetaData acmd,
-                                       final Bytes[] selectColumns,
-                                       final int maxSize)
+    private static void getAll(final CassandraStoreManager storeManager,
+                               final AbstractClassMetaData acmd,
+                               final Bytes[] selectColumns,
+                               final int pageSize,
+                               final PageListener listener)
     {
         final String cfName = MetaDataUtils.getColumnFamily(acmd);
 
-        Set<Columns> candidateKeys = new HashSet<Columns>();
-
-        KeyRange range = new KeyRange();
-        range.setStart_key(new byte[] {});
-        range.setEnd_key(new byte[] {});
-        range.setCount(maxSize);
-
-        final Map<Bytes, List<Column>> results;
-        try {
-            results = Pelops.createSelector(poolName).getColumnsFromRows(
-                    cfName, range, Selector.newColumnsPredicate(selectColumns),
-                    Consistency.get());
-        } catch (Exception e) {
-            throw new NucleusException("Error scanning rows", e);
-        }
-
-        for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
-
-            if (entry.getValue().size() == 0) {
-                continue;
-            }
-
-            final Columns cols = new Columns(entry.getKey());
-
-            for (Column currentCol : entry.getValue()) {
-                cols.addResult(currentCol);
-            }
-
-            candidateKeys.add(cols);
-        }
-
-        return candidateKeys;
+        storeManager.getRangeScanner().scan(cfName,
+                                            Selector.newColumnsPredicate(selectColumns),
+                                            Consistency.get(),
+                                            pageSize,
+                                            listener);
     }
 
     /**
-     * Perform the query against Cassandra.
+     * Get the compiled plan of a query, compiling it on first use. Plans don't depend on
+     * the parameter values, so repeated executions of a query skip the compilation.
      *
-     * @param filter the "where" expression of the query.
-     * @param evaluator the mechanism for evaluating the filter into a stack of primative
-     *                  operands which can be built into a Cassandra CQL query.
+     * @param query the query to plan.
      * @param acmd metadata about the class ot interface being selected in the query.
      * @param context the DataNucleus ExecutionContext.
-     * @param selectColumns the names of the columns which will be selected by this query.
-     *                      If an entry matches the filter but does not have a column by the name
-     *                      of one of selectColumns, it will not be returned.
-     * @return a set of results each containing the row key and a subset of the columns in that row
-     *         as named by selectColumns.
+     * @param pageSize the number of rows to read in the first page of each index query.
+     * @return the plan of the query.
      */
-    private static Set<Columns> runQuery(final Expression filter,
-                                         final CassandraQueryExpressionEvaluator evaluator,
-                                         final AbstractClassMetaData acmd,
-                                         final ExecutionContext context,
-                                         final Bytes[] selectColumns,
-                                         final int maxResults)
+    private static QueryPlan getPlan(final Query query,
+                                     final AbstractClassMetaData acmd,
+                                     final ExecutionContext context,
+                                     final int pageSize)
     {
         final CassandraStoreManager storeManager =
             ((CassandraStoreManager) context.getStoreManager());
 
+        final Expression filter = query.getCompilation().getExprFilter();
+
+        // the text as written, compiled literals of different types may print the same.
+        String filterText = query.getFilter();
+
+        if (filterText == null && filter != null) {
+            filterText = filter.toString();
+        }
+
+        final QueryPlanCache cache = storeManager.getQueryPlanCache();
+
+        QueryPlan plan = cache.get(query.getCandidateClass(), query.isSubclasses(), filterText);
+
+        if (plan != null) {
+            return plan;
+        }
+
+        final CassandraQueryExpressionEvaluator evaluator = new CassandraQueryExpressionEvaluator(
+            acmd, pageSize, storeManager.getByteConverterContext(), query.getCandidateClass());
+
         Operand opTree = null;
+        Map<IndexExpression, ParameterExpression> planParameters = evaluator.getParameters();
         try {
             if (filter != null) {
                 opTree = (Operand) filter.evaluate(evaluator);
             } else {
-                opTree = new EqualityOperand(maxResults);
+                opTree = new EqualityOperand(pageSize);
             }
 
             // there's a discriminator so be sure to include it
@@ -326,27 +353,85 @@ System.out.println("Running Query: [ " + filter + " ]");
         } catch (Exception e) {
             // TODO: handle queries containing strange expressions properly
             // rather than pushing everything off on the in-memory handler.
-            opTree = new EqualityOperand(maxResults);
+            opTree = new EqualityOperand(pageSize);
+            planParameters = Collections.emptyMap();
+        }
+
+        plan = new QueryPlan(opTree, planParameters);
+
+        cache.put(query.getCandidateClass(), query.isSubclasses(), filterText, plan);
+
+        return plan;
+    }
+
+    /**
+     * Perform the query against Cassandra.
+     *
+     * @param plan the compiled query.
+     * @param parameters the query parameters if this is a parameterized query.
+     * @param acmd metadata about the class ot interface being selected in the query.
+     * @param context the DataNucleus ExecutionContext.
+     * @param selectColumns the names of the columns which will be selected by this query.
+     *                      If an entry matches the filter but does not have a column by the name
+     *                      of one of selectColumns, it will not be returned.
+     * @param pageSize the number of rows to read in the first page of each index query.
+     * @param listener receives the results, each containing the row key and a subset of the
+     *                 columns in that row as named by selectColumns. Results are passed as
+     *                 they're read unless operands have to be combined first.
+     */
+    private static void runQuery(final QueryPlan plan,
+                                 final Map parameters,
+                                 final AbstractClassMetaData acmd,
+                                 final ExecutionContext context,
+                                 final Bytes[] selectColumns,
+                                 final int pageSize,
+                                 final PageListener listener)
+    {
+        final CassandraStoreManager storeManager =
+            ((CassandraStoreManager) context.getStoreManager());
+
+        Operand opTree = null;
+        try {
+            opTree = plan.bind(parameters, storeManager.getByteConverterContext());
+        } catch (Exception e) {
+            // parameters which can't be converted are left to the in-memory handler.
+            opTree = new EqualityOperand(pageSize);
         }
 
         if (!opTree.isIndexed()) {
 System.out.println("Returning all entries from : [" + MetaDataUtils.getColumnFamily(acmd) + "]");
             // just get all keys.
-            return getAll(((CassandraStoreManager) context.getStoreManager()).getPoolName(),
-                          acmd,
-                          selectColumns,
-                          maxResults);
+            getAll(storeManager,
+                   acmd,
+                   selectColumns,
+                   pageSize,
+                   listener);
+            return;
+        }
+
+        // Run only the most selective side of ANDs which have been sampled.
+        opTree = opTree.plan(MetaDataUtils.getColumnFamily(acmd), storeManager.getIndexStatistics());
+        opTree.setParent(null);
+
+        // A single index query streams its pages, combined operands need all
+        // rows of their children first.
+        if (opTree instanceof EqualityOperand) {
+            ((EqualityOperand) opTree).setPageListener(listener);
         }
 
 System.out.println("Query: [" + opTree.toString() + "]");
         try {
             opTree.performQuery(storeManager.getPoolName(),
                                 MetaDataUtils.getColumnFamily(acmd),
-                                selectColumns);
+                                selectColumns,
+                                storeManager.getQueryExecutor());
         } catch (NucleusException e) {
             throw new NucleusException("Failed to run query [" + opTree.toString() + "]", e);
         }
-        return opTree.getCandidateKeys();
+
+        if (!(opTree instanceof EqualityOperand)) {
+            listener.onPage(opTree.getCandidateKeys());
+        }
     }
 
     /**
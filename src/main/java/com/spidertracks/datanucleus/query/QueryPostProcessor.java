@@ -27,11 +27,22 @@ import java.util.Map;
 interface QueryPostProcessor
 {
     /**
-     * Run a postprocessing of a query against a set of result candidates.
+     * Apply only the filter of a query to some of the result candidates. Used on each page
+     * of candidates as they're read, so non matching candidates aren't held until the end.
      *
-     * @param candidates the result candidates to run the query against.
+     * @param candidates the result candidates to filter.
      * @param parameters the query parameters if this was a parameterized query.
-     * @return a postprocessed (paired down and perhaps reorganized) version of candidates.
+     * @return the candidates which match the filter.
      */
-    Collection<?> run(final Collection<?> candidates, final Map parameters);
+    Collection<?> filter(final Collection<?> candidates, final Map parameters);
+
+    /**
+     * Run the rest of the postprocessing, ordering, range and result, of a query against
+     * result candidates which have already been filtered.
+     *
+     * @param candidates the filtered result candidates to run the query against.
+     * @param parameters the query parameters if this was a parameterized query.
+     * @return a postprocessed (reorganized) version of candidates.
+     */
+    Collection<?> complete(final Collection<?> candidates, final Map parameters);
 }
@@ -17,8 +17,11 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.cassandra.thrift.IndexExpression;
 import org.scale7.cassandra.pelops.Bytes;
 
 /**
@@ -58,6 +61,61 @@ public class AndOperand extends Operand {
         
     }
     
+    /**
+     * Only the side expected to read the fewest rows is run when it's
+     * selectivityRatio times cheaper than the other, or when the other can't
+     * be queried at all. The rows it reads are a superset of the rows matching
+     * both sides. If either side hasn't been sampled both are run
+     */
+    @Override
+    public Operand plan(String cfName, IndexStatistics statistics) {
+        super.plan(cfName, statistics);
+
+        long leftRows = left.estimateRows(cfName, statistics);
+        long rightRows = right.estimateRows(cfName, statistics);
+
+        if (!right.isIndexed() || (leftRows != IndexStatistics.UNKNOWN
+                && rightRows != IndexStatistics.UNKNOWN
+                && leftRows <= rightRows / statistics.getSelectivityRatio())) {
+            return left;
+        }
+
+        if (!left.isIndexed() || (leftRows != IndexStatistics.UNKNOWN
+                && rightRows != IndexStatistics.UNKNOWN
+                && rightRows <= leftRows / statistics.getSelectivityRatio())) {
+            return right;
+        }
+
+        return this;
+    }
+
+    @Override
+    public Operand bind(Map<IndexExpression, ByteBuffer> values) {
+        AndOperand copy = new AndOperand();
+        copy.setLeft(left.bind(values));
+        copy.setRight(right.bind(values));
+        return copy;
+    }
+
+    @Override
+    public long estimateRows(String cfName, IndexStatistics statistics) {
+        long leftRows = left.estimateRows(cfName, statistics);
+        long rightRows = right.estimateRows(cfName, statistics);
+
+        // both sides are upper bounds
+        if (leftRows == IndexStatistics.UNKNOWN) {
+            return rightRows == Long.MAX_VALUE ? IndexStatistics.UNKNOWN
+                    : rightRows;
+        }
+
+        if (rightRows == IndexStatistics.UNKNOWN) {
+            return leftRows == Long.MAX_VALUE ? IndexStatistics.UNKNOWN
+                    : leftRows;
+        }
+
+        return Math.min(leftRows, rightRows);
+    }
+
     @Override
     public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
             List<Bytes> possibleValues) {
@@ -17,14 +17,21 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
 
 /**
- * Class that holds the serialized bytes of the key and the descriminator value if present
+ * Class that holds the serialized bytes of the key and the columns selected
+ * for the row. The raw columns are retained so that the row can be
+ * materialized directly without reading it again.
+ * 
+ * Two instances are equal if they are for the same row key
  * 
  * @author Todd Nine
  *
@@ -32,16 +39,46 @@ import org.scale7.cassandra.pelops.Bytes;
 public class Columns {
     
     private Bytes rowKey;
-    private Map<Bytes, Bytes> values;
+    // the column values by name, both are the buffers of the columns
+    private Map<Bytes, ByteBuffer> values;
+    private List<Column> columns;
 
     
     public Columns(Bytes rowKey){
         this.rowKey = rowKey;
-        values = new LinkedHashMap<Bytes,Bytes>();
+        values = new LinkedHashMap<Bytes, ByteBuffer>();
+        columns = new ArrayList<Column>();
     }
     
+    /**
+     * Get the value of the column. The bytes are not copied, but can be
+     * consumed without affecting later reads
+     * 
+     * @param key
+     * @return The value or null if the column wasn't read
+     */
     public Bytes getColumnValue(Bytes key) {
-        return values.get(key);
+        ByteBuffer value = values.get(key);
+
+        if (value == null) {
+            return null;
+        }
+
+        return Bytes.fromByteBuffer(value.duplicate());
+    }
+
+    /**
+     * @return the key of the row these columns were read from
+     */
+    public Bytes getRowKey() {
+        return rowKey;
+    }
+
+    /**
+     * @return all columns which were read for this row
+     */
+    public List<Column> getColumns() {
+        return columns;
     }
 
     /**
@@ -49,7 +86,8 @@ public class Columns {
      * @param column
      */
     public void addResult(Column column){
-        values.put(new Bytes(column.getName()), new Bytes(column.getValue()));
+        values.put(Bytes.fromByteBuffer(column.name), column.value);
+        columns.add(column);
     }
 
     @Override
@@ -57,7 +95,6 @@ public class Columns {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((rowKey == null) ? 0 : rowKey.hashCode());
-        result = prime * result + ((values == null) ? 0 : values.hashCode());
         return result;
     }
 
@@ -75,16 +112,7 @@ public class Columns {
                 return false;
         } else if (!rowKey.equals(other.rowKey))
             return false;
-        if (values == null) {
-            if (other.values != null)
-                return false;
-        } else if (!values.equals(other.values))
-            return false;
         return true;
     }
 
-
-
-    
-    
 }
@@ -17,11 +17,11 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Stack;
 
 import com.spidertracks.datanucleus.client.Consistency;
@@ -30,6 +30,7 @@ import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.IndexClause;
 import org.apache.cassandra.thrift.IndexExpression;
 import org.apache.cassandra.thrift.IndexOperator;
+import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
 import org.datanucleus.exceptions.NucleusException;
@@ -52,6 +53,16 @@ public class EqualityOperand extends Operand implements CompressableOperand {
     /** True if the equality expression is on a field which has a cassandra secondary index. */
     private boolean isIndexed;
 
+    /** Receives the rows page by page instead of the candidate keys, may be null. */
+    private PageListener pageListener;
+
+    /** Sampled with the rows read by the query once planned, may be null. */
+    private IndexStatistics statistics;
+
+    /**
+     * @param count the size of the first page read, later pages are sized by the rows read.
+     *              Every matching row is read regardless of the page size.
+     */
     public EqualityOperand(int count) {
         clause = new IndexClause();
         clause.setStart_key(new byte[] {});
@@ -116,43 +127,113 @@ public class EqualityOperand extends Operand implements CompressableOperand {
         return clause;
     }
 
+    /**
+     * Pass the rows to the listener as each page is read rather than adding
+     * them to the candidate keys. Only valid for a root operand, the parent
+     * isn't signalled
+     * 
+     * @param pageListener
+     */
+    public void setPageListener(PageListener pageListener) {
+        this.pageListener = pageListener;
+    }
+
     @Override
     public void performQuery(String poolName, String cfName, Bytes[] columns) {
 
-        try {
-            Map<Bytes, List<Column>> results = Pelops.createSelector(poolName)
-                    .getIndexedColumns(cfName, clause,
-                            Selector.newColumnsPredicate(columns),
-                            Consistency.get());
-            Columns cols;
+        final Selector selector = Pelops.createSelector(poolName);
+        final String columnFamily = cfName;
+        final SlicePredicate predicate = Selector.newColumnsPredicate(columns);
+        final ConsistencyLevel consistency = Consistency.get();
 
-            for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+        RowPager pager = new RowPager(clause.getCount()) {
 
-                if (entry.getValue().size() == 0) {
-                    continue;
-                }
+            @Override
+            protected Map<Bytes, List<Column>> fetch(Bytes startKey, int count)
+                    throws Exception {
 
-                cols = new Columns(entry.getKey());
+                // the clause may be shared with other operands, page with a copy
+                IndexClause page = clause.deepCopy();
 
-                for (Column currentCol : entry.getValue()) {
+                page.setStart_key(startKey == null ? new byte[] {} : startKey
+                        .toByteArray());
+                page.setCount(count);
+
+                return selector.getIndexedColumns(columnFamily, page,
+                        predicate, consistency);
+            }
+        };
 
-                    cols.addResult(currentCol);
+        try {
+            List<Columns> page;
+
+            boolean complete = true;
+
+            while ((page = pager.next()) != null) {
+                if (pageListener != null) {
+                    if (!pageListener.onPage(page)) {
+                        complete = false;
+                        break;
+                    }
+                } else {
+                    super.candidateKeys.addAll(page);
                 }
+            }
 
-                super.candidateKeys.add(cols);
+            // a query stopped early doesn't say how many rows match
+            if (statistics != null && complete) {
+                statistics.record(cfName, clause, pager.getRowsRead());
             }
 
+        } catch (NucleusException e) {
+            throw e;
         } catch (Exception e) {
             throw new NucleusException("Error processing secondary index", e);
         }
 
         // signal to the parent node the query completed
-        if (parent != null) {
+        if (parent != null && pageListener == null) {
             parent.complete(this);
         }
 
     }
 
+    @Override
+    public Operand bind(Map<IndexExpression, ByteBuffer> values) {
+        EqualityOperand copy = new EqualityOperand(clause.getCount());
+
+        for (IndexExpression expression : clause.getExpressions()) {
+            IndexExpression bound = new IndexExpression(expression);
+
+            ByteBuffer value = values.get(expression);
+
+            if (value != null) {
+                bound.setValue(value);
+            }
+
+            copy.clause.addToExpressions(bound);
+        }
+
+        copy.isIndexed = isIndexed;
+
+        return copy;
+    }
+
+    @Override
+    public Operand plan(String cfName, IndexStatistics statistics) {
+        this.statistics = statistics;
+        return this;
+    }
+
+    @Override
+    public long estimateRows(String cfName, IndexStatistics statistics) {
+        if (!isIndexed) {
+            return Long.MAX_VALUE;
+        }
+
+        return statistics.getEstimate(cfName, clause);
+    }
+
     @Override
     public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
             List<Bytes> possibleValues) {
@@ -0,0 +1,261 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Cheap cardinality statistics of the index queries run so far. Every index
+ * query that reads all of its rows is sampled. The estimate of a query is a
+ * moving average of the rows read by earlier queries on the same column family
+ * with the same values, so a skewed column has an estimate per value. A query
+ * with values that haven't been sampled falls back to the average of all
+ * queries on the same columns. At most MAX_VALUE_ESTIMATES values are kept.
+ * 
+ * The statistics are used to run only the most selective side of an AND, the
+ * other side is checked by the in-memory evaluator on the rows read. A side is
+ * only considered more selective when it's expected to read selectivityRatio
+ * times fewer rows than the other. Safe for concurrent use.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class IndexStatistics {
+
+    /**
+     * The estimate of an index that hasn't been sampled
+     */
+    public static final long UNKNOWN = -1;
+
+    /**
+     * The weight of a new sample in the moving average
+     */
+    private static final double SAMPLE_WEIGHT = 0.125;
+
+    /**
+     * The number of values sampled before new values only update the
+     * estimate of their columns
+     */
+    private static final int MAX_VALUE_ESTIMATES = 10000;
+
+    // by column family and columns
+    private ConcurrentMap<String, Estimate> estimates = new ConcurrentHashMap<String, Estimate>();
+
+    // by column family, columns and values
+    private ConcurrentMap<String, Estimate> valueEstimates = new ConcurrentHashMap<String, Estimate>();
+
+    private volatile int selectivityRatio;
+
+    /**
+     * 
+     * @param selectivityRatio
+     *            How many times fewer rows one side of an AND has to read
+     *            before the other side isn't run
+     */
+    public IndexStatistics(int selectivityRatio) {
+        setSelectivityRatio(selectivityRatio);
+    }
+
+    /**
+     * Record the number of rows read by an index query
+     * 
+     * @param cfName
+     * @param clause
+     * @param rows
+     */
+    public void record(String cfName, IndexClause clause, long rows) {
+        getOrCreate(estimates, getKey(cfName, clause, false)).sample(rows);
+
+        String valueKey = getKey(cfName, clause, true);
+
+        Estimate estimate = valueEstimates.get(valueKey);
+
+        if (estimate == null) {
+            if (valueEstimates.size() >= MAX_VALUE_ESTIMATES) {
+                return;
+            }
+
+            estimate = getOrCreate(valueEstimates, valueKey);
+        }
+
+        estimate.sample(rows);
+    }
+
+    /**
+     * @param cfName
+     * @param clause
+     * @return the estimated number of rows the index query reads, or
+     *         {@link #UNKNOWN} if no query on its columns has been sampled
+     */
+    public long getEstimate(String cfName, IndexClause clause) {
+        Estimate estimate = valueEstimates.get(getKey(cfName, clause, true));
+
+        if (estimate == null) {
+            estimate = estimates.get(getKey(cfName, clause, false));
+        }
+
+        if (estimate == null) {
+            return UNKNOWN;
+        }
+
+        return estimate.get();
+    }
+
+    /**
+     * @return the estimate of every sampled index, keyed by column family and
+     *         hex encoded column names, and of every sampled value, keyed by
+     *         column family and hex encoded column names, operators and
+     *         values
+     */
+    public Map<String, Long> getEstimates() {
+        Map<String, Long> snapshot = new HashMap<String, Long>();
+
+        for (Map.Entry<String, Estimate> entry : estimates.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+
+        for (Map.Entry<String, Estimate> entry : valueEstimates.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return how many times fewer rows one side of an AND has to read before
+     *         the other side isn't run
+     */
+    public int getSelectivityRatio() {
+        return selectivityRatio;
+    }
+
+    /**
+     * @param selectivityRatio
+     *            how many times fewer rows one side of an AND has to read
+     *            before the other side isn't run
+     */
+    public void setSelectivityRatio(int selectivityRatio) {
+        this.selectivityRatio = Math.max(1, selectivityRatio);
+    }
+
+    /**
+     * Forget all samples
+     */
+    public void reset() {
+        estimates.clear();
+        valueEstimates.clear();
+    }
+
+    @Override
+    public String toString() {
+        return getEstimates().toString();
+    }
+
+    /**
+     * Get the estimate with the key, creating it if there isn't one
+     * 
+     * @param estimates
+     * @param key
+     * @return
+     */
+    private static Estimate getOrCreate(
+            ConcurrentMap<String, Estimate> estimates, String key) {
+        Estimate estimate = estimates.get(key);
+
+        if (estimate == null) {
+            estimate = new Estimate();
+
+            Estimate existing = estimates.putIfAbsent(key, estimate);
+
+            if (existing != null) {
+                estimate = existing;
+            }
+        }
+
+        return estimate;
+    }
+
+    /**
+     * The column family and sorted column names of the clause
+     * 
+     * @param cfName
+     * @param clause
+     * @param values
+     *            True to add the operator and value to each column name
+     * @return
+     */
+    private static String getKey(String cfName, IndexClause clause,
+            boolean values) {
+        List<String> columns = new ArrayList<String>(clause
+                .getExpressionsSize());
+
+        for (IndexExpression expression : clause.getExpressions()) {
+            String column = new String(Hex.encodeHex(expression
+                    .getColumn_name()));
+
+            if (values) {
+                column += expression.getOp() + new String(Hex
+                        .encodeHex(expression.getValue()));
+            }
+
+            columns.add(column);
+        }
+
+        Collections.sort(columns);
+
+        StringBuilder key = new StringBuilder(cfName);
+
+        for (String column : columns) {
+            key.append(':').append(column);
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * The moving average of the rows read by an index
+     */
+    private static class Estimate {
+
+        private double rows = -1;
+
+        private synchronized void sample(long sample) {
+            if (rows < 0) {
+                rows = sample;
+                return;
+            }
+
+            rows += (sample - rows) * SAMPLE_WEIGHT;
+        }
+
+        private synchronized long get() {
+            return Math.round(rows);
+        }
+    }
+
+}
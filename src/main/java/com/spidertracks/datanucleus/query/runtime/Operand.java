@@ -17,11 +17,23 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.IndexExpression;
+import org.datanucleus.exceptions.NucleusException;
 import org.scale7.cassandra.pelops.Bytes;
 
+import com.spidertracks.datanucleus.client.Consistency;
+
 /**
  * Class that represents an || or && operation. Each will have a left and a
  * right. This is used to Thread && queries to allow for more efficient unions
@@ -54,6 +66,136 @@ public abstract class Operand {
     public abstract void performQuery(String poolName, String cfName,
             Bytes[] columns);
 
+    /**
+     * Will run the query with every leaf of the tree running concurrently on
+     * the executor. The leaves signal their parents as they finish, so the
+     * results are merged as they arrive and the query takes about as long as
+     * its slowest leaf. Only the calling thread waits, so a leaf never waits
+     * for a thread held by another.
+     * 
+     * @param executor
+     *            The executor to run the leaves on. May be null, in which case
+     *            the leaves run one after another on the calling thread
+     */
+    public void performQuery(final String poolName, final String cfName,
+            final Bytes[] columns, ExecutorService executor) {
+
+        List<Operand> leaves = new ArrayList<Operand>();
+
+        addLeaves(leaves);
+
+        if (executor == null || leaves.size() < 2) {
+            performQuery(poolName, cfName, columns);
+            return;
+        }
+
+        // the consistency level is per thread, run the leaves with the caller's
+        final ConsistencyLevel consistency = Consistency.get();
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(leaves.size());
+
+        for (final Operand leaf : leaves) {
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    Consistency.set(consistency);
+
+                    try {
+                        leaf.performQuery(poolName, cfName, columns);
+                    } finally {
+                        Consistency.remove();
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NucleusException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NucleusException) {
+                throw (NucleusException) e.getCause();
+            }
+
+            throw new NucleusException("Error processing secondary index",
+                    e.getCause());
+        } finally {
+            // leaves which haven't started aren't needed after a failure
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Copy the operand tree with the values of the expressions which compare
+     * with a parameter. The copy hasn't been run
+     * 
+     * @param values
+     *            The value of each parameterised expression, by identity
+     * @return the copy
+     */
+    public abstract Operand bind(Map<IndexExpression, ByteBuffer> values);
+
+    /**
+     * Estimate the number of rows the operand reads
+     * 
+     * @param cfName
+     * @param statistics
+     * @return the estimate, {@link IndexStatistics#UNKNOWN} if it can't be
+     *         estimated or Long.MAX_VALUE if the operand can't be queried
+     */
+    public abstract long estimateRows(String cfName, IndexStatistics statistics);
+
+    /**
+     * Plan the query with the statistics of earlier queries. Operands may be
+     * replaced by a cheaper operand which returns at least the same rows, the
+     * in-memory evaluator removes the extra ones
+     * 
+     * @param cfName
+     * @param statistics
+     * @return the operand to query with
+     */
+    public Operand plan(String cfName, IndexStatistics statistics) {
+        if (left != null) {
+            setLeft(left.plan(cfName, statistics));
+        }
+
+        if (right != null) {
+            setRight(right.plan(cfName, statistics));
+        }
+
+        return this;
+    }
+
+    /**
+     * Add the leaves of the tree below this operand, or this operand if it is
+     * a leaf
+     * 
+     * @param leaves
+     */
+    protected void addLeaves(List<Operand> leaves) {
+        if (left == null && right == null) {
+            leaves.add(this);
+            return;
+        }
+
+        if (left != null) {
+            left.addLeaves(leaves);
+        }
+
+        if (right != null) {
+            right.addLeaves(leaves);
+        }
+    }
+
     /**
      * Optimize the query tree for CFS that have descriminators
      * 
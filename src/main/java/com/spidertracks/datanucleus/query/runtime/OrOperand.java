@@ -17,8 +17,11 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.cassandra.thrift.IndexExpression;
 import org.scale7.cassandra.pelops.Bytes;
 
 /**
@@ -57,6 +60,31 @@ public class OrOperand extends Operand {
         
     }
 
+    @Override
+    public Operand bind(Map<IndexExpression, ByteBuffer> values) {
+        OrOperand copy = new OrOperand();
+        copy.setLeft(left.bind(values));
+        copy.setRight(right.bind(values));
+        return copy;
+    }
+
+    @Override
+    public long estimateRows(String cfName, IndexStatistics statistics) {
+        long leftRows = left.estimateRows(cfName, statistics);
+        long rightRows = right.estimateRows(cfName, statistics);
+
+        if (leftRows == Long.MAX_VALUE || rightRows == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        if (leftRows == IndexStatistics.UNKNOWN
+                || rightRows == IndexStatistics.UNKNOWN) {
+            return IndexStatistics.UNKNOWN;
+        }
+
+        return leftRows + rightRows;
+    }
+
     @Override
     public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
             List<Bytes> possibleValues) {
@@ -0,0 +1,41 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.Collection;
+
+/**
+ * Receives the rows of a query as they're read instead of collecting them all
+ * first. Only used when the rows don't need to be combined with the results
+ * of another operand
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface PageListener {
+
+    /**
+     * Called with each page of rows as it's read
+     * 
+     * @param page
+     * @return False if no more rows are needed. Reading may stop early, but
+     *         isn't required to
+     */
+    public boolean onPage(Collection<Columns> page);
+
+}
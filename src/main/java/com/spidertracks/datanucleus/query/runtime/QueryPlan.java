@@ -0,0 +1,99 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.cassandra.thrift.IndexExpression;
+import org.datanucleus.query.QueryUtils;
+import org.datanucleus.query.expression.ParameterExpression;
+
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * A compiled query without parameter values. The operand tree is built once,
+ * with the discriminators expanded and literals encoded, and each execution
+ * binds its parameters to a copy of it. Expressions on parameters hold an
+ * empty value in the tree and are identified by identity, since the same
+ * expression is shared by every leaf a discriminator expands to.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class QueryPlan {
+
+    private Operand operand;
+
+    private Map<IndexExpression, ParameterExpression> parameters;
+
+    /**
+     * 
+     * @param operand
+     *            The operand tree of the query. It's never run, only copied
+     * @param parameters
+     *            The parameter of each expression in the tree which compares
+     *            with one, by identity
+     */
+    public QueryPlan(Operand operand,
+            Map<IndexExpression, ParameterExpression> parameters) {
+        this.operand = operand;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Copy the operand tree with the parameter values. Each parameter is
+     * converted once however many expressions use it
+     * 
+     * @param parameterValues
+     *            The parameter values of the execution, may be null
+     * @param byteConverter
+     * @return A new operand tree to run
+     */
+    public Operand bind(Map<?, ?> parameterValues,
+            ByteConverterContext byteConverter) {
+
+        Map<IndexExpression, ByteBuffer> values = new IdentityHashMap<IndexExpression, ByteBuffer>(
+                parameters.size());
+
+        Map<ParameterExpression, ByteBuffer> converted = new IdentityHashMap<ParameterExpression, ByteBuffer>(
+                parameters.size());
+
+        for (Entry<IndexExpression, ParameterExpression> parameter : parameters
+                .entrySet()) {
+
+            ByteBuffer value = converted.get(parameter.getValue());
+
+            if (value == null) {
+                value = byteConverter.getBytes(
+                        QueryUtils.getValueForParameterExpression(
+                                parameterValues, parameter.getValue()))
+                        .getBytes();
+
+                converted.put(parameter.getValue(), value);
+            }
+
+            values.put(parameter.getKey(), value);
+        }
+
+        return operand.bind(values);
+    }
+
+}
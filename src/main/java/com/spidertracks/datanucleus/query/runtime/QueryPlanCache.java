@@ -0,0 +1,103 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of compiled queries. Queries are identified by their
+ * candidate class, whether subclasses are included and the text of their
+ * filter, so executions which only differ in their parameter values share a
+ * plan. The least recently used plans are evicted once the cache is full.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class QueryPlanCache {
+
+    private final Map<String, QueryPlan> plans;
+
+    /**
+     * @param maxSize
+     *            The maximum number of plans to hold
+     */
+    public QueryPlanCache(final int maxSize) {
+        plans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, QueryPlan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the plan of a query
+     * 
+     * @param candidateClass
+     * @param subclasses
+     * @param filter
+     *            The text of the filter, null if the query has none
+     * @return The plan or null if it isn't cached
+     */
+    public QueryPlan get(Class<?> candidateClass, boolean subclasses,
+            String filter) {
+        String key = getKey(candidateClass, subclasses, filter);
+
+        synchronized (plans) {
+            return plans.get(key);
+        }
+    }
+
+    /**
+     * Cache the plan of a query
+     * 
+     * @param candidateClass
+     * @param subclasses
+     * @param filter
+     *            The text of the filter, null if the query has none
+     * @param plan
+     */
+    public void put(Class<?> candidateClass, boolean subclasses,
+            String filter, QueryPlan plan) {
+        String key = getKey(candidateClass, subclasses, filter);
+
+        synchronized (plans) {
+            plans.put(key, plan);
+        }
+    }
+
+    /**
+     * Remove all plans
+     */
+    public void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+
+    private static String getKey(Class<?> candidateClass, boolean subclasses,
+            String filter) {
+        return candidateClass.getName() + '|' + subclasses + '|' + filter;
+    }
+
+}
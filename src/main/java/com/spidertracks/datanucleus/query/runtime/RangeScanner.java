@@ -0,0 +1,358 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.TokenRange;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.thrift.transport.TTransportException;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans every row of a column family in parallel. The ring is split into the
+ * token ranges of its nodes, and each of those into splits of about
+ * keysPerSplit rows with describe_splits. The splits are paged on the executor,
+ * each page starting after the token of the last row of the previous one like
+ * the Hadoop record reader does.
+ * 
+ * Pages are handed to the listener on the calling thread, so it can use the
+ * execution context. At most QUEUED_PAGES_PER_THREAD pages per thread wait to
+ * be handed over, splits stop reading while the queue is full. The scan stops
+ * early when the listener asks it to or a split fails.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class RangeScanner {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(RangeScanner.class);
+
+    private static final int QUEUED_PAGES_PER_THREAD = 2;
+
+    /**
+     * Marks the end of a split in the page queue
+     */
+    private static final List<Columns> SPLIT_DONE = new ArrayList<Columns>(0);
+
+    private String poolName;
+
+    private String keyspace;
+
+    private ExecutorService executor;
+
+    private int threads;
+
+    private int keysPerSplit;
+
+    /**
+     * 
+     * @param poolName
+     *            The pelops pool to read with
+     * @param keyspace
+     *            The keyspace of the column families
+     * @param executor
+     *            The executor to read the splits on
+     * @param threads
+     *            The number of threads of the executor
+     * @param keysPerSplit
+     *            The approximate number of rows per split
+     */
+    public RangeScanner(String poolName, String keyspace,
+            ExecutorService executor, int threads, int keysPerSplit) {
+        this.poolName = poolName;
+        this.keyspace = keyspace;
+        this.executor = executor;
+        this.threads = threads;
+        this.keysPerSplit = keysPerSplit;
+    }
+
+    /**
+     * Read the columns of every row in the column family. Rows without any of
+     * the selected columns are skipped
+     * 
+     * @param columnFamily
+     * @param predicate
+     *            The columns to read
+     * @param consistency
+     * @param pageSize
+     *            The size of the first page of each split
+     * @param listener
+     *            Receives the pages on the calling thread in no particular
+     *            order
+     */
+    public void scan(String columnFamily, SlicePredicate predicate,
+            ConsistencyLevel consistency, int pageSize, PageListener listener) {
+
+        Ring ring = describe(columnFamily);
+
+        final BlockingQueue<List<Columns>> pages = new ArrayBlockingQueue<List<Columns>>(
+                threads * QUEUED_PAGES_PER_THREAD);
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        final Scan scan = new Scan();
+
+        List<Future<Void>> splits = new ArrayList<Future<Void>>(
+                ring.splits.size());
+
+        for (String[] split : ring.splits) {
+            splits.add(executor.submit(new SplitReader(poolName,
+                    ring.partitioner, columnFamily, predicate, consistency, pageSize, split[0],
+                    split[1], pages, scan, failure)));
+        }
+
+        int remaining = splits.size();
+
+        try {
+            while (remaining > 0 && failure.get() == null) {
+                List<Columns> page;
+
+                try {
+                    page = pages.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NucleusDataStoreException(e.getMessage(), e);
+                }
+
+                if (page == SPLIT_DONE) {
+                    remaining--;
+                    continue;
+                }
+
+                if (!listener.onPage(page)) {
+                    // enough rows have been read
+                    return;
+                }
+            }
+        } finally {
+            scan.stopped = true;
+
+            // splits which haven't started return immediately
+            for (Future<Void> split : splits) {
+                split.cancel(false);
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new NucleusDataStoreException("Error scanning rows",
+                    failure.get());
+        }
+    }
+
+    /**
+     * Read the partitioner and the splits of the ring
+     * 
+     * @param columnFamily
+     * @return
+     */
+    private Ring describe(String columnFamily) {
+        IPooledConnection connection = Pelops.getDbConnPool(poolName)
+                .getConnection();
+
+        try {
+            Cassandra.Client client = connection.getAPI();
+
+            Ring ring = new Ring();
+
+            ring.partitioner = FBUtilities.newPartitioner(client
+                    .describe_partitioner());
+
+            for (TokenRange range : client.describe_ring(keyspace)) {
+                List<String> tokens = client.describe_splits(columnFamily,
+                        range.start_token, range.end_token, keysPerSplit);
+
+                for (int i = 1; i < tokens.size(); i++) {
+                    ring.splits.add(new String[] { tokens.get(i - 1),
+                            tokens.get(i) });
+                }
+            }
+
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Scanning {} in {} splits", columnFamily,
+                        ring.splits.size());
+            }
+
+            return ring;
+        } catch (TTransportException e) {
+            connection.corrupted();
+            throw new NucleusDataStoreException("Unable to describe the ring",
+                    e);
+        } catch (Exception e) {
+            throw new NucleusDataStoreException("Unable to describe the ring",
+                    e);
+        } finally {
+            connection.release();
+        }
+    }
+
+    /**
+     * The partitioner and splits of the ring
+     */
+    private static class Ring {
+
+        @SuppressWarnings("rawtypes")
+        private IPartitioner partitioner;
+
+        // the start and end token of each split
+        private List<String[]> splits = new ArrayList<String[]>();
+    }
+
+    /**
+     * State shared by the readers of a scan
+     */
+    private static class Scan {
+        private volatile boolean stopped;
+    }
+
+    /**
+     * Pages through a single split and queues its pages
+     */
+    private static class SplitReader implements Callable<Void> {
+
+        private String poolName;
+
+        @SuppressWarnings("rawtypes")
+        private IPartitioner partitioner;
+
+        private String columnFamily;
+
+        private SlicePredicate predicate;
+
+        private ConsistencyLevel consistency;
+
+        private int pageSize;
+
+        private String startToken;
+
+        private String endToken;
+
+        private BlockingQueue<List<Columns>> pages;
+
+        private Scan scan;
+
+        private AtomicReference<Exception> failure;
+
+        @SuppressWarnings("rawtypes")
+        private SplitReader(String poolName, IPartitioner partitioner,
+                String columnFamily,
+                SlicePredicate predicate, ConsistencyLevel consistency,
+                int pageSize, String startToken, String endToken,
+                BlockingQueue<List<Columns>> pages, Scan scan,
+                AtomicReference<Exception> failure) {
+            this.poolName = poolName;
+            this.partitioner = partitioner;
+            this.columnFamily = columnFamily;
+            this.predicate = predicate;
+            this.consistency = consistency;
+            this.pageSize = pageSize;
+            this.startToken = startToken;
+            this.endToken = endToken;
+            this.pages = pages;
+            this.scan = scan;
+            this.failure = failure;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            final Selector selector = Pelops.createSelector(poolName);
+
+            try {
+                RowPager pager = new RowPager(pageSize) {
+
+                    @Override
+                    protected Map<Bytes, List<Column>> fetch(Bytes startKey,
+                            int count) throws Exception {
+
+                        KeyRange range = new KeyRange(count);
+                        range.setStart_token(startKey == null ? startToken
+                                : getToken(startKey));
+                        range.setEnd_token(endToken);
+
+                        return selector.getColumnsFromRows(columnFamily,
+                                range, predicate, consistency);
+                    }
+                };
+
+                List<Columns> page;
+
+                while (!scan.stopped && (page = pager.next()) != null) {
+                    if (page.size() > 0) {
+                        queue(page);
+                    }
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                queue(SPLIT_DONE);
+            }
+
+            return null;
+        }
+
+        /**
+         * Queue the page unless the scan stops while waiting for room
+         * 
+         * @param page
+         * @throws InterruptedException
+         */
+        private void queue(List<Columns> page) throws InterruptedException {
+            while (!scan.stopped) {
+                if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The start token is exclusive, so paging from the token of the last
+         * row read doesn't read it again
+         * 
+         * @param key
+         * @return
+         */
+        @SuppressWarnings("unchecked")
+        private String getToken(Bytes key) {
+            return partitioner.getTokenFactory().toString(
+                    partitioner.getToken(key.getBytes().duplicate()));
+        }
+    }
+
+}
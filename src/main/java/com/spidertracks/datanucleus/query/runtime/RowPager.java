@@ -0,0 +1,149 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.cassandra.thrift.Column;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Reads the rows of an index query or range scan a page at a time. Each page
+ * starts at the last row key of the previous one, so the number of rows read
+ * isn't limited by a single response. Start keys are inclusive, so every page
+ * after the first asks for one extra row and drops the row it starts at.
+ * 
+ * The page size adapts to the rows read so far. It's chosen so a page holds
+ * roughly TARGET_PAGE_BYTES of columns, between MIN_PAGE_SIZE and
+ * MAX_PAGE_SIZE rows. Rows without any of the selected columns are skipped.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public abstract class RowPager {
+
+    private static final int MIN_PAGE_SIZE = 16;
+
+    private static final int MAX_PAGE_SIZE = 10000;
+
+    private static final long TARGET_PAGE_BYTES = 2 * 1024 * 1024;
+
+    private int pageSize;
+
+    private Bytes lastKey;
+
+    private boolean done;
+
+    private long rowsRead;
+
+    private long bytesRead;
+
+    /**
+     * 
+     * @param pageSize
+     *            The size of the first page
+     */
+    protected RowPager(int pageSize) {
+        this.pageSize = Math.max(MIN_PAGE_SIZE,
+                Math.min(pageSize, MAX_PAGE_SIZE));
+    }
+
+    /**
+     * Read the next page
+     * 
+     * @return The rows of the page, or null if all rows have been read. A
+     *         page may be empty without being the last one
+     * @throws Exception
+     */
+    public List<Columns> next() throws Exception {
+        if (done) {
+            return null;
+        }
+
+        int count = lastKey == null ? pageSize : pageSize + 1;
+
+        Map<Bytes, List<Column>> results = fetch(lastKey, count);
+
+        List<Columns> page = new ArrayList<Columns>(results.size());
+
+        Bytes startKey = lastKey;
+
+        for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+            lastKey = entry.getKey();
+
+            if (entry.getValue().size() == 0 || lastKey.equals(startKey)) {
+                continue;
+            }
+
+            Columns cols = new Columns(lastKey);
+
+            long size = lastKey.length();
+
+            for (Column column : entry.getValue()) {
+                cols.addResult(column);
+
+                size += column.name.remaining();
+
+                if (column.value != null) {
+                    size += column.value.remaining();
+                }
+            }
+
+            rowsRead++;
+            bytesRead += size;
+
+            page.add(cols);
+        }
+
+        done = results.size() < count;
+
+        if (rowsRead > 0) {
+            long rowSize = Math.max(1, bytesRead / rowsRead);
+
+            pageSize = (int) Math.max(MIN_PAGE_SIZE,
+                    Math.min(TARGET_PAGE_BYTES / rowSize, MAX_PAGE_SIZE));
+        }
+
+        return page;
+    }
+
+    /**
+     * @return The number of rows read with columns so far
+     */
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * Read the rows starting at the key
+     * 
+     * @param startKey
+     *            The first key to read, inclusive. Null to read from the
+     *            start
+     * @param count
+     *            The maximum number of rows to read
+     * @return The rows in key order
+     * @throws Exception
+     */
+    protected abstract Map<Bytes, List<Column>> fetch(Bytes startKey,
+            int count) throws Exception;
+
+}
@@ -0,0 +1,42 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.serialization;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A serializer that can read objects straight from the buffer they were
+ * received in. Values are copied to a byte array before they're passed to
+ * serializers which don't implement this interface
+ * 
+ * @author Todd Nine
+ * 
+ */
+public interface BufferSerializer extends Serializer {
+
+    /**
+     * Get the object for the bytes between the buffer's position and limit.
+     * The buffer may be direct or read only and must not be modified
+     * 
+     * @param <T>
+     * @param buffer
+     * @return
+     */
+    public <T> T getObject(ByteBuffer buffer);
+
+}
@@ -19,14 +19,16 @@ package com.spidertracks.datanucleus.serialization;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author Todd Nine
  *
  */
-public class JavaSerializer implements Serializer {
+public class JavaSerializer implements BufferSerializer {
 
 
     /* (non-Javadoc)
@@ -54,11 +56,22 @@ public class JavaSerializer implements Serializer {
     /* (non-Javadoc)
      * @see com.spidertracks.datanucleus.serialization.Serializer#getObject(byte[])
      */
-    @SuppressWarnings("unchecked")
     @Override
     public <T> T getObject(byte[] bytes) {
+        return this.<T> readObject(new ByteArrayInputStream(bytes));
+    }
+
+    /* (non-Javadoc)
+     * @see com.spidertracks.datanucleus.serialization.BufferSerializer#getObject(java.nio.ByteBuffer)
+     */
+    @Override
+    public <T> T getObject(ByteBuffer buffer) {
+        return this.<T> readObject(new ByteBufferInputStream(buffer));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T readObject(InputStream bis) {
         try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
             ObjectInputStream ois;
 
             ois = new ObjectInputStream(bis);
@@ -20,6 +20,8 @@ package com.spidertracks.datanucleus.serialization;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.datanucleus.store.types.sco.SCO;
 
@@ -31,7 +33,7 @@ import com.thoughtworks.xstream.XStream;
  * @author Todd Nine
  * 
  */
-public class XStreamSerializer implements Serializer {
+public class XStreamSerializer implements BufferSerializer {
 
     public XStreamSerializer() {
 
@@ -78,13 +80,27 @@ public class XStreamSerializer implements Serializer {
      * @see
      * com.spidertracks.datanucleus.serialization.Serializer#getObject(byte[])
      */
-    @SuppressWarnings("unchecked")
     @Override
     public <T> T getObject(byte[] bytes) {
+        return this.<T> readObject(new ByteArrayInputStream(bytes));
+    }
 
-        try {
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.spidertracks.datanucleus.serialization.BufferSerializer#getObject
+     * (java.nio.ByteBuffer)
+     */
+    @Override
+    public <T> T getObject(ByteBuffer buffer) {
+        return this.<T> readObject(new ByteBufferInputStream(buffer));
+    }
 
-            ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+    @SuppressWarnings("unchecked")
+    private <T> T readObject(InputStream input) {
+
+        try {
 
             XStream xstream = new XStream();
 
@@ -0,0 +1,258 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * A bounded cache of the class name stored for a row. Rows are identified by
+ * the root class of their inheritance tree and the row key, so an entry
+ * written for a subclass is found when looking up by any of its super
+ * classes. The least recently used entries are evicted once the cache is
+ * full.
+ * 
+ * Rows written in a transaction are only cached once it commits, so a rolled
+ * back insert never leaves a class name behind for a row that doesn't exist.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class DiscriminatorCache {
+
+    private final Map<Key, String> classNames;
+
+    private final ConcurrentMap<ExecutionContext, PendingWrites> pending = new ConcurrentHashMap<ExecutionContext, PendingWrites>();
+
+    /**
+     * @param maxSize
+     *            The maximum number of entries to hold
+     */
+    public DiscriminatorCache(final int maxSize) {
+        classNames = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the class name stored in the row
+     * 
+     * @param metaData
+     *            The metadata of any class in the row's inheritance tree
+     * @param rowKey
+     * @return The class name or null if it isn't cached
+     */
+    public String get(AbstractClassMetaData metaData, Bytes rowKey) {
+        Key key = new Key(metaData, rowKey);
+
+        synchronized (classNames) {
+            return classNames.get(key);
+        }
+    }
+
+    /**
+     * Cache the class name stored in the row
+     * 
+     * @param metaData
+     *            The metadata of any class in the row's inheritance tree
+     * @param rowKey
+     * @param className
+     */
+    public void put(AbstractClassMetaData metaData, Bytes rowKey,
+            String className) {
+        Key key = new Key(metaData, rowKey);
+
+        synchronized (classNames) {
+            classNames.put(key, className);
+        }
+    }
+
+    /**
+     * Cache the class name written to the row by the execution context. If
+     * the context has an active transaction the entry is held until it
+     * commits and dropped if it rolls back, otherwise it is cached straight
+     * away
+     * 
+     * @param context
+     * @param metaData
+     *            The metadata of any class in the row's inheritance tree
+     * @param rowKey
+     * @param className
+     */
+    public void putOnCommit(ExecutionContext context,
+            AbstractClassMetaData metaData, Bytes rowKey, String className) {
+        if (!context.getTransaction().isActive()) {
+            put(metaData, rowKey, className);
+            return;
+        }
+
+        PendingWrites writes = pending.get(context);
+
+        // a context is only used by one thread at a time
+        if (writes == null) {
+            writes = new PendingWrites(context);
+            pending.put(context, writes);
+            context.getTransaction().addTransactionEventListener(writes);
+        }
+
+        writes.add(new Key(metaData, rowKey), className);
+    }
+
+    /**
+     * Remove the row from the cache. Any class name the execution context
+     * has written to the row in its transaction is dropped as well, so a row
+     * inserted and deleted in the same transaction isn't cached when it
+     * commits
+     * 
+     * @param context
+     * @param metaData
+     * @param rowKey
+     */
+    public void remove(ExecutionContext context,
+            AbstractClassMetaData metaData, Bytes rowKey) {
+        Key key = new Key(metaData, rowKey);
+
+        PendingWrites writes = pending.get(context);
+
+        if (writes != null) {
+            writes.remove(key);
+        }
+
+        synchronized (classNames) {
+            classNames.remove(key);
+        }
+    }
+
+    /**
+     * Get the name of the top most persistent class in the inheritance tree
+     * 
+     * @param metaData
+     * @return
+     */
+    private static String getRootClassName(AbstractClassMetaData metaData) {
+        AbstractClassMetaData current = metaData;
+
+        while (current.getSuperAbstractClassMetaData() != null) {
+            current = current.getSuperAbstractClassMetaData();
+        }
+
+        return current.getFullClassName();
+    }
+
+    /**
+     * The class names written in a transaction, cached when it commits
+     */
+    private class PendingWrites implements TransactionEventListener {
+
+        private ExecutionContext context;
+
+        private Map<Key, String> names = new LinkedHashMap<Key, String>();
+
+        private PendingWrites(ExecutionContext context) {
+            this.context = context;
+        }
+
+        private void add(Key key, String className) {
+            names.put(key, className);
+        }
+
+        private void remove(Key key) {
+            names.remove(key);
+        }
+
+        @Override
+        public void transactionStarted() {
+        }
+
+        @Override
+        public void transactionFlushed() {
+        }
+
+        @Override
+        public void transactionPreCommit() {
+        }
+
+        @Override
+        public void transactionCommitted() {
+            pending.remove(context);
+
+            synchronized (classNames) {
+                classNames.putAll(names);
+            }
+        }
+
+        @Override
+        public void transactionPreRollBack() {
+        }
+
+        @Override
+        public void transactionRolledBack() {
+            pending.remove(context);
+        }
+
+        @Override
+        public void transactionEnded() {
+            pending.remove(context);
+        }
+    }
+
+    private static class Key {
+        private final String rootClassName;
+        private final Bytes rowKey;
+
+        private Key(AbstractClassMetaData metaData, Bytes rowKey) {
+            this.rootClassName = getRootClassName(metaData);
+            this.rowKey = rowKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * rootClassName.hashCode() + rowKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+
+            return rootClassName.equals(other.rootClassName)
+                    && rowKey.equals(other.rowKey);
+        }
+    }
+
+}
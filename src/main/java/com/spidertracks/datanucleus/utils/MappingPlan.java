@@ -0,0 +1,326 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.Relation;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.convert.ByteConverter;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+
+/**
+ * The mapping of a single class to its columns, worked out once from the
+ * metadata. Everything is stored in arrays indexed by absolute field number so
+ * the field managers can look up a field's column name, converter and relation
+ * type without hashing or walking the metadata for every object.
+ *
+ * Instances are immutable once created, apart from the cache of slice
+ * predicates which is safe for concurrent use.
+ *
+ * @author Todd Nine
+ *
+ */
+public class MappingPlan {
+
+    /**
+     * Relation kind of a field stored in a single column
+     */
+    public static final int BASIC = 0;
+
+    /**
+     * Relation kind of a field referencing a single persistent object
+     */
+    public static final int SINGLE = 1;
+
+    /**
+     * Relation kind of a collection, map or array of persistent objects
+     */
+    public static final int MULTIPLE = 2;
+
+    private AbstractClassMetaData metaData;
+
+    private AbstractMemberMetaData[] members;
+
+    private Bytes[] columnNames;
+
+    private ByteConverter[] converters;
+
+    private int[] relations;
+
+    private int[] dependentFields;
+
+    /**
+     * Column names sorted for a binary search and the field each belongs to
+     */
+    private ByteBuffer[] sortedNames;
+
+    private int[] sortedFields;
+
+    private ConcurrentMap<FieldSet, SlicePredicate> predicates = new ConcurrentHashMap<FieldSet, SlicePredicate>();
+
+    /**
+     * Build the plan for the given class
+     *
+     * @param metaData
+     * @param clr
+     * @param byteContext
+     */
+    public MappingPlan(AbstractClassMetaData metaData, ClassLoaderResolver clr,
+            ByteConverterContext byteContext) {
+        this.metaData = metaData;
+
+        int count = metaData.getMemberCount();
+
+        members = new AbstractMemberMetaData[count];
+        columnNames = new Bytes[count];
+        converters = new ByteConverter[count];
+        relations = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            AbstractMemberMetaData member = metaData
+                    .getMetaDataForManagedMemberAtAbsolutePosition(i);
+
+            members[i] = member;
+            columnNames[i] = MetaDataUtils.getColumnName(metaData, i);
+            relations[i] = toRelation(member.getRelationType(clr));
+
+            Class<?> type = member.getType();
+
+            // primitives have their own conversion methods on the context
+            if (relations[i] == BASIC && !type.isPrimitive()) {
+                converters[i] = byteContext.getConverter(type);
+            }
+        }
+
+        dependentFields = getDependentFields(members, relations);
+
+        // sort the names once so the columns of a row can be matched to their
+        // fields with a binary search
+        Integer[] order = new Integer[count];
+
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return columnNames[o1].getBytes().compareTo(
+                        columnNames[o2].getBytes());
+            }
+        });
+
+        sortedNames = new ByteBuffer[count];
+        sortedFields = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            sortedNames[i] = columnNames[order[i]].getBytes().duplicate();
+            sortedFields[i] = order[i];
+        }
+    }
+
+    /**
+     * @return the metadata of the class this plan was built for
+     */
+    public AbstractClassMetaData getMetaData() {
+        return metaData;
+    }
+
+    /**
+     * @param fieldNumber
+     *            The absolute field number
+     * @return The name of the column the field is stored in
+     */
+    public Bytes getColumnName(int fieldNumber) {
+        return columnNames[fieldNumber];
+    }
+
+    /**
+     * @param fieldNumber
+     *            The absolute field number
+     * @return The metadata of the field
+     */
+    public AbstractMemberMetaData getMember(int fieldNumber) {
+        return members[fieldNumber];
+    }
+
+    /**
+     * @param fieldNumber
+     *            The absolute field number
+     * @return The converter for the declared type of the field. Null for
+     *         primitives and relationships
+     */
+    public ByteConverter getConverter(int fieldNumber) {
+        return converters[fieldNumber];
+    }
+
+    /**
+     * @param fieldNumber
+     *            The absolute field number
+     * @return One of {@link #BASIC}, {@link #SINGLE} or {@link #MULTIPLE}
+     */
+    public int getRelation(int fieldNumber) {
+        return relations[fieldNumber];
+    }
+
+    /**
+     * @return The relationship fields whose related objects are deleted with
+     *         the owner
+     */
+    public int[] getDependentFields() {
+        return dependentFields;
+    }
+
+    /**
+     * @return the number of fields in the class
+     */
+    public int getFieldCount() {
+        return members.length;
+    }
+
+    /**
+     * Match the columns of a row to the fields they store. The returned array
+     * is indexed by absolute field number and holds the value of each column,
+     * fields without a column are null. Columns that don't belong to a field,
+     * such as the discriminator, are ignored.
+     *
+     * @param columns
+     * @return
+     */
+    public ByteBuffer[] getValues(List<Column> columns) {
+        ByteBuffer[] values = new ByteBuffer[members.length];
+
+        for (Column column : columns) {
+            int index = Arrays.binarySearch(sortedNames, column.name);
+
+            if (index >= 0) {
+                values[sortedFields[index]] = column.value;
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Get the predicate to select the columns of the given fields. Predicates
+     * are cached per set of field numbers
+     *
+     * @param fieldNumbers
+     * @return
+     */
+    public SlicePredicate getPredicate(int[] fieldNumbers) {
+        FieldSet fields = new FieldSet(fieldNumbers);
+
+        SlicePredicate predicate = predicates.get(fields);
+
+        if (predicate != null) {
+            return predicate;
+        }
+
+        Bytes[] names = new Bytes[fieldNumbers.length];
+
+        for (int i = 0; i < fieldNumbers.length; i++) {
+            names[i] = columnNames[fieldNumbers[i]];
+        }
+
+        predicate = Selector.newColumnsPredicate(names);
+
+        // copy the numbers, the caller may reuse the array
+        predicates.putIfAbsent(new FieldSet(fieldNumbers.clone()), predicate);
+
+        return predicate;
+    }
+
+    private static int[] getDependentFields(AbstractMemberMetaData[] members,
+            int[] relations) {
+        int[] fields = new int[members.length];
+        int count = 0;
+
+        for (int i = 0; i < members.length; i++) {
+            if (relations[i] == BASIC) {
+                continue;
+            }
+
+            if (members[i].isDependent()
+                    || (members[i].getCollection() != null && members[i]
+                            .getCollection().isDependentElement())) {
+                fields[count++] = i;
+            }
+        }
+
+        return Arrays.copyOf(fields, count);
+    }
+
+    private static int toRelation(int relationType) {
+        if (relationType == Relation.ONE_TO_ONE_BI
+                || relationType == Relation.ONE_TO_ONE_UNI
+                || relationType == Relation.MANY_TO_ONE_BI) {
+            return SINGLE;
+        }
+
+        if (relationType == Relation.MANY_TO_MANY_BI
+                || relationType == Relation.ONE_TO_MANY_BI
+                || relationType == Relation.ONE_TO_MANY_UNI) {
+            return MULTIPLE;
+        }
+
+        return BASIC;
+    }
+
+    /**
+     * Key for a set of field numbers
+     */
+    private static class FieldSet {
+        private int[] fields;
+        private int hash;
+
+        private FieldSet(int[] fields) {
+            this.fields = fields;
+            this.hash = Arrays.hashCode(fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FieldSet)) {
+                return false;
+            }
+
+            return Arrays.equals(fields, ((FieldSet) obj).fields);
+        }
+    }
+
+}
@@ -19,7 +19,9 @@ package com.spidertracks.datanucleus.utils;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -66,6 +68,8 @@ public class MetaDataUtils {
 
     private static ConcurrentMap<String, List<Bytes>> classToSubclasses = new ConcurrentHashMap<String, List<Bytes>>();
 
+    private static ConcurrentMap<String, Bytes[]> classToFetchColumns = new ConcurrentHashMap<String, Bytes[]>();
+
 
     /**
      * Get the column metadata for the class and fieldname
@@ -388,6 +392,72 @@ public class MetaDataUtils {
         return Selector.newColumnsPredicate(fieldNames);
     }
 
+    /**
+     * Get the names of the columns needed to materialize an object of the
+     * given class without another read. This is the identity column, the
+     * discriminator column if one is present, and the columns of the default
+     * fetch group. When subclasses is true the default fetch group columns of
+     * every subclass are included as well, since a row returned for the
+     * candidate class may hold any of them.
+     * 
+     * @param metaData
+     * @param subclasses
+     * @param clr
+     * @param ec
+     * @return
+     */
+    public static Bytes[] getDefaultFetchColumns(
+            AbstractClassMetaData metaData, boolean subclasses,
+            ClassLoaderResolver clr, ExecutionContext ec) {
+
+        String cacheKey = metaData.getFullClassName() + ":" + subclasses;
+
+        Bytes[] cached = classToFetchColumns.get(cacheKey);
+
+        if (cached != null) {
+            return cached;
+        }
+
+        Set<Bytes> columns = new LinkedHashSet<Bytes>();
+
+        columns.add(getIdentityColumn(metaData));
+
+        Bytes discriminator = getDiscriminatorColumnName(metaData);
+
+        if (discriminator != null) {
+            columns.add(discriminator);
+        }
+
+        addDFGColumns(metaData, columns);
+
+        if (subclasses) {
+            MetaDataManager mdm = ec.getMetaDataManager();
+
+            String[] subClasses = mdm.getSubclassesForClass(
+                    metaData.getFullClassName(), true);
+
+            if (subClasses != null) {
+                for (String subclassName : subClasses) {
+                    addDFGColumns(mdm.getMetaDataForClass(subclassName, clr),
+                            columns);
+                }
+            }
+        }
+
+        cached = columns.toArray(new Bytes[columns.size()]);
+
+        classToFetchColumns.putIfAbsent(cacheKey, cached);
+
+        return cached;
+    }
+
+    private static void addDFGColumns(AbstractClassMetaData metaData,
+            Set<Bytes> columns) {
+        for (int field : metaData.getDFGMemberPositions()) {
+            columns.add(getColumnName(metaData, field));
+        }
+    }
+
     /**
      * Create a slice predicate that will retreive the discriminator column if
      * one doesn't exist, null is returned
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOHelper;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Transaction;
 
@@ -108,4 +109,57 @@ public class CascadeTest extends CassandraTest {
     }
 
 
+    /**
+     * A dependent loaded in the same persistence manager has to be deleted
+     * through it, not just by key
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteLoadedDependent() throws Exception {
+        InvitedPerson person = new InvitedPerson();
+        person.setFirstName("firstName");
+        person.setLastName("lastName");
+        person.setLoginCount(10);
+
+        InvitationToken token = new InvitationToken();
+        token.setToken("loadedtoken");
+
+        person.setToken(token);
+        token.setPerson(person);
+
+        pmf.getPersistenceManager().makePersistent(person);
+
+        UUID personId = person.getId();
+        String tokenKey = token.getToken();
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        InvitedPerson saved = pm.getObjectById(InvitedPerson.class, personId);
+
+        InvitationToken loadedToken = saved.getToken();
+
+        assertNotNull(loadedToken);
+
+        pm.deletePersistent(saved);
+
+        assertTrue(JDOHelper.isDeleted(saved));
+        assertTrue(JDOHelper.isDeleted(loadedToken));
+
+        trans.commit();
+
+        boolean deleted = false;
+
+        try {
+            pmf.getPersistenceManager().getObjectById(InvitationToken.class,
+                    tokenKey);
+        } catch (JDODataStoreException n) {
+            deleted = n.getCause() instanceof NucleusObjectNotFoundException;
+        }
+
+        assertTrue(deleted);
+    }
+
 }
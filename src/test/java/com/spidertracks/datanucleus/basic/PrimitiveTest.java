@@ -25,7 +25,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import javax.jdo.JDODataStoreException;
 import javax.jdo.JDOException;
@@ -250,6 +253,58 @@ public class PrimitiveTest extends CassandraTest {
 
     }
 
+    /**
+     * Objects looked up together are read with one multiget
+     */
+    @Test
+    public void testGetObjectsById() throws Exception {
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+
+        List<Object> ids = new ArrayList<Object>();
+
+        for (int i = 0; i < 3; i++) {
+            PrimitiveObject object = new PrimitiveObject();
+            object.setTestInt(i);
+            object.setTestString("object" + i);
+
+            pm.makePersistent(object);
+
+            ids.add(pm.getObjectId(object));
+        }
+
+        // don't want them to come from the cache, get a new pm
+        PersistenceManager pm2 = pmf.getPersistenceManager();
+
+        Collection<?> stored = pm2.getObjectsById(ids);
+
+        assertEquals(3, stored.size());
+
+        int i = 0;
+
+        for (Object object : stored) {
+            PrimitiveObject primitive = (PrimitiveObject) object;
+
+            assertEquals(ids.get(i), pm2.getObjectId(primitive));
+            assertEquals(i, primitive.getTestInt());
+            assertEquals("object" + i, primitive.getTestString());
+
+            i++;
+        }
+
+        // a deleted object isn't found
+        pm.deletePersistent(pm.getObjectById(ids.get(1)));
+
+        PersistenceManager pm3 = pmf.getPersistenceManager();
+
+        try {
+            pm3.getObjectsById(ids);
+            fail("The deleted object should not be found");
+        } catch (JDODataStoreException e) {
+            // expected
+        }
+    }
+
     @Test(expected = JDODataStoreException.class)
     public void testDelete() throws Exception {
 
@@ -19,15 +19,25 @@ package com.spidertracks.datanucleus.basic.inheritance;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
 import org.junit.Before;
 import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.CassandraTest;
 import com.spidertracks.datanucleus.basic.inheritance.caseone.Child;
@@ -295,4 +305,85 @@ public class InheritanceTest extends CassandraTest {
     }
 
 
+    /**
+     * Test an update only writes the dirty field. The other columns and the
+     * discriminator written at insert have to survive it
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateKeepsColumnsAndDiscriminator() throws Exception {
+
+        String suffix = String.valueOf(System.nanoTime());
+
+        GrandChildOne first = new GrandChildOne();
+        first.setChildField("cf-" + suffix);
+        first.setGrandChildOneField("gcf-" + suffix);
+        first.setParentField("pf-" + suffix);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.makePersistent(first);
+
+        pm = pmf.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Child saved = pm.getObjectById(Child.class, first.getId());
+        saved.setChildField("updated-" + suffix);
+
+        trans.commit();
+
+        // the row itself still holds every column
+        Set<String> values = getRowValues("Child", "updated-" + suffix);
+
+        assertTrue(values.contains("gcf-" + suffix));
+        assertTrue(values.contains("pf-" + suffix));
+        assertTrue(values.contains("GrandChildOne"));
+
+        // and resolves to the subclass when loaded as its parent
+        pm = pmf.getPersistenceManager();
+
+        Child loaded = pm.getObjectById(Child.class, first.getId());
+
+        assertTrue(loaded instanceof GrandChildOne);
+        assertEquals("updated-" + suffix, loaded.getChildField());
+        assertEquals("pf-" + suffix, loaded.getParentField());
+        assertEquals("gcf-" + suffix, ((GrandChildOne) loaded)
+                .getGrandChildOneField());
+    }
+
+    /**
+     * Read the column values, as strings, of the row holding the given value
+     * 
+     * @param cfName
+     * @param value
+     * @return
+     */
+    private Set<String> getRowValues(String cfName, String value) {
+        Selector selector = Pelops.createSelector("TestPool");
+
+        KeyRange range = new KeyRange();
+        range.setStart_key(new byte[] {});
+        range.setEnd_key(new byte[] {});
+        range.setCount(1000);
+
+        Map<Bytes, List<Column>> rows = selector.getColumnsFromRows(cfName,
+                range, Selector.newColumnsPredicateAll(false),
+                ConsistencyLevel.QUORUM);
+
+        for (List<Column> row : rows.values()) {
+            Set<String> values = new HashSet<String>();
+
+            for (Column column : row) {
+                values.add(Bytes.fromByteArray(column.getValue()).toUTF8());
+            }
+
+            if (values.contains(value)) {
+                return values;
+            }
+        }
+
+        throw new AssertionError("No row holds " + value);
+    }
+
 }
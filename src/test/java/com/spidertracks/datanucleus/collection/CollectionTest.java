@@ -24,7 +24,11 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
@@ -42,6 +46,7 @@ import com.spidertracks.datanucleus.collection.model.User;
 import com.spidertracks.datanucleus.collection.model.Vehicle;
 import com.spidertracks.datanucleus.collection.model.Beer;
 import com.spidertracks.datanucleus.collection.model.Case;
+import com.spidertracks.datanucleus.collection.model.Crate;
 
 /**
  * @author Todd Nine
@@ -348,6 +353,58 @@ public class CollectionTest extends CassandraTest {
     }
     
 
+    @Test
+    public void testDeleteDependencyAddedInTransaction() throws Exception {
+
+        Pack pack = new Pack();
+
+        Card aceSpades = new Card();
+        aceSpades.setName("Ace of Spades");
+        pack.addCard(aceSpades);
+
+        pmf.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+        Card jackHearts = new Card();
+        jackHearts.setName("Jack of Hearts");
+        saved.addCard(jackHearts);
+
+        pm.makePersistent(jackHearts);
+
+        // the new card's column may not be stored yet, it's found from the
+        // loaded field
+        pm.deletePersistent(saved);
+
+        trans.commit();
+
+        boolean deleted = false;
+
+        try {
+            pmf.getPersistenceManager().getObjectById(Card.class,
+                    jackHearts.getId());
+        } catch (JDODataStoreException n) {
+            deleted = n.getCause() instanceof NucleusObjectNotFoundException;
+        }
+
+        assertTrue(deleted);
+
+        deleted = false;
+
+        try {
+            pmf.getPersistenceManager().getObjectById(Card.class,
+                    aceSpades.getId());
+        } catch (JDODataStoreException n) {
+            deleted = n.getCause() instanceof NucleusObjectNotFoundException;
+        }
+
+        assertTrue(deleted);
+    }
+
     @Test
     public void testRemoveCollectionEntry() throws Exception {
 
@@ -448,4 +505,278 @@ public class CollectionTest extends CassandraTest {
 
     }
 
+    @Test
+    public void testPagesRelationLargerThanFetchSize() throws Exception {
+        Crate crate = createCrate(25);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(10);
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+
+        assertTrue(LazyList.class.isInstance(saved.getBeers()));
+
+        // counted, not read
+        assertEquals(25, saved.getBeers().size());
+
+        Set<String> names = new HashSet<String>();
+
+        for (Beer beer : saved.getBeers()) {
+            names.add(beer.getName());
+        }
+
+        assertEquals(25, names.size());
+
+        for (int i = 0; i < 25; i++) {
+            assertTrue(names.contains("Beer " + i));
+        }
+
+        assertNotNull(saved.getBeers().get(24));
+
+        pm.close();
+    }
+
+    @Test
+    public void testReversedRelation() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+
+        List<Beer> ordered = new ArrayList<Beer>(saved.getBeers());
+        List<Beer> reversed = new ArrayList<Beer>(saved.getLatest());
+
+        assertEquals(12, ordered.size());
+
+        Collections.reverse(ordered);
+
+        assertEquals(ordered, reversed);
+
+        pm.close();
+    }
+
+    @Test
+    public void testDetachLoadsRemainingPages() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+        pm.setDetachAllOnCommit(true);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+
+        // only the first page is read
+        assertNotNull(saved.getBeers().get(0));
+
+        trans.commit();
+        pm.close();
+
+        List<Beer> beers = saved.getBeers();
+
+        assertEquals(12, beers.size());
+
+        Set<String> names = new HashSet<String>();
+
+        for (Beer beer : beers) {
+            names.add(beer.getName());
+        }
+
+        assertEquals(12, names.size());
+    }
+
+    @Test
+    public void testDetachCopyLoadsRemainingPages() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+
+        assertNotNull(saved.getBeers().get(0));
+
+        Crate detached = pm.detachCopy(saved);
+
+        pm.close();
+
+        assertFalse(LazyList.class.isInstance(detached.getBeers()));
+        assertEquals(12, detached.getBeers().size());
+        assertEquals(12, new HashSet<Beer>(detached.getBeers()).size());
+    }
+
+    @Test
+    public void testAppendToPersistedRelation() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+        saved.getBeers().add(new Beer("Beer 12"));
+
+        trans.commit();
+
+        pm = pmf.getPersistenceManager();
+
+        Crate loaded = pm.getObjectById(Crate.class, crate.getId());
+
+        assertEquals(13, loaded.getBeers().size());
+
+        Set<String> names = new HashSet<String>();
+
+        for (Beer beer : loaded.getBeers()) {
+            names.add(beer.getName());
+        }
+
+        assertEquals(13, names.size());
+        assertTrue(names.contains("Beer 12"));
+    }
+
+    @Test
+    public void testIterateAppendedAfterFlush() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+        saved.getBeers().add(new Beer("Beer 12"));
+
+        // the appended column is stored before its page is read
+        pm.flush();
+
+        assertEquals(13, saved.getBeers().size());
+
+        List<String> names = new ArrayList<String>();
+
+        for (Beer beer : saved.getBeers()) {
+            names.add(beer.getName());
+        }
+
+        assertEquals(13, names.size());
+        assertEquals(13, new HashSet<String>(names).size());
+        assertEquals("Beer 12", names.get(12));
+        assertEquals(13, saved.getBeers().size());
+
+        trans.commit();
+    }
+
+    @Test
+    public void testSizeIncludesChangesMadeBeforeCounting() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+
+        // neither modification counts the columns
+        saved.getBeers().add(new Beer("Beer 12"));
+        saved.getBeers().remove(0);
+
+        assertEquals(12, saved.getBeers().size());
+
+        trans.commit();
+
+        pm = pmf.getPersistenceManager();
+
+        Crate loaded = pm.getObjectById(Crate.class, crate.getId());
+
+        assertEquals(12, loaded.getBeers().size());
+    }
+
+    @Test
+    public void testRemoveFromPersistedRelation() throws Exception {
+        Crate crate = createCrate(12);
+
+        UUID removedId = crate.getBeers().get(11).getId();
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+        Beer removed = pm.getObjectById(Beer.class, removedId);
+
+        assertTrue(saved.getBeers().contains(removed));
+        assertTrue(saved.getBeers().remove(removed));
+        assertFalse(saved.getBeers().contains(removed));
+        assertEquals(11, saved.getBeers().size());
+
+        trans.commit();
+
+        pm = pmf.getPersistenceManager();
+
+        Crate loaded = pm.getObjectById(Crate.class, crate.getId());
+
+        assertEquals(11, loaded.getBeers().size());
+
+        for (Beer beer : loaded.getBeers()) {
+            assertFalse(removedId.equals(beer.getId()));
+        }
+
+        // the other relation is untouched
+        assertEquals(12, loaded.getLatest().size());
+    }
+
+    @Test
+    public void testClearPersistedRelation() throws Exception {
+        Crate crate = createCrate(12);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        Crate saved = pm.getObjectById(Crate.class, crate.getId());
+        saved.getBeers().clear();
+
+        trans.commit();
+
+        pm = pmf.getPersistenceManager();
+
+        Crate loaded = pm.getObjectById(Crate.class, crate.getId());
+
+        // every column of the relation is gone, so it loads as empty
+        assertNull(loaded.getBeers());
+
+        // the columns of the other relation are outside the deleted range
+        assertEquals(12, loaded.getLatest().size());
+    }
+
+    /**
+     * Persist a crate holding the given number of beers
+     * 
+     * @param size
+     * @return
+     */
+    private Crate createCrate(int size) {
+        Crate crate = new Crate();
+
+        for (int i = 0; i < size; i++) {
+            crate.addBeer(new Beer("Beer " + i));
+        }
+
+        pmf.getPersistenceManager().makePersistent(crate);
+
+        return crate;
+    }
+
 }
@@ -0,0 +1,76 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.Inheritance;
+import javax.jdo.annotations.InheritanceStrategy;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+
+import com.spidertracks.datanucleus.model.BaseEntity;
+
+/**
+ * An object holding the same beers twice, once in column order and once in
+ * reversed column order. Used to test paging through large relations
+ * 
+ * @author Todd Nine
+ */
+@PersistenceCapable(table = "Crate", identityType = IdentityType.APPLICATION, detachable = "true")
+@Inheritance(strategy = InheritanceStrategy.NEW_TABLE)
+public class Crate extends BaseEntity implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    @Persistent
+    private List<Beer> beers;
+
+    @Persistent
+    @Extension(vendorName = "datanucleus", key = "cassandra.reversed", value = "true")
+    private List<Beer> latest;
+
+    /**
+     * @return the beers in column order
+     */
+    public List<Beer> getBeers() {
+        return beers;
+    }
+
+    /**
+     * @return the beers in reversed column order
+     */
+    public List<Beer> getLatest() {
+        return latest;
+    }
+
+    public void addBeer(Beer beer) {
+        if (beers == null) {
+            beers = new ArrayList<Beer>();
+            latest = new ArrayList<Beer>();
+        }
+
+        beers.add(beer);
+        latest.add(beer);
+    }
+
+}
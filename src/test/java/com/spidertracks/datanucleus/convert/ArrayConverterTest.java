@@ -136,6 +136,8 @@ public class ArrayConverterTest
 
         final ByteBuffer bb = arrayOfStringConverter.writeBytes(control, null, null);
 
+        Assert.assertEquals(bb.position(), arrayOfStringConverter.getSize(control, null));
+
         bb.flip();
         final String[] test = (String[]) arrayOfStringConverter.getObject(bb, null);
 
@@ -146,4 +148,36 @@ public class ArrayConverterTest
         }
         Assert.assertNull(test[test.length - 1]);
     }
+
+    /**
+     * An array written to a buffer of the size it reports fills it exactly,
+     * without growing it.
+     */
+    @Test
+    public void testWriteToExactlySizedBuffer() throws Exception
+    {
+        final Integer[] control = { 1, -2, Integer.MAX_VALUE, null, 42 };
+
+        final ArrayConverter arrayOfIntegerConverter =
+            new ArrayConverter(new IntegerConverter(), Integer.class);
+
+        final int size = arrayOfIntegerConverter.getSize(control, null);
+
+        final ByteBuffer exact = ByteBuffer.allocate(size);
+        exact.mark();
+
+        final ByteBuffer bb = arrayOfIntegerConverter.writeBytes(control, exact, null);
+
+        Assert.assertSame(exact, bb);
+        Assert.assertEquals(size, bb.capacity());
+        Assert.assertEquals(size, bb.position());
+
+        bb.reset();
+        final Integer[] test = (Integer[]) arrayOfIntegerConverter.getObject(bb, null);
+
+        Assert.assertEquals(control.length, test.length);
+        for (int i = 0; i < control.length; i++) {
+            Assert.assertEquals(control[i], test[i]);
+        }
+    }
 }
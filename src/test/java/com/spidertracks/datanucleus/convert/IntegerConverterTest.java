@@ -0,0 +1,66 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class IntegerConverterTest {
+
+    /**
+     * Test method for
+     * {@link com.spidertracks.datanucleus.convert.IntegerConverter#writeInt(int, java.nio.ByteBuffer)}
+     * .
+     */
+    @Test
+    public void testWriteInt() {
+        IntegerConverter converter = new IntegerConverter();
+
+        ByteBuffer buffer = converter.writeInt(-42, null);
+        buffer.reset();
+
+        assertEquals(4, buffer.remaining());
+        assertEquals(Integer.valueOf(-42), converter.getObject(buffer, null));
+    }
+
+    /**
+     * Test method for
+     * {@link com.spidertracks.datanucleus.convert.IntegerConverter#readInt(java.nio.ByteBuffer)}
+     * .
+     */
+    @Test
+    public void testReadIntKeepsPosition() {
+        IntegerConverter converter = new IntegerConverter();
+
+        ByteBuffer buffer = converter.writeBytes(Integer.MAX_VALUE, null,
+                null);
+        buffer.reset();
+
+        assertEquals(Integer.MAX_VALUE, converter.readInt(buffer));
+        assertEquals(Integer.MAX_VALUE, converter.readInt(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+}
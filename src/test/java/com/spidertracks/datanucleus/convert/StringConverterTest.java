@@ -56,6 +56,41 @@ public class StringConverterTest {
         assertEquals(value, returned);
     }
 
+    /**
+     * Values are read from slices of the received frame, which may be direct,
+     * read only or start part way into their array
+     * 
+     * @throws UnsupportedEncodingException
+     */
+    @Test
+    public void testGetObjectFromSlice() throws UnsupportedEncodingException {
+        String value = "caf\u00e9";
+        byte[] encoded = value.getBytes("UTF-8");
+
+        StringConverter converter = new StringConverter();
+
+        ByteBuffer frame = ByteBuffer.allocate(encoded.length + 4);
+        frame.position(2);
+        frame.put(encoded);
+        frame.position(2);
+        frame.limit(2 + encoded.length);
+
+        ByteBuffer slice = frame.slice();
+
+        assertEquals(value, converter.getObject(slice, null));
+        assertEquals(value, converter.getObject(slice.asReadOnlyBuffer(), null));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+        direct.put(encoded);
+        direct.flip();
+
+        assertEquals(value, converter.getObject(direct, null));
+
+        // reading doesn't consume the buffers
+        assertEquals(0, slice.position());
+        assertEquals(0, direct.position());
+    }
+
     /**
      * Test method for
      * {@link com.spidertracks.datanucleus.convert.StringConverter#getBytes(java.lang.Object)}
@@ -93,6 +128,29 @@ public class StringConverterTest {
         assertNull(buffer);
     }
 
+    /**
+     * Test method for
+     * {@link com.spidertracks.datanucleus.convert.StringConverter#getSize(Object, ByteConverterContext)}
+     * .
+     */
+    @Test
+    public void testGetSize() {
+        StringConverter converter = new StringConverter();
+
+        // 1, 2, 3 and 4 byte characters and an unpaired surrogate
+        String[] strings = { "", "foo", "caf\u00e9", "\u20ac100",
+                "\ud834\udd1e clef", "broken \ud800 pair", "\udc00" };
+
+        for (String string : strings) {
+            ByteBuffer buffer = converter.writeBytes(string, null, null);
+
+            assertEquals(string, buffer.position(),
+                    converter.getSize(string, null));
+        }
+
+        assertEquals(0, converter.getSize(null, null));
+    }
+
     /**
      * Test method for
      * {@link com.spidertracks.datanucleus.convert.StringConverter#getComparatorType()}
@@ -23,6 +23,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Map;
+
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Transaction;
@@ -33,6 +35,7 @@ import org.junit.Test;
 
 import com.eaio.uuid.UUID;
 import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.LazyMap;
 import com.spidertracks.datanucleus.collection.model.Card;
 import com.spidertracks.datanucleus.collection.model.Pack;
 import com.spidertracks.datanucleus.map.model.CardMap;
@@ -220,4 +223,108 @@ public class MapTest extends CassandraTest {
 
     }
 
+    @Test
+    public void testAppendAndRemoveOnPersistedMap() throws Exception {
+
+        PackMap pack = new PackMap();
+
+        CardMap aceSpades = new CardMap();
+        aceSpades.setName("Ace of Spades");
+        pack.AddCard(aceSpades);
+
+        CardMap jackHearts = new CardMap();
+        jackHearts.setName("Jack of Hearts");
+        pack.AddCard(jackHearts);
+
+        pmf.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+        CardMap queenClubs = new CardMap();
+        queenClubs.setName("Queen of Clubs");
+        saved.AddCard(queenClubs);
+
+        saved.getCards().remove(aceSpades.getName());
+
+        trans.commit();
+
+        PackMap loaded = pmf.getPersistenceManager().getObjectById(
+                PackMap.class, pack.getId());
+
+        assertEquals(2, loaded.getCards().size());
+        assertNull(loaded.getCards().get(aceSpades.getName()));
+        assertEquals(jackHearts, loaded.getCards().get(jackHearts.getName()));
+        assertEquals(queenClubs, loaded.getCards().get(queenClubs.getName()));
+    }
+
+    @Test
+    public void testModifyPartlyLoadedMap() throws Exception {
+
+        PackMap pack = new PackMap();
+
+        for (int i = 0; i < 12; i++) {
+            CardMap card = new CardMap();
+            card.setName("Card " + i);
+            pack.AddCard(card);
+        }
+
+        pmf.getPersistenceManager().makePersistent(pack);
+
+        PersistenceManager pm = pmf.getPersistenceManager();
+        pm.getFetchPlan().setFetchSize(5);
+
+        Transaction trans = pm.currentTransaction();
+        trans.begin();
+
+        PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+        assertTrue(LazyMap.class.isInstance(saved.getCards()));
+
+        // every key is found, whether its page is loaded or not
+        for (int i = 0; i < 12; i++) {
+            assertTrue(saved.getCards().containsKey("Card " + i));
+            assertEquals("Card " + i, saved.getCards().get("Card " + i)
+                    .getName());
+        }
+
+        assertNull(saved.getCards().get("Card 12"));
+
+        CardMap replacement = new CardMap();
+        replacement.setName("Card 3");
+        saved.AddCard(replacement);
+
+        CardMap added = new CardMap();
+        added.setName("Card 12");
+        saved.AddCard(added);
+
+        assertNotNull(saved.getCards().remove("Card 11"));
+        assertNull(saved.getCards().remove("Card 13"));
+
+        assertEquals(12, saved.getCards().size());
+
+        // the stored entries changed before their page was read are skipped
+        int entries = 0;
+
+        for (Map.Entry<String, CardMap> entry : saved.getCards().entrySet()) {
+            assertFalse("Card 11".equals(entry.getKey()));
+            entries++;
+        }
+
+        assertEquals(12, entries);
+
+        trans.commit();
+
+        PackMap loaded = pmf.getPersistenceManager().getObjectById(
+                PackMap.class, pack.getId());
+
+        assertEquals(12, loaded.getCards().size());
+        assertNull(loaded.getCards().get("Card 11"));
+        assertEquals(replacement, loaded.getCards().get("Card 3"));
+        assertEquals(added, loaded.getCards().get("Card 12"));
+    }
+
 }
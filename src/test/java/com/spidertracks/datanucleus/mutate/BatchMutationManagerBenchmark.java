@@ -0,0 +1,187 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.datanucleus.store.ExecutionContext;
+
+/**
+ * Measures how the batch mutation manager scales with concurrent execution
+ * contexts. Each thread runs nested writes and deletes of its own row with a
+ * context of its own, and the throughput is printed for 1 thread up to the
+ * given number, doubling each time. With no shared state between contexts it
+ * should grow about linearly up to the number of cores.
+ * 
+ * Not run with the tests, start it with the test classpath:
+ * 
+ * <pre>
+ * java com.spidertracks.datanucleus.mutate.BatchMutationManagerBenchmark [threads] [iterations]
+ * </pre>
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BatchMutationManagerBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+                .getRuntime().availableProcessors();
+
+        int iterations = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULT_ITERATIONS;
+
+        BatchMutationManager manager = new BatchMutationManager(
+                new DiscardingDispatcher(), false, null);
+
+        // warm up so the first run isn't measured while being compiled
+        run(manager, maxThreads, iterations);
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long elapsed = run(manager, threads, iterations);
+
+            long operations = (long) threads * iterations;
+
+            System.out.println(String.format(
+                    "%d threads: %d operations per second", threads,
+                    (long) (operations / (elapsed / 1000000000.0))));
+        }
+    }
+
+    /**
+     * Run the workers once
+     * 
+     * @param manager
+     * @param threads
+     * @param iterations
+     * @return The nanoseconds from the start of all workers until the last
+     *         one finished
+     * @throws Exception
+     */
+    private static long run(BatchMutationManager manager, int threads,
+            int iterations) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        // the clock starts when the last worker is ready
+        final long[] start = new long[1];
+
+        CyclicBarrier ready = new CyclicBarrier(threads, new Runnable() {
+
+            @Override
+            public void run() {
+                start[0] = System.nanoTime();
+            }
+        });
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Worker(manager, ready, "row"
+                        + i, iterations)));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        long elapsed = System.nanoTime() - start[0];
+
+        if (!manager.isIdle()) {
+            throw new IllegalStateException(
+                    "Operations were left behind by the workers");
+        }
+
+        return elapsed;
+    }
+
+    /**
+     * Drops every batch, so only the manager is measured
+     */
+    private static class DiscardingDispatcher extends MutationDispatcher {
+
+        private DiscardingDispatcher() {
+            super("BatchMutationManagerBenchmark", 1000, 1024 * 1024, null);
+        }
+
+        @Override
+        public void dispatch(
+                Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+                ConsistencyLevel consistency) throws Exception {
+        }
+    }
+
+    /**
+     * Writes its row in nested writes and deletes with a context of its own
+     */
+    private static class Worker implements Callable<Void> {
+
+        private BatchMutationManager manager;
+
+        private CyclicBarrier ready;
+
+        private String row;
+
+        private int iterations;
+
+        private Worker(BatchMutationManager manager, CyclicBarrier ready,
+                String row, int iterations) {
+            this.manager = manager;
+            this.ready = ready;
+            this.row = row;
+            this.iterations = iterations;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            ExecutionContext context = BatchMutationManagerTest
+                    .createContext();
+
+            ready.await();
+
+            for (int i = 0; i < iterations; i++) {
+                manager.beginWrite(context);
+
+                BatchMutationManagerTest.write(manager, context, row);
+
+                manager.beginDelete(context, null);
+                manager.endDelete(context);
+
+                manager.endWrite(context);
+            }
+
+            return null;
+        }
+    }
+
+}
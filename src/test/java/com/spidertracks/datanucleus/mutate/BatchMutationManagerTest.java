@@ -0,0 +1,484 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.datanucleus.Transaction;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.store.ExecutionContext;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Tests the per context tracking of the batch mutation manager without a
+ * cluster. Tests which write use a dispatcher that records the batches
+ * instead of sending them.
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchMutationManagerTest {
+
+    private static final int ITERATIONS = 1000;
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void testNestedWrites() throws Exception {
+        BatchMutationManager manager = createManager();
+
+        ExecutionContext context = createContext();
+
+        CassandraMutator outer = manager.beginWrite(context).getMutator();
+        CassandraMutator inner = manager.beginWrite(context).getMutator();
+
+        // nested writes share the batch of the outermost one
+        assertTrue(outer == inner);
+
+        manager.endWrite(context);
+        assertTrue(!manager.isIdle());
+
+        manager.endWrite(context);
+        assertTrue(manager.isIdle());
+    }
+
+    @Test
+    public void testFailedWriteIsRemoved() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(true);
+
+        BatchMutationManager manager = new BatchMutationManager(dispatcher,
+                false, null);
+
+        ExecutionContext context = createContext();
+
+        try {
+            write(manager, context, "key");
+            fail("The write should have failed");
+        } catch (Exception e) {
+            assertEquals("Unable to send", e.getMessage());
+        }
+
+        assertEquals(1, dispatcher.batches.size());
+        assertTrue(manager.isIdle());
+    }
+
+    @Test
+    public void testAbortedWriteIsRemoved() throws Exception {
+        BatchMutationManager manager = createManager();
+
+        ExecutionContext context = createContext();
+
+        manager.beginWrite(context);
+        manager.beginWrite(context);
+
+        manager.abortWrite(context);
+        manager.abortWrite(context);
+
+        assertTrue(manager.isIdle());
+    }
+
+    @Test
+    public void testCoalescedWritesHeldUntilFlush() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher();
+
+        BatchMutationManager manager = new BatchMutationManager(dispatcher,
+                true, null);
+
+        List<TransactionEventListener> listeners = new ArrayList<TransactionEventListener>();
+
+        ExecutionContext context = createContext(createTransaction(listeners));
+
+        write(manager, context, "first");
+        write(manager, context, "second");
+
+        // both writes are held in one batch with a single listener
+        assertEquals(0, dispatcher.batches.size());
+        assertEquals(1, listeners.size());
+        assertTrue(!manager.isIdle());
+
+        listeners.get(0).transactionFlushed();
+
+        assertEquals(1, dispatcher.batches.size());
+        assertEquals(2, dispatcher.batches.get(0).size());
+
+        // writes after the flush are held again until the commit
+        write(manager, context, "third");
+
+        assertEquals(1, dispatcher.batches.size());
+
+        listeners.get(0).transactionPreCommit();
+
+        assertEquals(2, dispatcher.batches.size());
+        assertEquals(1, dispatcher.batches.get(1).size());
+
+        listeners.get(0).transactionCommitted();
+        listeners.get(0).transactionEnded();
+
+        assertTrue(manager.isIdle());
+    }
+
+    @Test
+    public void testCoalescedWritesDroppedOnRollback() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher();
+
+        BatchMutationManager manager = new BatchMutationManager(dispatcher,
+                true, null);
+
+        List<TransactionEventListener> listeners = new ArrayList<TransactionEventListener>();
+
+        ExecutionContext context = createContext(createTransaction(listeners));
+
+        write(manager, context, "first");
+        write(manager, context, "second");
+
+        listeners.get(0).transactionPreRollBack();
+        listeners.get(0).transactionRolledBack();
+        listeners.get(0).transactionEnded();
+
+        assertEquals(0, dispatcher.batches.size());
+        assertTrue(manager.isIdle());
+    }
+
+    @Test
+    public void testAbortedWriteFailsHeldBatch() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher();
+
+        BatchMutationManager manager = new BatchMutationManager(dispatcher,
+                true, null);
+
+        List<TransactionEventListener> listeners = new ArrayList<TransactionEventListener>();
+
+        ExecutionContext context = createContext(createTransaction(listeners));
+
+        write(manager, context, "first");
+
+        // the failed write has already added a column to the held batch
+        CassandraMutator mutator = manager.beginWrite(context).getMutator();
+
+        mutator.writeColumn("TestColumnFamily", Bytes.fromUTF8("second"),
+                mutator.newColumn(Bytes.fromUTF8("name"), Bytes
+                        .fromUTF8("value")));
+
+        manager.abortWrite(context);
+
+        try {
+            listeners.get(0).transactionPreCommit();
+            fail("The commit should have failed");
+        } catch (NucleusDataStoreException e) {
+            // expected
+        }
+
+        assertEquals(0, dispatcher.batches.size());
+
+        listeners.get(0).transactionPreRollBack();
+        listeners.get(0).transactionRolledBack();
+        listeners.get(0).transactionEnded();
+
+        assertTrue(manager.isIdle());
+    }
+
+    @Test
+    public void testAbortedDeleteFailsHeldBatch() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher();
+
+        BatchMutationManager manager = new BatchMutationManager(dispatcher,
+                true, null);
+
+        List<TransactionEventListener> listeners = new ArrayList<TransactionEventListener>();
+
+        ExecutionContext context = createContext(createTransaction(listeners));
+
+        // deletes join the held batch of the transaction
+        manager.beginDelete(context, null).addDeletion(
+                Bytes.fromUTF8("first"), "TestColumnFamily");
+        manager.abortDelete(context);
+
+        try {
+            listeners.get(0).transactionFlushed();
+            fail("The flush should have failed");
+        } catch (NucleusDataStoreException e) {
+            // expected
+        }
+
+        assertEquals(0, dispatcher.batches.size());
+
+        listeners.get(0).transactionPreRollBack();
+        listeners.get(0).transactionRolledBack();
+
+        assertTrue(manager.isIdle());
+    }
+
+    /**
+     * Each thread begins and ends nested writes and deletes with its own
+     * context at the same time as the others. Every batch must hold only the
+     * row of the context that wrote it. How this scales with the number of
+     * threads is measured by {@link BatchMutationManagerBenchmark}
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentContexts() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(false);
+
+        BatchMutationManager manager = new BatchMutationManager(dispatcher,
+                false, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Worker(manager, start, "row"
+                        + i)));
+            }
+
+            for (Future<Integer> result : results) {
+                assertEquals(ITERATIONS, result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(manager.isIdle());
+        assertEquals(THREADS * ITERATIONS, dispatcher.batches.size());
+
+        Map<ByteBuffer, Integer> rows = new HashMap<ByteBuffer, Integer>();
+
+        for (Map<ByteBuffer, Map<String, List<Mutation>>> batch : dispatcher.batches) {
+            assertEquals(1, batch.size());
+
+            ByteBuffer row = batch.keySet().iterator().next();
+
+            Integer count = rows.get(row);
+            rows.put(row, count == null ? 1 : count + 1);
+        }
+
+        assertEquals(THREADS, rows.size());
+
+        for (Integer count : rows.values()) {
+            assertEquals(ITERATIONS, count.intValue());
+        }
+    }
+
+    private static BatchMutationManager createManager() {
+        return new BatchMutationManager(new MutationDispatcher(
+                "BatchMutationManagerTest", 1000, 1024 * 1024, null), false,
+                null);
+    }
+
+    /**
+     * Write a single column to the given row in a write of its own
+     * 
+     * @param manager
+     * @param context
+     * @param row
+     * @throws Exception
+     */
+    static void write(BatchMutationManager manager,
+            ExecutionContext context, String row) throws Exception {
+        CassandraMutator mutator = manager.beginWrite(context).getMutator();
+
+        mutator.writeColumn("TestColumnFamily", Bytes.fromUTF8(row), mutator
+                .newColumn(Bytes.fromUTF8("name"), Bytes.fromUTF8("value")));
+
+        manager.endWrite(context);
+    }
+
+    /**
+     * Create an execution context which only supports equals and hashCode,
+     * all the manager needs of it when writes aren't coalesced
+     *
+     * @return
+     */
+    static ExecutionContext createContext() {
+        return createContext(null);
+    }
+
+    /**
+     * Create an execution context which only supports equals, hashCode and
+     * returning the given transaction
+     *
+     * @param transaction
+     * @return
+     */
+    private static ExecutionContext createContext(final Transaction transaction) {
+        return (ExecutionContext) Proxy.newProxyInstance(
+                ExecutionContext.class.getClassLoader(),
+                new Class<?>[] { ExecutionContext.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+
+                        if (method.getName().equals("getTransaction")
+                                && transaction != null) {
+                            return transaction;
+                        }
+
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+
+                        if (method.getName().equals("toString")) {
+                            return "ExecutionContext@"
+                                    + System.identityHashCode(proxy);
+                        }
+
+                        throw new UnsupportedOperationException(method
+                                .getName());
+                    }
+                });
+    }
+
+    /**
+     * Create an active transaction which collects the listeners added to it
+     * 
+     * @param listeners
+     * @return
+     */
+    private static Transaction createTransaction(
+            final List<TransactionEventListener> listeners) {
+        return (Transaction) Proxy.newProxyInstance(
+                Transaction.class.getClassLoader(),
+                new Class<?>[] { Transaction.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+
+                        if (method.getName().equals("isActive")) {
+                            return true;
+                        }
+
+                        if (method.getName().equals(
+                                "addTransactionEventListener")) {
+                            listeners.add((TransactionEventListener) args[0]);
+                            return null;
+                        }
+
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+
+                        throw new UnsupportedOperationException(method
+                                .getName());
+                    }
+                });
+    }
+
+    /**
+     * Records the rows of each batch instead of sending it, optionally
+     * failing afterwards
+     */
+    private static class RecordingDispatcher extends MutationDispatcher {
+
+        private List<Map<ByteBuffer, Map<String, List<Mutation>>>> batches = Collections
+                .synchronizedList(new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>());
+
+        private boolean fail;
+
+        private RecordingDispatcher() {
+            this(false);
+        }
+
+        private RecordingDispatcher(boolean fail) {
+            super("BatchMutationManagerTest", 1000, 1024 * 1024, null);
+            this.fail = fail;
+        }
+
+        @Override
+        public void dispatch(
+                Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+                ConsistencyLevel consistency) throws Exception {
+            batches.add(batch);
+
+            if (fail) {
+                throw new Exception("Unable to send");
+            }
+        }
+    }
+
+    /**
+     * Writes its row in nested writes and deletes with a context of its own
+     */
+    private static class Worker implements Callable<Integer> {
+
+        private BatchMutationManager manager;
+
+        private CyclicBarrier start;
+
+        private String row;
+
+        private Worker(BatchMutationManager manager, CyclicBarrier start,
+                String row) {
+            this.manager = manager;
+            this.start = start;
+            this.row = row;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            ExecutionContext context = createContext();
+
+            start.await();
+
+            for (int i = 0; i < ITERATIONS; i++) {
+                manager.beginWrite(context);
+
+                write(manager, context, row);
+
+                manager.beginDelete(context, null);
+                manager.endDelete(context);
+
+                manager.endWrite(context);
+            }
+
+            return ITERATIONS;
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Tests grouping batches without a cluster, the dispatcher records the groups
+ * instead of sending them
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class GroupCommitterTest {
+
+    /**
+     * Long enough that only the size limit closes a group
+     */
+    private static final long LONG_WINDOW = 60000;
+
+    @Test
+    public void testGroupClosedBySize() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(false);
+
+        GroupCommitter committer = new GroupCommitter(dispatcher, LONG_WINDOW,
+                4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<Void>> writers = commitConcurrently(committer,
+                    executor, 4);
+
+            for (Future<Void> writer : writers) {
+                writer.get();
+            }
+
+            // every writer was acknowledged by the same group
+            assertEquals(1, dispatcher.sent.size());
+            assertEquals(4, dispatcher.sent.get(0).size());
+        } finally {
+            executor.shutdown();
+            committer.close();
+        }
+    }
+
+    @Test
+    public void testGroupClosedByWindow() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(false);
+
+        GroupCommitter committer = new GroupCommitter(dispatcher, 10, 1000);
+
+        try {
+            // alone in its group, sent once the window closes
+            committer.commit(createBatch("row", 1), ConsistencyLevel.ONE);
+
+            assertEquals(1, dispatcher.sent.size());
+            assertEquals(1, dispatcher.sent.get(0).size());
+        } finally {
+            committer.close();
+        }
+    }
+
+    @Test
+    public void testLargeBatchSentDirectly() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(false);
+
+        GroupCommitter committer = new GroupCommitter(dispatcher, LONG_WINDOW,
+                4);
+
+        try {
+            committer.commit(createBatch("row", 4), ConsistencyLevel.ONE);
+
+            assertEquals(1, dispatcher.sent.size());
+            assertSame(Thread.currentThread(), dispatcher.threads.get(0));
+        } finally {
+            committer.close();
+        }
+    }
+
+    @Test
+    public void testFailureReportedToEveryWriter() throws Exception {
+        RecordingDispatcher dispatcher = new RecordingDispatcher(true);
+
+        GroupCommitter committer = new GroupCommitter(dispatcher, LONG_WINDOW,
+                3);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try {
+            List<Future<Void>> writers = commitConcurrently(committer,
+                    executor, 3);
+
+            for (Future<Void> writer : writers) {
+                try {
+                    writer.get();
+                    fail("Every writer should see the failure of the group");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof NucleusDataStoreException);
+                }
+            }
+
+            assertEquals(1, dispatcher.sent.size());
+        } finally {
+            executor.shutdown();
+            committer.close();
+        }
+    }
+
+    /**
+     * Commit a batch of a single mutation from each of the given number of
+     * writers
+     * 
+     * @param committer
+     * @param executor
+     * @param count
+     * @return
+     */
+    private static List<Future<Void>> commitConcurrently(
+            final GroupCommitter committer, ExecutorService executor,
+            int count) {
+        List<Future<Void>> writers = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < count; i++) {
+            final String row = "row" + i;
+
+            writers.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    committer.commit(createBatch(row, 1), ConsistencyLevel.ONE);
+                    return null;
+                }
+            }));
+        }
+
+        return writers;
+    }
+
+    /**
+     * Create a batch writing the given number of columns to a row
+     * 
+     * @param row
+     * @param count
+     * @return
+     */
+    private static Map<ByteBuffer, Map<String, List<Mutation>>> createBatch(
+            String row, int count) {
+        List<Mutation> mutations = new ArrayList<Mutation>();
+
+        for (int i = 0; i < count; i++) {
+            Column column = new Column();
+            column.setName(Bytes.fromUTF8("column" + i).getBytes());
+            column.setValue(Bytes.fromUTF8("value").getBytes());
+            column.setTimestamp(1);
+
+            ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+            cosc.setColumn(column);
+
+            Mutation mutation = new Mutation();
+            mutation.setColumn_or_supercolumn(cosc);
+
+            mutations.add(mutation);
+        }
+
+        Map<String, List<Mutation>> families = new HashMap<String, List<Mutation>>();
+        families.put("TestColumnFamily", mutations);
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+        batch.put(Bytes.fromUTF8(row).getBytes(), families);
+
+        return batch;
+    }
+
+    /**
+     * Records the rows of each group and the thread sending it instead of
+     * sending it, optionally failing afterwards
+     */
+    private static class RecordingDispatcher extends MutationDispatcher {
+
+        private List<Map<ByteBuffer, Map<String, List<Mutation>>>> sent = Collections
+                .synchronizedList(new ArrayList<Map<ByteBuffer, Map<String, List<Mutation>>>>());
+
+        private List<Thread> threads = Collections
+                .synchronizedList(new ArrayList<Thread>());
+
+        private boolean fail;
+
+        private RecordingDispatcher(boolean fail) {
+            super("GroupCommitterTest", 1000, 1024 * 1024, null);
+            this.fail = fail;
+        }
+
+        @Override
+        void send(Map<ByteBuffer, Map<String, List<Mutation>>> batch,
+                ConsistencyLevel consistency) throws Exception {
+            sent.add(batch);
+            threads.add(Thread.currentThread());
+
+            if (fail) {
+                throw new Exception("Unable to send the group");
+            }
+        }
+    }
+}
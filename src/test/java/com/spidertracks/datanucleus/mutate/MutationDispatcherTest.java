@@ -0,0 +1,163 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.Mutation;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.mutate.MutationDispatcher.Request;
+
+/**
+ * Tests splitting batches into requests without a cluster
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class MutationDispatcherTest {
+
+    @Test
+    public void testSplitKeepsRowsTogether() {
+        MutationDispatcher dispatcher = new MutationDispatcher(
+                "MutationDispatcherTest", 4, 1024 * 1024, null);
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+
+        // larger than a request on its own
+        addMutations(batch, "large", "First", 3);
+        addMutations(batch, "large", "Second", 2);
+
+        for (int i = 0; i < 10; i++) {
+            addMutations(batch, "row" + i, "First", 1);
+            addMutations(batch, "row" + i, "Second", 1);
+        }
+
+        List<Request> requests = dispatcher.split(batch);
+
+        Set<ByteBuffer> rows = new HashSet<ByteBuffer>();
+
+        for (Request request : requests) {
+            int mutations = 0;
+
+            for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : request
+                    .getBatch().entrySet()) {
+
+                // every row is in a single request with all its mutations
+                assertTrue(rows.add(row.getKey()));
+                assertEquals(batch.get(row.getKey()), row.getValue());
+
+                for (List<Mutation> mutationList : row.getValue().values()) {
+                    mutations += mutationList.size();
+                }
+            }
+
+            if (request.getBatch().size() > 1) {
+                assertTrue(mutations <= 4);
+            }
+        }
+
+        assertEquals(batch.keySet(), rows);
+
+        // the large row alone and at most two rows of two mutations per
+        // request
+        assertTrue(requests.size() >= 6);
+    }
+
+    @Test
+    public void testSplitRespectsBytes() {
+        MutationDispatcher dispatcher = new MutationDispatcher(
+                "MutationDispatcherTest", 1000, 200, null);
+
+        Map<ByteBuffer, Map<String, List<Mutation>>> batch = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+
+        for (int i = 0; i < 20; i++) {
+            addMutations(batch, "row" + i, "First", 1);
+        }
+
+        List<Request> requests = dispatcher.split(batch);
+
+        assertTrue(requests.size() > 1);
+
+        int rows = 0;
+
+        for (Request request : requests) {
+            rows += request.getBatch().size();
+        }
+
+        assertEquals(20, rows);
+    }
+
+    /**
+     * Add the given number of column writes to the row
+     * 
+     * @param batch
+     * @param row
+     * @param columnFamily
+     * @param count
+     */
+    private static void addMutations(
+            Map<ByteBuffer, Map<String, List<Mutation>>> batch, String row,
+            String columnFamily, int count) {
+
+        ByteBuffer rowKey = Bytes.fromUTF8(row).getBytes();
+
+        Map<String, List<Mutation>> families = batch.get(rowKey);
+
+        if (families == null) {
+            families = new HashMap<String, List<Mutation>>();
+            batch.put(rowKey, families);
+        }
+
+        List<Mutation> mutations = families.get(columnFamily);
+
+        if (mutations == null) {
+            mutations = new ArrayList<Mutation>();
+            families.put(columnFamily, mutations);
+        }
+
+        for (int i = 0; i < count; i++) {
+            Column column = new Column();
+            column.setName(Bytes.fromUTF8("column" + mutations.size())
+                    .getBytes());
+            column.setValue(Bytes.fromUTF8("value").getBytes());
+            column.setTimestamp(1);
+
+            ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+            cosc.setColumn(column);
+
+            Mutation mutation = new Mutation();
+            mutation.setColumn_or_supercolumn(cosc);
+
+            mutations.add(mutation);
+        }
+    }
+}
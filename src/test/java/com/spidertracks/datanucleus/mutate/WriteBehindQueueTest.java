@@ -0,0 +1,312 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.junit.Test;
+
+/**
+ * Tests the write behind queue without a cluster, the mutators block or fail
+ * instead of sending anything
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class WriteBehindQueueTest {
+
+    @Test
+    public void testFullQueueBlocksWriters() throws Exception {
+        final WriteBehindQueue queue = new WriteBehindQueue(1, 1);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        try {
+            // taken by the only flusher, which then blocks
+            queue.submit(new BlockingMutator(started, release),
+                    ConsistencyLevel.ONE);
+
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // fills the queue
+            queue.submit(new BlockingMutator(null, release),
+                    ConsistencyLevel.ONE);
+
+            final AtomicBoolean submitted = new AtomicBoolean();
+
+            Thread writer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    queue.submit(new BlockingMutator(null, release),
+                            ConsistencyLevel.ONE);
+                    submitted.set(true);
+                }
+            });
+
+            writer.start();
+
+            // the writer must block on the full queue
+            for (int i = 0; i < 1000
+                    && writer.getState() != Thread.State.WAITING; i++) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(Thread.State.WAITING, writer.getState());
+            assertFalse(submitted.get());
+
+            release.countDown();
+
+            writer.join(10000);
+
+            assertTrue(submitted.get());
+
+            queue.flush();
+        } finally {
+            release.countDown();
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testFailureReportedByFlush() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1);
+
+        try {
+            Future<Void> write = queue.submit(new FailingMutator(),
+                    ConsistencyLevel.ONE);
+
+            // the write fails before anyone flushes
+            try {
+                write.get();
+                fail("The write should have failed");
+            } catch (ExecutionException e) {
+                // expected
+            }
+
+            try {
+                queue.flush();
+                fail("The failure should have been reported");
+            } catch (NucleusDataStoreException e) {
+                assertTrue(e.getMessage().contains("Unable to write"));
+            }
+
+            // reported once only
+            queue.flush();
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testFailureReportedByAwait() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(10, 1);
+
+        try {
+            Future<Void> failed = queue.submit(new FailingMutator(),
+                    ConsistencyLevel.ONE);
+
+            Future<Void> other = queue.submit(new FailingMutator(),
+                    ConsistencyLevel.ONE);
+
+            try {
+                queue.await(Collections.singleton(failed));
+                fail("The failure should have been reported");
+            } catch (NucleusDataStoreException e) {
+                // expected
+            }
+
+            queue.await(Collections.singleton(failed));
+
+            // the other failure wasn't reported with the first
+            try {
+                queue.await(Collections.singleton(other));
+                fail("The failure should have been reported");
+            } catch (NucleusDataStoreException e) {
+                // expected
+            }
+
+            queue.flush();
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testKeptFailuresAreBounded() throws Exception {
+        WriteBehindQueue queue = new WriteBehindQueue(2, 1);
+
+        try {
+            List<Future<Void>> writes = submitFailing(queue, 5);
+
+            // two are kept, the others are only counted
+            try {
+                queue.flush();
+                fail("The failures should have been reported");
+            } catch (NucleusDataStoreException e) {
+                assertTrue(e.getMessage().startsWith("5 writes behind failed"));
+            }
+
+            queue.flush();
+
+            writes = submitFailing(queue, 5);
+
+            // at least two of these weren't kept, each is reported by its
+            // await and no longer counted by the flush
+            for (Future<Void> write : writes.subList(0, 4)) {
+                try {
+                    queue.await(Collections.singleton(write));
+                    fail("The failure should have been reported");
+                } catch (NucleusDataStoreException e) {
+                    assertTrue(e.getMessage().startsWith(
+                            "1 writes behind failed"));
+                }
+            }
+
+            try {
+                queue.flush();
+                fail("The failure should have been reported");
+            } catch (NucleusDataStoreException e) {
+                assertTrue(e.getMessage().startsWith("1 writes behind failed"));
+            }
+
+            queue.flush();
+        } finally {
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedSubmitIsNotTheLastWrite() throws Exception {
+        final WriteBehindQueue queue = new WriteBehindQueue(10, 1);
+
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicReference<Future<Void>> lastWrite = new AtomicReference<Future<Void>>();
+
+        try {
+            Thread writer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Thread.currentThread().interrupt();
+
+                    try {
+                        queue.submit(new FailingMutator(),
+                                ConsistencyLevel.ONE);
+                    } catch (NucleusDataStoreException e) {
+                        failed.set(true);
+                    }
+
+                    lastWrite.set(queue.getLastWrite());
+                }
+            });
+
+            writer.start();
+            writer.join(10000);
+
+            assertTrue(failed.get());
+            assertNull(lastWrite.get());
+        } finally {
+            queue.close();
+        }
+    }
+
+    /**
+     * Submit failing writes and wait until they have all failed
+     * 
+     * @param queue
+     * @param count
+     * @return The writes
+     */
+    private static List<Future<Void>> submitFailing(WriteBehindQueue queue,
+            int count) throws InterruptedException {
+        List<Future<Void>> writes = new ArrayList<Future<Void>>();
+
+        for (int i = 0; i < count; i++) {
+            writes.add(queue.submit(new FailingMutator(), ConsistencyLevel.ONE));
+        }
+
+        for (Future<Void> write : writes) {
+            try {
+                write.get();
+                fail("The write should have failed");
+            } catch (ExecutionException e) {
+                // expected
+            }
+        }
+
+        return writes;
+    }
+
+    /**
+     * Signals it has started and blocks until released
+     */
+    private static class BlockingMutator extends CassandraMutator {
+
+        private CountDownLatch started;
+
+        private CountDownLatch release;
+
+        private BlockingMutator(CountDownLatch started, CountDownLatch release) {
+            super(null);
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void execute(ConsistencyLevel consistency) throws Exception {
+            if (started != null) {
+                started.countDown();
+            }
+
+            release.await();
+        }
+    }
+
+    /**
+     * Always fails
+     */
+    private static class FailingMutator extends CassandraMutator {
+
+        private FailingMutator() {
+            super(null);
+        }
+
+        @Override
+        public void execute(ConsistencyLevel consistency) throws Exception {
+            throw new Exception("Unable to write");
+        }
+    }
+}
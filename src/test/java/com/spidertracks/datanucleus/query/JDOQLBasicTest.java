@@ -1019,4 +1019,149 @@ public class JDOQLBasicTest extends CassandraTest {
         }
     }
 
+    /**
+     * Query results are populated from the columns of the index scan, so the
+     * default fetch group is readable after the rows are gone
+     */
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testQueryHydratesDefaultFetchGroup() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setFilter("testString == 'one'");
+            Collection c = (Collection) q.execute();
+            assertEquals(1, c.size());
+
+            // anything read from here on can't come from a second read
+            deleteAllRows("PrimitiveObject");
+
+            PrimitiveObject result = (PrimitiveObject) c.iterator().next();
+            assertEquals("one", result.getTestString());
+            assertEquals("none", result.getNonIndexedString());
+            assertEquals(10, result.getTestInt());
+            assertEquals(100, result.getTestLong());
+            assertEquals(1, result.getTestShort());
+            assertEquals('1', result.getTestChar());
+            assertEquals(100.10, result.getTestDouble(), 0);
+            assertTrue(result.isTestBool());
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
+    /**
+     * A cached object keeps its loaded fields unless the query ignores the
+     * cache, then it's refreshed from the scanned columns
+     */
+    @SuppressWarnings("rawtypes")
+    @Test
+    public void testQueryIgnoreCache() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            PrimitiveObject cached = pm.getObjectById(PrimitiveObject.class,
+                    object1.getId());
+            assertEquals("none", cached.getNonIndexedString());
+
+            // change the row from another context
+            PersistenceManager other = pmf.getPersistenceManager();
+            Transaction otherTx = other.currentTransaction();
+            try {
+                otherTx.begin();
+                other.getObjectById(PrimitiveObject.class, object1.getId())
+                        .setNonIndexedString("changed");
+                otherTx.commit();
+            } finally {
+                if (otherTx.isActive()) {
+                    otherTx.rollback();
+                }
+                other.close();
+            }
+
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setFilter("testString == 'one'");
+            q.setIgnoreCache(false);
+            Collection c = (Collection) q.execute();
+            assertEquals(1, c.size());
+            PrimitiveObject result = (PrimitiveObject) c.iterator().next();
+            assertTrue(cached == result);
+            assertEquals("none", result.getNonIndexedString());
+
+            q = pm.newQuery(PrimitiveObject.class);
+            q.setFilter("testString == 'one'");
+            q.setIgnoreCache(true);
+            c = (Collection) q.execute();
+            assertEquals(1, c.size());
+            result = (PrimitiveObject) c.iterator().next();
+            assertTrue(cached == result);
+            assertEquals("changed", result.getNonIndexedString());
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
+    /**
+     * A unique count is over every match, not just the first two read
+     */
+    @Test
+    public void testUniqueCount() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setResult("count(this)");
+            q.setUnique(true);
+            assertEquals(3L, ((Number) q.execute()).longValue());
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
+    /**
+     * A unique ordered top row is taken from every match, not just the first
+     * two read
+     */
+    @Test
+    public void testUniqueOrderedTopRow() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            Query q = pm.newQuery(PrimitiveObject.class);
+            q.setOrdering("testInt DESC");
+            q.setRange(0, 1);
+            q.setUnique(true);
+            assertEquals(object3, q.execute());
+
+            q = pm.newQuery(PrimitiveObject.class);
+            q.setOrdering("testInt ASC");
+            q.setRange(0, 1);
+            q.setUnique(true);
+            assertEquals(object1, q.execute());
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+
 }
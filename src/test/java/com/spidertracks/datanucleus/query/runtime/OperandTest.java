@@ -0,0 +1,322 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.cassandra.thrift.IndexClause;
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.thrift.IndexOperator;
+import org.datanucleus.exceptions.NucleusException;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Tests the concurrent execution of operand trees with leaves which don't
+ * need a cluster
+ *
+ * @author Todd Nine
+ *
+ */
+public class OperandTest {
+
+    /**
+     * How long a leaf waits for the others before failing
+     */
+    private static final long BARRIER_SECONDS = 10;
+
+    @Test
+    public void testOrLeavesRunConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        // every leaf waits until all four are running, so the query can only
+        // complete if they run at the same time
+        CyclicBarrier running = new CyclicBarrier(4);
+
+        try {
+            Operand root = or(or(leaf(running, "a"), leaf(running, "b")), or(
+                    leaf(running, "c"), leaf(running, "d")));
+
+            root.performQuery("OperandTest", "TestColumnFamily", null,
+                    executor);
+
+            assertEquals(4, root.getCandidateKeys().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAndMerge() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Operand and = new AndOperand();
+            and.setLeft(leaf("a", "b"));
+            and.setRight(leaf("b", "c"));
+
+            and.performQuery("OperandTest", "TestColumnFamily", null, executor);
+
+            assertEquals(1, and.getCandidateKeys().size());
+            assertTrue(and.getCandidateKeys().contains(
+                    new Columns(Bytes.fromUTF8("b"))));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = NucleusException.class)
+    public void testLeafFailure() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Operand or = new OrOperand();
+            or.setLeft(leaf("a"));
+            or.setRight(new Leaf(null, null));
+
+            or.performQuery("OperandTest", "TestColumnFamily", null, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAndPlansSelectiveSide() throws Exception {
+        IndexStatistics statistics = new IndexStatistics(4);
+
+        EqualityOperand rare = equality("rare");
+        EqualityOperand common = equality("common");
+
+        AndOperand and = new AndOperand();
+        and.setLeft(common);
+        and.setRight(rare);
+
+        // nothing sampled yet, both sides run
+        assertTrue(and == and.plan("TestColumnFamily", statistics));
+
+        statistics.record("TestColumnFamily", rare.getIndexClause(), 5);
+        statistics.record("TestColumnFamily", common.getIndexClause(), 500000);
+
+        assertTrue(rare == and.plan("TestColumnFamily", statistics));
+
+        // too close to choose
+        statistics.reset();
+        statistics.record("TestColumnFamily", rare.getIndexClause(), 300);
+        statistics.record("TestColumnFamily", common.getIndexClause(), 500);
+
+        assertTrue(and == and.plan("TestColumnFamily", statistics));
+    }
+
+    @Test
+    public void testAndPlansSkewedColumn() throws Exception {
+        IndexStatistics statistics = new IndexStatistics(4);
+
+        EqualityOperand rare = equality("status", "rare");
+        EqualityOperand common = equality("status", "common");
+        EqualityOperand owner = equality("owner", "value");
+
+        // a single column whose values read very different numbers of rows
+        for (int i = 0; i < 10; i++) {
+            statistics.record("TestColumnFamily", rare.getIndexClause(), 5);
+            statistics.record("TestColumnFamily", common.getIndexClause(),
+                    500000);
+            statistics.record("TestColumnFamily", owner.getIndexClause(),
+                    1000);
+        }
+
+        AndOperand rareAnd = new AndOperand();
+        rareAnd.setLeft(owner);
+        rareAnd.setRight(rare);
+
+        assertTrue(rare == rareAnd.plan("TestColumnFamily", statistics));
+
+        AndOperand commonAnd = new AndOperand();
+        commonAnd.setLeft(common);
+        commonAnd.setRight(owner);
+
+        assertTrue(owner == commonAnd.plan("TestColumnFamily", statistics));
+
+        // a value that hasn't been sampled falls back to its column
+        assertTrue(equality("status", "new").estimateRows("TestColumnFamily",
+                statistics) != IndexStatistics.UNKNOWN);
+    }
+
+    @Test
+    public void testBindSharedParameter() throws Exception {
+        EqualityOperand first = equality("parameter");
+        EqualityOperand second = equality("other");
+
+        // a discriminator expansion shares the expression between leaves
+        IndexExpression parameter = first.getIndexClause().getExpressions()
+                .get(0);
+        second.addExpression(parameter, true);
+
+        Operand or = or(first, second);
+
+        Map<IndexExpression, ByteBuffer> values = new IdentityHashMap<IndexExpression, ByteBuffer>();
+        values.put(parameter, Bytes.fromUTF8("bound").getBytes());
+
+        Operand bound = or.bind(values);
+
+        List<Operand> leaves = new ArrayList<Operand>();
+        bound.addLeaves(leaves);
+
+        assertEquals(2, leaves.size());
+
+        IndexClause boundFirst = ((EqualityOperand) leaves.get(0))
+                .getIndexClause();
+        IndexClause boundSecond = ((EqualityOperand) leaves.get(1))
+                .getIndexClause();
+
+        assertEquals(Bytes.fromUTF8("bound").getBytes(), boundFirst
+                .getExpressions().get(0).value);
+        assertEquals(Bytes.fromUTF8("value").getBytes(), boundSecond
+                .getExpressions().get(0).value);
+        assertEquals(Bytes.fromUTF8("bound").getBytes(), boundSecond
+                .getExpressions().get(1).value);
+
+        // the plan itself isn't changed
+        assertEquals(Bytes.fromUTF8("value").getBytes(), parameter.value);
+        assertTrue(bound.isIndexed());
+    }
+
+    private static EqualityOperand equality(String column) {
+        return equality(column, "value");
+    }
+
+    private static EqualityOperand equality(String column, String value) {
+        IndexExpression expression = new IndexExpression();
+        expression.setColumn_name(Bytes.fromUTF8(column).getBytes());
+        expression.setValue(Bytes.fromUTF8(value).getBytes());
+        expression.setOp(IndexOperator.EQ);
+
+        EqualityOperand operand = new EqualityOperand(100);
+        operand.addExpression(expression, true);
+        return operand;
+    }
+
+    private static Operand or(Operand left, Operand right) {
+        Operand or = new OrOperand();
+        or.setLeft(left);
+        or.setRight(right);
+        return or;
+    }
+
+    private static Operand leaf(String... keys) {
+        return new Leaf(null, keys);
+    }
+
+    private static Operand leaf(CyclicBarrier running, String... keys) {
+        return new Leaf(running, keys);
+    }
+
+    /**
+     * A leaf which returns the given keys, or fails if there are none. If it
+     * has a barrier it first waits for the other leaves to reach it and fails
+     * if they don't
+     */
+    private static class Leaf extends Operand {
+
+        private CyclicBarrier running;
+
+        private String[] keys;
+
+        private Leaf(CyclicBarrier running, String[] keys) {
+            this.running = running;
+            this.keys = keys;
+        }
+
+        @Override
+        public void complete(Operand child) {
+            // never has children
+        }
+
+        @Override
+        public void performQuery(String poolName, String cfName,
+                Bytes[] columns) {
+
+            if (keys == null) {
+                throw new NucleusException("Leaf failed");
+            }
+
+            if (running != null) {
+                try {
+                    running.await(BARRIER_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (BrokenBarrierException e) {
+                    throw new NucleusException(
+                            "Leaves didn't run concurrently", e);
+                } catch (TimeoutException e) {
+                    throw new NucleusException(
+                            "Leaves didn't run concurrently", e);
+                }
+            }
+
+            candidateKeys = new LinkedHashSet<Columns>();
+
+            for (String key : keys) {
+                candidateKeys.add(new Columns(Bytes.fromUTF8(key)));
+            }
+
+            parent.complete(this);
+        }
+
+        @Override
+        public Operand bind(Map<IndexExpression, ByteBuffer> values) {
+            return new Leaf(running, keys);
+        }
+
+        @Override
+        public long estimateRows(String cfName, IndexStatistics statistics) {
+            return keys == null ? IndexStatistics.UNKNOWN : keys.length;
+        }
+
+        @Override
+        public Operand optimizeDescriminator(Bytes descriminatorColumnValue,
+                List<Bytes> possibleValues) {
+            return this;
+        }
+
+        @Override
+        public void toString(StringBuilder sb) {
+            sb.append("leaf ");
+        }
+
+        @Override
+        public boolean isIndexed() {
+            return true;
+        }
+    }
+
+}